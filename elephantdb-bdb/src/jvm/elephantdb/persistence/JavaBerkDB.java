@@ -7,11 +7,20 @@ import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 
+/**
+ * Any option in persistence_opts whose name starts with "je." or "com.sleepycat.je." is passed to
+ * the shard's environment as a BerkeleyDB JE config param (e.g. "je.log.fileMax"), overriding
+ * the defaults set here.
+ */
 public class JavaBerkDB implements Coordinator {
     public static Logger LOG = Logger.getLogger(JavaBerkDB.class);
 
+    public static final String JE_PARAM_PREFIX = "je.";
+    public static final String JE_LOGGING_PREFIX = "com.sleepycat.je.";
+
     public JavaBerkDB() {
         super();
     }
@@ -30,7 +39,7 @@ public class JavaBerkDB implements Coordinator {
         return ret;
     }
 
-    public static class JavaBerkDBPersistence implements KeyValPersistence {
+    public static class JavaBerkDBPersistence implements MultiGetPersistence, CursorPersistence {
         private static final String DATABASE_NAME = "elephant";
         Environment env;
         Database db;
@@ -46,7 +55,6 @@ public class JavaBerkDB implements Coordinator {
             envConf.setTransactional(false);
             envConf.setSharedCache(true);
 
-            // TODO: Loop through options, setConfigParam for each one.
             envConf.setConfigParam(EnvironmentConfig.CLEANER_MIN_UTILIZATION, "10");
             envConf.setConfigParam(EnvironmentConfig.CLEANER_MIN_FILE_UTILIZATION, "5");
             envConf.setConfigParam(EnvironmentConfig.ENV_RUN_CLEANER, "false");
@@ -54,6 +62,27 @@ public class JavaBerkDB implements Coordinator {
 
             envConf.setConfigParam(EnvironmentConfig.FILE_LOGGING_LEVEL, "ALL");
             envConf.setConfigParam(EnvironmentConfig.CONSOLE_LOGGING_LEVEL, "ALL");
+
+            if (readOnly) {
+                // A served shard never changes, so it needs none of the daemons that maintain
+                // a live log, only a handful of open log files, and barely any log buffer.
+                // Allocating the default log buffers is most of the cost of opening a shard.
+                envConf.setConfigParam(EnvironmentConfig.ENV_RUN_CHECKPOINTER, "false");
+                envConf.setConfigParam(EnvironmentConfig.ENV_RUN_IN_COMPRESSOR, "false");
+                envConf.setConfigParam(EnvironmentConfig.LOG_FILE_CACHE_SIZE, "4");
+                envConf.setConfigParam(EnvironmentConfig.LOG_NUM_BUFFERS, "2");
+                envConf.setConfigParam(EnvironmentConfig.LOG_BUFFER_SIZE, "65536");
+                envConf.setConfigParam(EnvironmentConfig.LOG_TOTAL_BUFFER_BYTES, "131072");
+            }
+            if (options != null) {
+                for (Object entry : options.entrySet()) {
+                    Map.Entry opt = (Map.Entry) entry;
+                    String key = String.valueOf(opt.getKey());
+                    if (key.startsWith(JE_PARAM_PREFIX) || key.startsWith(JE_LOGGING_PREFIX)) {
+                        envConf.setConfigParam(key, String.valueOf(opt.getValue()));
+                    }
+                }
+            }
             
             env = new Environment(new File(root), envConf);
             
@@ -81,6 +110,33 @@ public class JavaBerkDB implements Coordinator {
             }
         }
 
+        /**
+         * Walks a single cursor over the keys in sorted order, so consecutive lookups land in
+         * the same or neighbouring B-tree nodes.
+         */
+        public byte[][] multiGet(byte[][] keys) throws IOException {
+            byte[][] ret = new byte[keys.length][];
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            Cursor cursor = db.openCursor(null, null);
+            try {
+                int prev = -1;
+                for (int i : Utils.sortedKeyOrder(keys)) {
+                    if (prev >= 0 && Arrays.equals(keys[prev], keys[i])) {
+                        ret[i] = ret[prev];
+                    } else {
+                        DatabaseEntry valEntry = new DatabaseEntry();
+                        keyEntry.setData(keys[i]);
+                        OperationStatus stat = cursor.getSearchKey(keyEntry, valEntry, LockMode.READ_UNCOMMITTED);
+                        ret[i] = (stat == OperationStatus.SUCCESS) ? valEntry.getData() : null;
+                    }
+                    prev = i;
+                }
+            } finally {
+                cursor.close();
+            }
+            return ret;
+        }
+
         public void put(byte[] key, byte[] value) throws IOException {
             index(new KeyValDocument(key, value));
         }
@@ -118,15 +174,49 @@ public class JavaBerkDB implements Coordinator {
             env.close();
         }
 
+        /**
+         * Walks the shard with one cursor, one pair of DatabaseEntry objects and one document.
+         * JE still copies each key and value into a fresh array, which the document hands over.
+         */
+        public KeyValCursor openCursor() throws IOException {
+            final Cursor cursor = db.openCursor(null, null);
+            return new KeyValCursor() {
+                final DatabaseEntry key = new DatabaseEntry();
+                final DatabaseEntry val = new DatabaseEntry();
+                final KeyValDocument doc = new KeyValDocument();
+                boolean closed = false;
+
+                public KeyValDocument next() throws IOException {
+                    if (closed) {
+                        return null;
+                    }
+                    OperationStatus stat = cursor.getNext(key, val, LockMode.READ_UNCOMMITTED);
+                    if (stat != OperationStatus.SUCCESS) {
+                        close();
+                        return null;
+                    }
+                    doc.key = key.getData();
+                    doc.value = val.getData();
+                    return doc;
+                }
+
+                public void close() {
+                    if (!closed) {
+                        closed = true;
+                        cursor.close();
+                    }
+                }
+            };
+        }
+
         public CloseableIterator<KeyValDocument> iterator() {
             return new CloseableIterator<KeyValDocument>() {
                 Cursor cursor = null;
                 KeyValDocument next = null;
+                DatabaseEntry key = new DatabaseEntry();
+                DatabaseEntry val = new DatabaseEntry();
 
                 private void cacheNext() {
-                    DatabaseEntry key = new DatabaseEntry();
-                    DatabaseEntry val = new DatabaseEntry();
-
                     // cursor stores the next key and value in the above mutable objects.
                     OperationStatus stat = cursor.getNext(key, val, LockMode.READ_UNCOMMITTED);
                     if (stat == OperationStatus.SUCCESS) {
@@ -42,6 +42,11 @@ public class ElephantDBTap extends Hfs {
 
         //sink specific
         public Fields sinkFields = Fields.ALL;
+
+        // shards copied as-is out of another version when the sink commits, for incremental
+        // resharding. See DomainStore.inheritShards.
+        public String inheritVersionPath = null;
+        public List<Integer> inheritShards = null;
     }
 
     String domainDir;
@@ -167,6 +172,12 @@ public class ElephantDBTap extends Hfs {
         try {
             DomainStore dstore = getDomainStore();
             dstore.getFileSystem().mkdirs(new Path(newVersionPath));
+
+            if (args.inheritVersionPath != null) {
+                LOG.info("Inheriting shards " + args.inheritShards + " from " + args.inheritVersionPath);
+                DomainStore.inheritShards(Utils.getFS(args.inheritVersionPath, conf), args.inheritVersionPath,
+                    dstore.getFileSystem(), newVersionPath, args.inheritShards);
+            }
             
             dstore.succeedVersion(newVersionPath);
             
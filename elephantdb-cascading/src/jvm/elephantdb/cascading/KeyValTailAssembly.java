@@ -5,6 +5,7 @@ import cascading.operation.BaseOperation;
 import cascading.operation.Function;
 import cascading.operation.FunctionCall;
 import cascading.operation.Identity;
+import cascading.operation.OperationCall;
 import cascading.pipe.Each;
 import cascading.pipe.GroupBy;
 import cascading.pipe.Pipe;
@@ -22,7 +23,11 @@ import java.util.UUID;
 public class KeyValTailAssembly extends SubAssembly {
     public static Logger LOG = Logger.getLogger(KeyValTailAssembly.class);
 
-    public static class Shardize extends BaseOperation implements Function {
+    /**
+     * Cascading hands tuples over one at a time, so rather than batching, Shardize reuses a
+     * single output Tuple per task; the collector copies it on add.
+     */
+    public static class Shardize extends BaseOperation<Tuple> implements Function<Tuple> {
         ShardingScheme shardScheme;
         int shardCount;
 
@@ -36,11 +41,16 @@ public class KeyValTailAssembly extends SubAssembly {
             return shardScheme.shardIndex(key, shardCount);
         }
 
-        public void operate(FlowProcess process, FunctionCall call) {
+        @Override public void prepare(FlowProcess process, OperationCall<Tuple> call) {
+            call.setContext(Tuple.size(1));
+        }
+
+        public void operate(FlowProcess process, FunctionCall<Tuple> call) {
             Object key = call.getArguments().getObject(0);
 
-            int shard = shardIndex((byte[])key);
-            call.getOutputCollector().add(new Tuple(shard));
+            Tuple result = call.getContext();
+            result.set(0, shardIndex((byte[]) key));
+            call.getOutputCollector().add(result);
         }
     }
 
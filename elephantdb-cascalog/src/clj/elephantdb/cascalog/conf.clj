@@ -33,7 +33,8 @@
 
 (defn convert-args
   [{:keys [tmp-dirs source-fields
-           timeout-ms version]}]
+           timeout-ms version
+           inherit-version-path inherit-shards]}]
   (let [mk-list (fn [xs] (when xs (ArrayList. xs)))
         ret      (ElephantDBTap$Args.)]
     (when source-fields
@@ -42,4 +43,6 @@
     (when timeout-ms
       (set! (.timeoutMs ret) timeout-ms))
     (set! (.version ret) version)
+    (set! (.inheritVersionPath ret) inherit-version-path)
+    (set! (.inheritShards ret) (mk-list (seq (map int inherit-shards))))
     ret))
@@ -4,8 +4,10 @@
   (:require [elephantdb.cascalog.core :as core])
   (:import [cascalog.ops IdentityBuffer]
            [org.apache.hadoop.conf Configuration]
+           [org.apache.hadoop.fs Path]
            [elephantdb Utils]
-           [elephantdb.partition ShardingScheme]
+           [elephantdb.partition ShardingScheme JumpHashScheme RangeScheme]
+           [elephantdb.store DomainStore]
            [org.apache.hadoop.io BytesWritable]))
 
 (defn- test-array
@@ -41,6 +43,23 @@
         (:sort !sort-key)
         ((IdentityBuffer.) !keyraw !valueraw :> !key !value))))
 
+(defn- sampled-key?
+  [rate]
+  (filterfn
+   [^bytes shard-key]
+   (RangeScheme/isSampled shard-key rate)))
+
+(defn range-scheme
+  "Runs a job that samples roughly `sample-rate` of the distinct keys
+  in `kv-src` and returns a RangeScheme whose split points cut them
+  into `shard-count` evenly sized shards. Use it as the :shard-scheme
+  of a new domain spec with the same :num-shards."
+  [kv-src shard-count & {:keys [sample-rate] :or {sample-rate 0.01}}]
+  (let [sample (??<- [?key]
+                     (kv-src ?key _)
+                     ((sampled-key? sample-rate) ?key))]
+    (RangeScheme/fromSample (map first sample) shard-count)))
+
 (defn keyval-tap
   "Returns a tap that can be used to source and sink key-value pairs
   to ElephantDB."
@@ -52,13 +71,53 @@
            root-path
            (apply concat args))))
 
+(defn- moved-key?
+  "Returns a filter that keeps only the keys that leave their shard
+  when the domain grows from `old-count` to `new-count` shards. Under a
+  JumpHashScheme those are exactly the keys that land in a new shard."
+  [^ShardingScheme scheme old-count new-count]
+  (filterfn
+   [^bytes shard-key]
+   (>= (.shardIndex scheme shard-key new-count) old-count)))
+
+(defn- incremental-reshard?
+  [spec shard-count]
+  (and (instance? JumpHashScheme (:shard-scheme spec))
+       (> shard-count (:num-shards spec))))
+
 (defn reshard!
   "Accepts two target paths and a new shard count and re-shards the
   domain at source-dir into target-dir. (To re-shard a domain into
-  itself, pass the same path in for source and target.)"
+  itself, pass the same path in for source and target.)
+
+  When the domain uses a JumpHashScheme and the shard count grows, only
+  the keys that move are rewritten into the new shards; the existing
+  shards are copied over as-is (see DomainStore/inheritShards).
+
+  A RangeScheme domain gets fresh split points sampled from its
+  current keys."
   [source-dir target-dir shard-count]
   (let [fs (Utils/getFS source-dir (Configuration.))
         spec (read-domain-spec fs source-dir)
-        new-spec (assoc spec :num-shards shard-count)]
-    (?- (keyval-tap target-dir :spec new-spec)
-        (keyval-tap source-dir))))
+        new-spec (assoc spec
+                   :num-shards shard-count
+                   :shard-scheme (if (instance? RangeScheme (:shard-scheme spec))
+                                   (range-scheme (keyval-tap source-dir) shard-count)
+                                   (:shard-scheme spec)))]
+    (if (incremental-reshard? spec shard-count)
+      (let [store (DomainStore. fs source-dir)
+            version (.mostRecentVersion store)
+            version-path (-> (Path. (.versionPath store version))
+                             (.makeQualified fs)
+                             (str))
+            old-count (:num-shards spec)
+            source (keyval-tap source-dir :version version)]
+        (?- (keyval-tap target-dir
+                        :spec new-spec
+                        :inherit-version-path version-path
+                        :inherit-shards (range old-count))
+            (<- [!key !value]
+                (source !key !value)
+                ((moved-key? (:shard-scheme spec) old-count shard-count) !key))))
+      (?- (keyval-tap target-dir :spec new-spec)
+          (keyval-tap source-dir)))))
@@ -8,7 +8,8 @@
   (:require [hadoop-util.test :as test]
             [cascalog.logic.ops :as c])
   (:import [elephantdb.persistence JavaBerkDB]
-           [elephantdb.partition HashModScheme]))
+           [elephantdb.partition HashModScheme JumpHashScheme RangeScheme]
+           [elephantdb.store DomainStore VersionedStore]))
 
 ;; ## Byte Array Testing
 
@@ -166,3 +167,69 @@
       (reshard! tmp-a tmp-b 5)
       [fs tmp-b] => (spec-has {:num-shards 5})
       (deserialize-str (keyval-tap tmp-b)) => (produces pairs))))
+
+(defn inherited-shards
+  "Returns the set of shards in the latest version of the domain at
+  `path` that were carried over as-is by an incremental reshard."
+  [fs path]
+  (let [store (DomainStore. fs path)
+        version-path (.mostRecentVersionPath store)]
+    (set (filter #(DomainStore/isInherited fs (str version-path "/" %))
+                 (range (.. store getSpec getNumShards))))))
+
+(fact "Growing a jump-hashed domain keeps the old shards and only
+  rebuilds the keys that move."
+  (test/with-fs-tmp [fs base-path tmp-a tmp-b]
+    (let [spec  (assoc (mk-spec 3) :shard-scheme (JumpHashScheme.))
+          pairs (vec (for [i (range 200)] [(str "key" i) (str "val" i)]))]
+      (?- (keyval-tap base-path :spec spec) (serialize-str pairs))
+
+      "Going from 3 to 5 shards carries shards 0-2 over as-is,"
+      (reshard! base-path tmp-a 5)
+      [fs tmp-a] => (spec-has {:num-shards 5})
+      (inherited-shards fs tmp-a) => #{0 1 2}
+
+      "and the keys that stayed behind in them aren't read twice."
+      (deserialize-str (keyval-tap tmp-a)) => (produces pairs)
+
+      "Shrinking falls back to a full rewrite."
+      (reshard! tmp-a tmp-b 2)
+      (inherited-shards fs tmp-b) => #{}
+      (deserialize-str (keyval-tap tmp-b)) => (produces pairs))))
+
+(fact "Resharding a version that only references its shards in an
+  earlier version inherits them from the version holding them."
+  (test/with-fs-tmp [fs base-path tmp-a]
+    (let [spec  (assoc (mk-spec 3) :shard-scheme (JumpHashScheme.))
+          pairs (vec (for [i (range 200)] [(str "key" i) (str "val" i)]))]
+      (?- (keyval-tap base-path :spec spec) (serialize-str pairs))
+      (let [store   (DomainStore. fs base-path)
+            old-path (.mostRecentVersionPath store)
+            new-path (.createVersion store)]
+        (DomainStore/synchronizeVersions fs (.getSpec store) old-path new-path)
+        (.succeedVersion store new-path)
+        (set (keys (VersionedStore/readReferences fs (.mostRecentVersionPath store))))
+        => #{"0" "1" "2"})
+
+      (reshard! base-path tmp-a 5)
+      (inherited-shards fs tmp-a) => #{0 1 2}
+      (deserialize-str (keyval-tap tmp-a)) => (produces pairs))))
+
+(fact "A range-partitioned domain keeps each shard's keys contiguous."
+  (test/with-fs-tmp [fs base-path tmp-a]
+    (let [pairs  (vec (for [i (range 1000)] [(format "key%04d" i) (str "val" i)]))
+          source (serialize-str pairs)
+          scheme (range-scheme source 4 :sample-rate 0.5)
+          spec   (assoc (mk-spec 4) :shard-scheme scheme)]
+      (count (.getSplitPoints scheme)) => 3
+      (?- (keyval-tap base-path :spec spec) source)
+
+      "The split points are stored with the spec,"
+      (map barr->str (.getSplitPoints (:shard-scheme (read-domain-spec fs base-path))))
+      => (map barr->str (.getSplitPoints scheme))
+      (deserialize-str (keyval-tap base-path)) => (produces pairs)
+
+      "and resharding samples a fresh set."
+      (reshard! base-path tmp-a 8)
+      (count (.getSplitPoints (:shard-scheme (read-domain-spec fs tmp-a)))) => 7
+      (deserialize-str (keyval-tap tmp-a)) => (produces pairs))))
@@ -120,6 +120,11 @@
   [connection]
   (.updateAll connection))
 
+(defn get-count
+  "Get the number of records the node serves for the supplied domain."
+  [connection domain]
+  (.getCount connection domain))
+
 (defn get-domain-metadata
   "Get metadata for the supplied domain."
   [connection domain]
@@ -1,5 +1,7 @@
 package elephantdb;
 
+import elephantdb.partition.ConfigurableScheme;
+import elephantdb.partition.RangeScheme;
 import elephantdb.partition.ShardingScheme;
 import elephantdb.persistence.Coordinator;
 import org.apache.hadoop.fs.FSDataInputStream;
@@ -21,7 +23,9 @@ public class DomainSpec implements Writable, Serializable {
 
     private static final String COORDINATOR_CONF = "coordinator";
     private static final String SHARD_SCHEME_CONF = "shard_scheme";
+    private static final String SHARD_SCHEME_OPTS = "shard_scheme_opts";
     private static final String SHARD_COUNT_CONF = "shard_count";
+    private static final String SPLIT_POINTS_CONF = "split_points";
     private static final String PERSISTENCE_OPTS = "persistence_opts";
 
     // This gets serialized in via the conf.
@@ -69,6 +73,9 @@ public class DomainSpec implements Writable, Serializable {
         if (numShards <= 0) {
             throw new AssertionError();
         }
+        if (shardingScheme instanceof RangeScheme) {
+            ((RangeScheme) shardingScheme).assertShardCount(numShards);
+        }
 
         this.numShards = numShards;
         this.coordinator = coordinator;
@@ -142,7 +149,21 @@ public class DomainSpec implements Writable, Serializable {
         Args args = new Args();
         args.persistenceOptions = (Map) specmap.get(PERSISTENCE_OPTS);
 
-        return new DomainSpec(persistenceConf, shardSchemeConf, numShards, args);
+        ShardingScheme scheme = (ShardingScheme) Utils.newInstance(shardSchemeConf);
+        List<Object> splitPoints = (List<Object>) specmap.get(SPLIT_POINTS_CONF);
+        if (splitPoints != null && scheme instanceof RangeScheme) {
+            byte[][] splits = new byte[splitPoints.size()][];
+            for (int i = 0; i < splits.length; i++) {
+                splits[i] = Utils.fromYamlHex(splitPoints.get(i));
+            }
+            ((RangeScheme) scheme).setSplitPoints(splits);
+        }
+        Map<String, Object> schemeOpts = (Map<String, Object>) specmap.get(SHARD_SCHEME_OPTS);
+        if (schemeOpts != null && scheme instanceof ConfigurableScheme) {
+            ((ConfigurableScheme) scheme).setOptions(schemeOpts);
+        }
+
+        return new DomainSpec((Coordinator) Utils.newInstance(persistenceConf), scheme, numShards, args);
     }
 
     public void writeToStream(OutputStream os) {
@@ -153,7 +174,18 @@ public class DomainSpec implements Writable, Serializable {
         Map<String, Object> spec = new HashMap<String, Object>();
         spec.put(COORDINATOR_CONF, coordinator.getClass().getName());
         spec.put(SHARD_SCHEME_CONF, shardingScheme.getClass().getName());
+        if (shardingScheme instanceof ConfigurableScheme) {
+            spec.put(SHARD_SCHEME_OPTS, ((ConfigurableScheme) shardingScheme).getOptions());
+        }
         spec.put(SHARD_COUNT_CONF, numShards);
+        if (shardingScheme instanceof RangeScheme) {
+            // hex-encoded so that arbitrary key bytes survive the YAML round trip
+            List<String> splitPoints = new ArrayList<String>();
+            for (byte[] split : ((RangeScheme) shardingScheme).getSplitPoints()) {
+                splitPoints.add(Utils.toYamlHex(split));
+            }
+            spec.put(SPLIT_POINTS_CONF, splitPoints);
+        }
         spec.put(PERSISTENCE_OPTS, getPersistenceOptions());
         return spec;
     }
@@ -1,6 +1,16 @@
 package elephantdb;
 
+import elephantdb.partition.BatchShardingScheme;
+import elephantdb.partition.RangeScheme;
+import elephantdb.partition.ShardingScheme;
+import elephantdb.document.KeyValDocument;
+import elephantdb.persistence.CloseableIterator;
 import elephantdb.persistence.Coordinator;
+import elephantdb.persistence.CursorPersistence;
+import elephantdb.persistence.KeyValCursor;
+import elephantdb.persistence.KeyValPersistence;
+import elephantdb.persistence.MultiGetPersistence;
+import elephantdb.persistence.Persistence;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.io.BytesWritable;
@@ -11,6 +21,7 @@ import java.io.*;
 import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -18,13 +29,30 @@ import java.util.List;
 import java.util.Map;
 
 public class Utils {
+    private static final int MD5_LENGTH = 16;
 
-    public static byte[] md5Hash(byte[] key) {
-        try {
-            return MessageDigest.getInstance("MD5").digest(key);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+    /**
+     * MessageDigest instances aren't thread-safe and are expensive to look up, so every thread
+     * keeps its own MD5 digest along with a scratch buffer for the result.
+     */
+    private static final ThreadLocal<MessageDigest> MD5_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
         }
+    };
+
+    private static final ThreadLocal<byte[]> MD5_BUFFER = new ThreadLocal<byte[]>() {
+        @Override protected byte[] initialValue() {
+            return new byte[MD5_LENGTH];
+        }
+    };
+
+    public static byte[] md5Hash(byte[] key) {
+        return MD5_DIGEST.get().digest(key);
     }
 
     /** Resolves the supplied string into its class. Throws a runtime exception on failure. */
@@ -55,10 +83,186 @@ public class Utils {
      * the supplied key.
      */
     public static int keyShard(byte[] key, int numShards) {
+        assertPositiveShards(numShards);
+        return keyShard(key, numShards, MD5_DIGEST.get(), MD5_BUFFER.get());
+    }
+
+    /**
+     * keyShard for a batch of keys; fills out[i] with the shard for keys[i]. The thread's digest
+     * is only looked up once for the whole batch.
+     */
+    public static void keyShards(byte[][] keys, int numShards, int[] out) {
+        assertPositiveShards(numShards);
+        MessageDigest digest = MD5_DIGEST.get();
+        byte[] hash = MD5_BUFFER.get();
+        for (int i = 0; i < keys.length; i++) {
+            out[i] = keyShard(keys[i], numShards, digest, hash);
+        }
+    }
+
+    private static void assertPositiveShards(int numShards) {
+        if (numShards <= 0) {
+            throw new ArithmeticException("numShards must be positive, got " + numShards);
+        }
+    }
+
+    private static int keyShard(byte[] key, int numShards, MessageDigest digest, byte[] hash) {
+        digest.update(key);
+        try {
+            digest.digest(hash, 0, MD5_LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);
+        }
+        return signedMod(hash, numShards);
+    }
+
+    /**
+     * Fills out[i] with the shard index of shardKeys[i] under the supplied scheme, in one call for
+     * a BatchShardingScheme and one shardIndex call per key for anything else.
+     */
+    public static void shardIndices(ShardingScheme scheme, byte[][] shardKeys, int shardCount, int[] out) {
+        if (scheme instanceof BatchShardingScheme) {
+            ((BatchShardingScheme) scheme).shardIndices(shardKeys, shardCount, out);
+        } else {
+            for (int i = 0; i < shardKeys.length; i++) {
+                out[i] = scheme.shardIndex(shardKeys[i], shardCount);
+            }
+        }
+    }
+
+    public static int[] shardIndices(ShardingScheme scheme, byte[][] shardKeys, int shardCount) {
+        int[] ret = new int[shardKeys.length];
+        shardIndices(scheme, shardKeys, shardCount, ret);
+        return ret;
+    }
+
+    /**
+     * Returns the value of each of the supplied keys in the persistence, in one call for a
+     * MultiGetPersistence and one get per key for anything else.
+     */
+    public static byte[][] multiGet(KeyValPersistence persistence, byte[][] keys) throws IOException {
+        if (persistence instanceof MultiGetPersistence) {
+            return ((MultiGetPersistence) persistence).multiGet(keys);
+        }
+        byte[][] ret = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            ret[i] = persistence.get(keys[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * Opens a cursor over every record of the persistence: its own for a CursorPersistence, and
+     * one stepping through its iterator for anything else.
+     */
+    public static KeyValCursor openCursor(Persistence persistence) throws IOException {
+        if (persistence instanceof CursorPersistence) {
+            return ((CursorPersistence) persistence).openCursor();
+        }
+        final CloseableIterator iterator = persistence.iterator();
+        return new KeyValCursor() {
+            public KeyValDocument next() {
+                return iterator.hasNext() ? (KeyValDocument) iterator.next() : null;
+            }
+
+            public void close() throws IOException {
+                iterator.close();
+            }
+        };
+    }
+
+    /**
+     * Returns the positions of the supplied keys in unsigned lexicographic order, the order
+     * LevelDB and BerkeleyDB store them in. Keys are compared on their first eight bytes as a
+     * single long, and only keys sharing those go on to a full comparison.
+     */
+    public static int[] sortedKeyOrder(byte[][] keys) {
+        int n = keys.length;
+        long[] prefixes = new long[n];
+        int[] ret = new int[n];
+        for (int i = 0; i < n; i++) {
+            long prefix = 0;
+            byte[] key = keys[i];
+            for (int j = 0; j < 8; j++) {
+                prefix = (prefix << 8) | (j < key.length ? key[j] & 0xff : 0);
+            }
+            // flip the sign bit so signed comparison orders the prefixes as unsigned
+            prefixes[i] = prefix ^ Long.MIN_VALUE;
+            ret[i] = i;
+        }
+        mergeSort(keys, prefixes, ret, new int[n], 0, n);
+        return ret;
+    }
+
+    private static void mergeSort(byte[][] keys, long[] prefixes, int[] order, int[] scratch, int lo, int hi) {
+        if (hi - lo < 16) {
+            for (int i = lo + 1; i < hi; i++) {
+                int cur = order[i];
+                int j = i;
+                while (j > lo && compareOrder(keys, prefixes, order[j - 1], cur) > 0) {
+                    order[j] = order[j - 1];
+                    j--;
+                }
+                order[j] = cur;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(keys, prefixes, order, scratch, lo, mid);
+        mergeSort(keys, prefixes, order, scratch, mid, hi);
+        if (compareOrder(keys, prefixes, order[mid - 1], order[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(order, lo, scratch, lo, hi - lo);
+        int i = lo, j = mid;
+        for (int k = lo; k < hi; k++) {
+            if (j >= hi || (i < mid && compareOrder(keys, prefixes, scratch[i], scratch[j]) <= 0)) {
+                order[k] = scratch[i++];
+            } else {
+                order[k] = scratch[j++];
+            }
+        }
+    }
+
+    private static int compareOrder(byte[][] keys, long[] prefixes, int a, int b) {
+        if (prefixes[a] != prefixes[b]) {
+            return prefixes[a] < prefixes[b] ? -1 : 1;
+        }
+        return RangeScheme.compareKeys(keys[a], keys[b]);
+    }
+
+    /**
+     * The original implementation of keyShard. Every domain written so far was sharded with
+     * this, so keyShard must always agree with it; kept around to check against.
+     */
+    public static int keyShardLegacy(byte[] key, int numShards) {
         BigInteger hash = new BigInteger(md5Hash(key));
         return hash.mod(new BigInteger("" + numShards)).intValue();
     }
 
+    /**
+     * Returns the same result as new BigInteger(bytes).mod(BigInteger.valueOf(modulus)) without
+     * allocating. The bytes are a big-endian two's complement integer; the unsigned value is
+     * reduced byte by byte, and if the sign bit is set 2^(8 * bytes.length) is subtracted back
+     * out, mod the modulus.
+     */
+    static int signedMod(byte[] bytes, int modulus) {
+        long m = modulus;
+        long rem = 0;
+        long wrap = 1;
+        for (byte b : bytes) {
+            rem = ((rem << 8) | (b & 0xff)) % m;
+            wrap = (wrap << 8) % m;
+        }
+        if (bytes.length > 0 && bytes[0] < 0) {
+            rem = (rem - wrap) % m;
+            if (rem < 0) {
+                rem += m;
+            }
+        }
+        return (int) rem;
+    }
+
     public static String convertStreamToString(InputStream is) throws IOException {
         StringBuilder sb = new StringBuilder();
         String line;
@@ -149,4 +353,34 @@ public class Utils {
         System.arraycopy(padded, 0, ret, 0, ret.length);
         return ret;
     }
+
+    /**
+     * Prefix for bytes hex-encoded into YAML. Without it, hex made only of digits ("3132") or
+     * that looks like a float ("1e5") is read back as a number rather than a string.
+     */
+    public static final String YAML_HEX_PREFIX = "x";
+
+    public static String toYamlHex(byte[] bytes) {
+        return YAML_HEX_PREFIX + StringUtils.byteToHexString(bytes);
+    }
+
+    /**
+     * Inverse of toYamlHex. Throws IllegalArgumentException unless the value is a String
+     * carrying YAML_HEX_PREFIX.
+     */
+    public static byte[] fromYamlHex(Object o) {
+        return StringUtils.hexStringToByte(stripYamlHexPrefix(o));
+    }
+
+    /**
+     * Returns the hex following YAML_HEX_PREFIX in a value read from YAML. Throws
+     * IllegalArgumentException unless the value is a String carrying the prefix.
+     */
+    public static String stripYamlHexPrefix(Object o) {
+        if (!(o instanceof String) || !((String) o).startsWith(YAML_HEX_PREFIX)) {
+            throw new IllegalArgumentException("Expected hex prefixed with \""
+                + YAML_HEX_PREFIX + "\", got " + o);
+        }
+        return ((String) o).substring(YAML_HEX_PREFIX.length());
+    }
 }
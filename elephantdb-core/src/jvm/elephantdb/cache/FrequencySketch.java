@@ -0,0 +1,76 @@
+package elephantdb.cache;
+
+/**
+ * A count-min sketch of 4-bit counters that estimates how often each key hash has been seen
+ * recently. Once the number of increments reaches ten times the table size, every counter is
+ * halved, so the estimates track recent popularity instead of all-time popularity. This is the
+ * admission filter in TinyLFU.
+ *
+ * Not thread-safe; ValueCache only touches a sketch under its segment's lock.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = new long[] {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /**
+     * Sizes the sketch for roughly the supplied number of distinct entries.
+     */
+    FrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(16, expectedEntries - 1) << 1);
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * Returns the estimated number of recent occurrences of the hash, between 0 and 15.
+     */
+    int frequency(long hash) {
+        int freq = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = spread(hash, i);
+            int shift = (int) (h & 15) << 2;
+            freq = Math.min(freq, (int) ((table[slot(h)] >>> shift) & 15));
+        }
+        return freq;
+    }
+
+    void increment(long hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = spread(hash, i);
+            int slot = slot(h);
+            int shift = (int) (h & 15) << 2;
+            if (((table[slot] >>> shift) & 15) != 15) {
+                table[slot] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int slot(long spread) {
+        return (int) (spread >>> 32) & tableMask;
+    }
+
+    private static long spread(long hash, int i) {
+        long h = (hash + SEEDS[i]) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,72 @@
+package elephantdb.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded sample of the keys a domain was recently asked for, used to warm the shards of a new
+ * version before they start serving. One request in every `rate` is recorded into a ring of
+ * `capacity` slots, overwriting the oldest, so most requests cost a single atomic increment.
+ * Keys show up in the ring about as often as they're asked for, which is what hottest() ranks by.
+ */
+public class KeySample {
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_RATE = 16;
+
+    private final AtomicReferenceArray<byte[]> slots;
+    private final int rate;
+    private final AtomicLong requests = new AtomicLong();
+
+    public KeySample() {
+        this(DEFAULT_CAPACITY, DEFAULT_RATE);
+    }
+
+    public KeySample(int capacity, int rate) {
+        this.slots = new AtomicReferenceArray<byte[]>(capacity);
+        this.rate = rate;
+    }
+
+    public void record(byte[] key) {
+        long n = requests.getAndIncrement();
+        if (n % rate == 0) {
+            slots.set((int) ((n / rate) % slots.length()), key);
+        }
+    }
+
+    /**
+     * Returns the distinct sampled keys, the ones sampled most often first.
+     */
+    public List<byte[]> hottest() {
+        final Map<ByteBuffer, int[]> counts = new HashMap<ByteBuffer, int[]>();
+        for (int i = 0; i < slots.length(); i++) {
+            byte[] key = slots.get(i);
+            if (key != null) {
+                ByteBuffer k = ByteBuffer.wrap(key);
+                int[] count = counts.get(k);
+                if (count == null) {
+                    counts.put(k, new int[] {1});
+                } else {
+                    count[0]++;
+                }
+            }
+        }
+        List<ByteBuffer> keys = new ArrayList<ByteBuffer>(counts.keySet());
+        Collections.sort(keys, new Comparator<ByteBuffer>() {
+            public int compare(ByteBuffer a, ByteBuffer b) {
+                return counts.get(b)[0] - counts.get(a)[0];
+            }
+        });
+        List<byte[]> ret = new ArrayList<byte[]>(keys.size());
+        for (ByteBuffer k : keys) {
+            ret.add(k.array());
+        }
+        return ret;
+    }
+}
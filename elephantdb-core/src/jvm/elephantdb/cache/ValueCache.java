@@ -0,0 +1,446 @@
+package elephantdb.cache;
+
+import elephantdb.partition.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A size-bounded cache of key-value pairs for one domain, consulted by the server before it goes
+ * to a shard's persistence.
+ *
+ * Values live off-heap, split into fixed-size chunks of a direct buffer, so a large cache adds
+ * little to the heap the collector has to scan; only the keys and the per-entry bookkeeping stay
+ * on-heap. Entries are kept under the W-TinyLFU policy: new entries go into a small LRU window,
+ * and an entry leaving the window only displaces the main region's victim if a frequency sketch
+ * says it has been requested more often recently. Under a skewed workload this keeps the hot
+ * keys resident while one-off reads pass through.
+ *
+ * Every entry carries the version it was read from, and a lookup only hits an entry of the
+ * version it asks for, so a hot-swap invalidates the whole cache at once; clear() then frees the
+ * old entries' memory. The cache is split into independently locked segments.
+ */
+public class ValueCache {
+    public static final int DEFAULT_CHUNK_SIZE = 128;
+
+    private static final long MIN_SEGMENT_BYTES = 1 << 20;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long maxBytes;
+
+    public ValueCache(long maxBytes) {
+        this(maxBytes, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ValueCache(long maxBytes, int chunkSize) {
+        if (maxBytes < chunkSize || chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid cache size " + maxBytes
+                + " with chunk size " + chunkSize);
+        }
+        int count = MAX_SEGMENTS;
+        while (count > 1 && maxBytes / count < MIN_SEGMENT_BYTES) {
+            count >>= 1;
+        }
+        while (maxBytes / count > Integer.MAX_VALUE - chunkSize) {
+            count <<= 1;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment((int) (maxBytes / count / chunkSize), chunkSize);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached value for the key in the supplied version, or null on a miss. Every
+     * call counts towards the key's frequency, hit or miss.
+     */
+    public byte[] get(long version, byte[] key) {
+        long hash = Hashing.xxHash64(key);
+        return segmentFor(hash).get(hash, version, key);
+    }
+
+    /**
+     * Offers the value read for the key in the supplied version to the cache. Values larger than
+     * an eighth of a segment aren't cached.
+     */
+    public void put(long version, byte[] key, byte[] value) {
+        long hash = Hashing.xxHash64(key);
+        segmentFor(hash).put(hash, version, key, value);
+    }
+
+    /**
+     * Drops every entry. Frequencies are kept, since keys that were hot in the old version are
+     * likely to be hot in the new one.
+     */
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHitCount() {
+        long ret = 0;
+        for (Segment s : segments) {
+            ret += s.hits;
+        }
+        return ret;
+    }
+
+    public long getMissCount() {
+        long ret = 0;
+        for (Segment s : segments) {
+            ret += s.misses;
+        }
+        return ret;
+    }
+
+    public long getEvictionCount() {
+        long ret = 0;
+        for (Segment s : segments) {
+            ret += s.evictions;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the off-heap bytes held by cached values, rounded up to whole chunks.
+     */
+    public long getBytesInUse() {
+        long ret = 0;
+        for (Segment s : segments) {
+            ret += s.bytesInUse();
+        }
+        return ret;
+    }
+
+    public long size() {
+        long ret = 0;
+        for (Segment s : segments) {
+            ret += s.size;
+        }
+        return ret;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 32) & (segments.length - 1)];
+    }
+
+    private static final int NONE = 0;
+    private static final int WINDOW = 1;
+    private static final int PROBATION = 2;
+    private static final int PROTECTED = 3;
+
+    private static class Entry {
+        final byte[] key;
+        final long hash;
+        final long version;
+        final int length;
+        final int[] chunks;
+
+        Entry next;
+        Entry prev;
+        Entry after;
+        int queue = NONE;
+
+        Entry(byte[] key, long hash, long version, int length, int[] chunks) {
+            this.key = key;
+            this.hash = hash;
+            this.version = version;
+            this.length = length;
+            this.chunks = chunks;
+        }
+
+        Entry() {
+            this(null, 0, 0, 0, null);
+            prev = this;
+            after = this;
+        }
+    }
+
+    /**
+     * One lock's worth of the cache: its own arena, hash table, queues and sketch. The window
+     * gets 1% of the segment's chunks and the protected queue 80% of the rest.
+     */
+    private static class Segment {
+        private final int chunkSize;
+        private final int totalChunks;
+        private final int maxWindow;
+        private final int maxMain;
+        private final int maxProtected;
+        private final int maxEntryChunks;
+        private final ByteBuffer arena;
+        private final int[] freeChunks;
+        private final FrequencySketch sketch;
+
+        private final Entry window = new Entry();
+        private final Entry probation = new Entry();
+        private final Entry protect = new Entry();
+
+        private Entry[] table = new Entry[64];
+        private int freeCount;
+        private int windowChunks = 0;
+        private int probationChunks = 0;
+        private int protectedChunks = 0;
+
+        volatile int size = 0;
+        volatile long hits = 0;
+        volatile long misses = 0;
+        volatile long evictions = 0;
+
+        Segment(int totalChunks, int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.totalChunks = totalChunks;
+            this.maxWindow = Math.max(1, totalChunks / 100);
+            this.maxMain = totalChunks - maxWindow;
+            this.maxProtected = (int) (maxMain * 0.8);
+            this.maxEntryChunks = Math.max(1, totalChunks / 8);
+            this.arena = ByteBuffer.allocateDirect(totalChunks * chunkSize);
+            this.freeChunks = new int[totalChunks];
+            // an entry takes at least one chunk, so there are never more entries than chunks
+            this.sketch = new FrequencySketch(totalChunks);
+            resetChunks();
+        }
+
+        synchronized byte[] get(long hash, long version, byte[] key) {
+            sketch.increment(hash);
+            Entry e = find(hash, key);
+            if (e == null || e.version != version) {
+                if (e != null) {
+                    remove(e);
+                }
+                misses++;
+                return null;
+            }
+            hits++;
+            onAccess(e);
+            return read(e);
+        }
+
+        synchronized void put(long hash, long version, byte[] key, byte[] value) {
+            int needed = Math.max(1, (value.length + chunkSize - 1) / chunkSize);
+            if (needed > maxEntryChunks) {
+                return;
+            }
+            Entry existing = find(hash, key);
+            if (existing != null) {
+                remove(existing);
+            }
+            // Make room in the window by sending its oldest entries through admission. As the
+            // main region never holds more than maxMain chunks, that leaves enough free chunks
+            // unless the value is larger than the whole window.
+            while (windowChunks > 0 && windowChunks + needed > maxWindow) {
+                Entry candidate = window.prev;
+                unlink(candidate);
+                admit(candidate);
+            }
+            // Such a value competes with the main region's victims itself.
+            if (freeCount < needed) {
+                int freq = sketch.frequency(hash);
+                while (freeCount < needed) {
+                    Entry victim = victim();
+                    if (victim == null || freq <= sketch.frequency(victim.hash)) {
+                        return;
+                    }
+                    evict(victim);
+                }
+            }
+            int[] chunks = new int[needed];
+            for (int i = 0; i < needed; i++) {
+                chunks[i] = freeChunks[--freeCount];
+            }
+            Entry e = new Entry(key, hash, version, value.length, chunks);
+            write(e, value);
+            insert(e);
+            link(window, e, WINDOW);
+        }
+
+        synchronized void clear() {
+            Arrays.fill(table, null);
+            for (Entry head : new Entry[] {window, probation, protect}) {
+                head.prev = head;
+                head.after = head;
+            }
+            windowChunks = 0;
+            probationChunks = 0;
+            protectedChunks = 0;
+            size = 0;
+            resetChunks();
+        }
+
+        synchronized long bytesInUse() {
+            return (long) (totalChunks - freeCount) * chunkSize;
+        }
+
+        /**
+         * Moves an entry leaving the window into the main region, evicting main victims for as
+         * long as the candidate is more popular than they are. If it isn't, the candidate is
+         * evicted instead.
+         */
+        private void admit(Entry candidate) {
+            int candidateFreq = sketch.frequency(candidate.hash);
+            while (probationChunks + protectedChunks + candidate.chunks.length > maxMain) {
+                Entry victim = victim();
+                if (victim != null && candidateFreq > sketch.frequency(victim.hash)) {
+                    evict(victim);
+                } else {
+                    evict(candidate);
+                    return;
+                }
+            }
+            link(probation, candidate, PROBATION);
+        }
+
+        private void onAccess(Entry e) {
+            switch (e.queue) {
+            case WINDOW:
+                unlink(e);
+                link(window, e, WINDOW);
+                break;
+            case PROBATION:
+            case PROTECTED:
+                unlink(e);
+                link(protect, e, PROTECTED);
+                while (protectedChunks > maxProtected) {
+                    Entry demoted = protect.prev;
+                    unlink(demoted);
+                    link(probation, demoted, PROBATION);
+                }
+                break;
+            }
+        }
+
+        /**
+         * Returns the least recently used entry of the main region, or null if it's empty.
+         */
+        private Entry victim() {
+            if (probation.prev != probation) {
+                return probation.prev;
+            } else if (protect.prev != protect) {
+                return protect.prev;
+            }
+            return null;
+        }
+
+        private void evict(Entry e) {
+            remove(e);
+            evictions++;
+        }
+
+        private void remove(Entry e) {
+            unlink(e);
+            int idx = bucket(e.hash);
+            if (table[idx] == e) {
+                table[idx] = e.next;
+            } else {
+                Entry p = table[idx];
+                while (p.next != e) {
+                    p = p.next;
+                }
+                p.next = e.next;
+            }
+            for (int chunk : e.chunks) {
+                freeChunks[freeCount++] = chunk;
+            }
+            size--;
+        }
+
+        private Entry find(long hash, byte[] key) {
+            for (Entry e = table[bucket(hash)]; e != null; e = e.next) {
+                if (e.hash == hash && Arrays.equals(e.key, key)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        private void insert(Entry e) {
+            if (size >= table.length - (table.length >> 2)) {
+                Entry[] old = table;
+                table = new Entry[old.length << 1];
+                for (Entry head : old) {
+                    while (head != null) {
+                        Entry next = head.next;
+                        int idx = bucket(head.hash);
+                        head.next = table[idx];
+                        table[idx] = head;
+                        head = next;
+                    }
+                }
+            }
+            int idx = bucket(e.hash);
+            e.next = table[idx];
+            table[idx] = e;
+            size++;
+        }
+
+        private int bucket(long hash) {
+            return (int) hash & (table.length - 1);
+        }
+
+        private void link(Entry head, Entry e, int queue) {
+            e.after = head.after;
+            e.prev = head;
+            head.after.prev = e;
+            head.after = e;
+            e.queue = queue;
+            adjust(queue, e.chunks.length);
+        }
+
+        private void unlink(Entry e) {
+            if (e.queue == NONE) {
+                return;
+            }
+            e.prev.after = e.after;
+            e.after.prev = e.prev;
+            e.prev = null;
+            e.after = null;
+            adjust(e.queue, -e.chunks.length);
+            e.queue = NONE;
+        }
+
+        private void adjust(int queue, int delta) {
+            switch (queue) {
+            case WINDOW:
+                windowChunks += delta;
+                break;
+            case PROBATION:
+                probationChunks += delta;
+                break;
+            case PROTECTED:
+                protectedChunks += delta;
+                break;
+            }
+        }
+
+        private void write(Entry e, byte[] value) {
+            for (int i = 0; i < e.chunks.length; i++) {
+                int off = i * chunkSize;
+                arena.position(e.chunks[i] * chunkSize);
+                arena.put(value, off, Math.min(chunkSize, value.length - off));
+            }
+        }
+
+        private byte[] read(Entry e) {
+            byte[] ret = new byte[e.length];
+            for (int i = 0; i < e.chunks.length; i++) {
+                int off = i * chunkSize;
+                arena.position(e.chunks[i] * chunkSize);
+                arena.get(ret, off, Math.min(chunkSize, ret.length - off));
+            }
+            return ret;
+        }
+
+        private void resetChunks() {
+            for (int i = 0; i < totalChunks; i++) {
+                freeChunks[i] = totalChunks - 1 - i;
+            }
+            freeCount = totalChunks;
+        }
+    }
+}
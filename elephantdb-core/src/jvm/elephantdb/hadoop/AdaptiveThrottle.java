@@ -0,0 +1,76 @@
+package elephantdb.hadoop;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A RateThrottle that steers its rate by how the node is serving. Every tick, the caller reports
+ * how many reads the node answered since the last one, their recent p99 latency and the disks'
+ * average queue depth. While the p99 is over the latency SLO or the disks are saturated, the rate
+ * is halved, down to a floor. While both are comfortably clear it climbs by a tenth of the
+ * ceiling per tick, and a node that served nothing doubles it, so updates run at full speed
+ * when nobody is reading and back off within a tick or two when readers start to suffer.
+ */
+public class AdaptiveThrottle extends RateThrottle {
+    public static Logger LOG = Logger.getLogger(AdaptiveThrottle.class);
+
+    // latency below this fraction of the SLO counts as comfortably clear
+    private static final double HEADROOM = 0.8;
+
+    private final long minBytesPerSecond;
+    private final long maxBytesPerSecond;
+    private final double latencySloMillis;
+    private final double maxQueueDepth;
+
+    public AdaptiveThrottle(long minBytesPerSecond, long maxBytesPerSecond,
+        double latencySloMillis, double maxQueueDepth) {
+        super(maxBytesPerSecond);
+        if (minBytesPerSecond <= 0 || minBytesPerSecond > maxBytesPerSecond) {
+            throw new IllegalArgumentException("Invalid rate range " + minBytesPerSecond + " - "
+                + maxBytesPerSecond);
+        }
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.latencySloMillis = latencySloMillis;
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    public long getMinBytesPerSecond() {
+        return minBytesPerSecond;
+    }
+
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public double getLatencySloMillis() {
+        return latencySloMillis;
+    }
+
+    /**
+     * Adjusts the rate for one tick and returns the new one.
+     *
+     * @param requests   reads served since the last tick
+     * @param p99Millis  their recent 99th percentile latency
+     * @param queueDepth the busiest disk's average queue depth over the tick
+     */
+    public synchronized long observe(long requests, double p99Millis, double queueDepth) {
+        long rate = getBytesPerSecond();
+        long next;
+        if ((requests > 0 && p99Millis > latencySloMillis) || queueDepth > maxQueueDepth) {
+            next = Math.max(minBytesPerSecond, rate / 2);
+        } else if (requests == 0 && queueDepth <= maxQueueDepth * HEADROOM) {
+            next = Math.min(maxBytesPerSecond, rate * 2);
+        } else if (p99Millis <= latencySloMillis * HEADROOM
+                   && queueDepth <= maxQueueDepth * HEADROOM) {
+            next = Math.min(maxBytesPerSecond, rate + maxBytesPerSecond / 10);
+        } else {
+            next = rate;
+        }
+        if (next != rate) {
+            setBytesPerSecond(next);
+            LOG.debug("Download rate " + rate + " -> " + next + " B/s (requests " + requests
+                + ", p99 " + p99Millis + "ms, disk queue " + queueDepth + ")");
+        }
+        return next;
+    }
+}
@@ -0,0 +1,82 @@
+package elephantdb.hadoop;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Samples the average I/O queue depth of the local block devices from /proc/diskstats, the
+ * figure iostat reports as avgqu-sz. Each sample covers the time since the previous one. Where
+ * /proc/diskstats doesn't exist, every sample is 0.
+ */
+public class DiskStats {
+    public static final String DISKSTATS = "/proc/diskstats";
+
+    private final File source;
+    private Map<String, Long> lastWeightedMillis = new HashMap<String, Long>();
+    private long lastSampleNanos = System.nanoTime();
+
+    public DiskStats() {
+        this(new File(DISKSTATS));
+    }
+
+    public DiskStats(File source) {
+        this.source = source;
+        if (source.exists()) {
+            lastWeightedMillis = readWeightedMillis();
+        }
+    }
+
+    /**
+     * Returns the highest average queue depth of any device since the last sample.
+     */
+    public synchronized double sampleQueueDepth() {
+        if (!source.exists()) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        double elapsedMillis = (now - lastSampleNanos) / 1e6;
+        Map<String, Long> current = readWeightedMillis();
+        double ret = 0;
+        if (elapsedMillis > 0) {
+            for (Map.Entry<String, Long> e : current.entrySet()) {
+                Long last = lastWeightedMillis.get(e.getKey());
+                if (last != null && e.getValue() >= last) {
+                    ret = Math.max(ret, (e.getValue() - last) / elapsedMillis);
+                }
+            }
+        }
+        lastWeightedMillis = current;
+        lastSampleNanos = now;
+        return ret;
+    }
+
+    /**
+     * Returns device name -> milliseconds spent doing I/O, weighted by the number of I/Os in
+     * flight (the 11th statistic after the device name).
+     */
+    private Map<String, Long> readWeightedMillis() {
+        Map<String, Long> ret = new HashMap<String, Long>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(source));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.trim().split("\\s+");
+                    if (fields.length >= 14 && !fields[2].startsWith("loop")
+                        && !fields[2].startsWith("ram") && fields[13].matches("\\d+")) {
+                        ret.put(fields[2], Long.parseLong(fields[13]));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // an unreadable sample just reports no queue
+        }
+        return ret;
+    }
+}
@@ -2,10 +2,13 @@ package elephantdb.hadoop;
 
 import elephantdb.DomainSpec;
 import elephantdb.Utils;
-import elephantdb.persistence.CloseableIterator;
+import elephantdb.persistence.KeyValCursor;
 import elephantdb.persistence.Persistence;
+import elephantdb.persistence.ShardSet;
 import elephantdb.document.KeyValDocument;
+import elephantdb.partition.ShardingScheme;
 import elephantdb.store.DomainStore;
+import elephantdb.store.ShardManifest;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
@@ -40,10 +43,15 @@ public class ElephantInputFormat implements InputFormat<NullWritable, ElephantRe
         Args args;
         LocalElephantManager elephantManager;
         Persistence lp;
-        CloseableIterator iterator;
+        KeyValCursor cursor;
         boolean finished = false;
         int numRead = 0;
+        // from the shard's manifest; 0 if it has none
+        long expectedRecords = 0;
         boolean hasShard = false;
+        // set when the shard was inherited from a version with fewer shards
+        ShardingScheme inheritedScheme = null;
+        int shardIdx;
 
         public ElephantRecordReader(ElephantInputSplit split, Reporter reporter)
                 throws IOException {
@@ -63,13 +71,28 @@ public class ElephantInputFormat implements InputFormat<NullWritable, ElephantRe
                 Map<String, Object> opts = split.spec.getPersistenceOptions();
                 lp = split.spec.getCoordinator().openPersistenceForRead(localpath, opts);
 
-                iterator = lp.iterator();
+                ShardManifest manifest =
+                    ShardManifest.readFromFileSystem(FileSystem.getLocal(split.conf), localpath);
+                if (manifest != null) {
+                    expectedRecords = manifest.getRecordCount();
+                }
+
+                if (DomainStore.isInherited(FileSystem.getLocal(split.conf), localpath)) {
+                    inheritedScheme = split.spec.getShardScheme();
+                    shardIdx = Integer.parseInt(new Path(split.shardPath).getName());
+                }
+
+                cursor = Utils.openCursor(lp);
                 hasShard = true;
             }
-                
-            if (iterator.hasNext()) {
-                Object document = iterator.next();
-                KeyValDocument doc = (KeyValDocument) document;
+
+            KeyValDocument doc;
+            while ((doc = cursor.next()) != null) {
+                if (inheritedScheme != null &&
+                    inheritedScheme.shardIndex(doc.key, split.spec.getNumShards()) != shardIdx) {
+                    // left behind by an incremental reshard; the live copy is in another shard.
+                    continue;
+                }
 
                 v.key = doc.key;
                 v.value = doc.value;
@@ -80,10 +103,10 @@ public class ElephantInputFormat implements InputFormat<NullWritable, ElephantRe
                 }
 
                 return true;
-            } else {
-                if (reporter != null) { reporter.progress(); }
-                return false;
             }
+            finished = true;
+            if (reporter != null) { reporter.progress(); }
+            return false;
         }
 
         public NullWritable createKey() {
@@ -100,14 +123,20 @@ public class ElephantInputFormat implements InputFormat<NullWritable, ElephantRe
         }
 
         public void close() throws IOException {
-            iterator.close();
-            lp.close();
+            if (cursor != null) {
+                cursor.close();
+            }
+            if (lp != null) {
+                lp.close();
+            }
             elephantManager.cleanup();
         }
 
         public float getProgress() throws IOException {
             if (finished) {
                 return 1;
+            } else if (expectedRecords > 0) {
+                return Math.min(1, (float) numRead / expectedRecords);
             } else {
                 return 0;
             }
@@ -134,10 +163,16 @@ public class ElephantInputFormat implements InputFormat<NullWritable, ElephantRe
             this.conf = conf;
         }
         
-        // TODO: Store this result in a variable and use it to update the
-        // percentage complete.
+        /**
+         * Returns the key and value bytes recorded in the shard's manifest, falling back to
+         * listing the shard for shards written without one.
+         */
         public long getLength() throws IOException {
             FileSystem fs = Utils.getFS(shardPath, conf);
+            ShardManifest manifest = ShardManifest.readFromFileSystem(fs, shardPath);
+            if (manifest != null) {
+                return manifest.getTotalBytes();
+            }
             return fs.getContentSummary(new Path(shardPath)).getLength();
         }
 
@@ -166,16 +201,13 @@ public class ElephantInputFormat implements InputFormat<NullWritable, ElephantRe
         Args args = (Args) Utils.getObject(jc, ARGS_CONF);
         FileSystem fs = Utils.getFS(args.inputDirHdfs, jc);
         DomainStore store = new DomainStore(fs, args.inputDirHdfs);
-        String versionPath;
-        if (args.version == null) {
-            versionPath = store.mostRecentVersionPath();
-        } else {
-            versionPath = store.versionPath(args.version);
-        }
+        long version = (args.version == null) ? store.mostRecentVersion() : args.version;
+        // resolves shards the version references in earlier versions
+        ShardSet shards = store.getShardSet(version);
         DomainSpec spec = store.getSpec();
         List<InputSplit> ret = new ArrayList<InputSplit>();
         for (int i = 0; i < spec.getNumShards(); i++) {
-            String shardPath = versionPath + "/" + i;
+            String shardPath = shards.shardPath(i);
             if (fs.exists(new Path(shardPath))) {
                 ret.add(new ElephantInputSplit(new Path(shardPath).makeQualified(fs).toString(), spec, jc));
             }
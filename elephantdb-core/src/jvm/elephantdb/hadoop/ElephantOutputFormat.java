@@ -4,7 +4,9 @@ import elephantdb.DomainSpec;
 import elephantdb.Utils;
 import elephantdb.persistence.Coordinator;
 import elephantdb.persistence.Persistence;
+import elephantdb.persistence.ShardBloomFilter;
 import elephantdb.document.KeyValDocument;
+import elephantdb.store.ShardManifest;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -14,6 +16,7 @@ import org.apache.hadoop.util.Progressable;
 import org.apache.log4j.Logger;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
@@ -24,6 +27,12 @@ public class ElephantOutputFormat implements OutputFormat<IntWritable, ElephantR
     public static Logger LOG = Logger.getLogger(ElephantOutputFormat.class);
     public static final String ARGS_CONF = "elephant.output.args";
 
+    /**
+     * Set in the persistence options the writer opens shards with, unless the spec already sets
+     * it, so persistences can switch to a write path tuned for one-off bulk loading.
+     */
+    public static final String BULK_LOAD_OPT = "bulk_load";
+
     // This gets serialized in via the conf.
     public static class Args implements Serializable {
         public DomainSpec spec;
@@ -42,6 +51,9 @@ public class ElephantOutputFormat implements OutputFormat<IntWritable, ElephantR
         FileSystem fileSystem;
         Args args;
         Map<Integer, Persistence> lps = new HashMap<Integer, Persistence>();
+        Map<Integer, ShardBloomFilter.Builder> filters = new HashMap<Integer, ShardBloomFilter.Builder>();
+        Map<String, Object> persistenceOptions;
+        double bloomBitsPerKey;
         Progressable progressable;
         LocalElephantManager localManager;
 
@@ -54,6 +66,14 @@ public class ElephantOutputFormat implements OutputFormat<IntWritable, ElephantR
             this.args = args;
 
             this.progressable = progressable;
+            persistenceOptions = new HashMap<String, Object>();
+            if (args.spec.getPersistenceOptions() != null) {
+                persistenceOptions.putAll(args.spec.getPersistenceOptions());
+            }
+            if (!persistenceOptions.containsKey(BULK_LOAD_OPT)) {
+                persistenceOptions.put(BULK_LOAD_OPT, true);
+            }
+            bloomBitsPerKey = ShardBloomFilter.bitsPerKey(persistenceOptions);
             localManager = new LocalElephantManager(fileSystem, args.spec, LocalElephantManager.getTmpDirs(conf));
         }
 
@@ -66,9 +86,12 @@ public class ElephantOutputFormat implements OutputFormat<IntWritable, ElephantR
                 String localShard = localManager.downloadRemoteShard("" + shardIdx, null);
 
                 Coordinator fact = args.spec.getCoordinator();
-                lp = fact.openPersistenceForAppend(localShard, args.spec.getPersistenceOptions());
+                lp = fact.openPersistenceForAppend(localShard, persistenceOptions);
 
                 lps.put(shardIdx, lp);
+                if (bloomBitsPerKey > 0) {
+                    filters.put(shardIdx, new ShardBloomFilter.Builder());
+                }
                 progress();
             }
             return lp;
@@ -80,6 +103,9 @@ public class ElephantOutputFormat implements OutputFormat<IntWritable, ElephantR
             KeyValDocument doc = new KeyValDocument(carrier.key, carrier.value);
 
             lp.index(doc);
+            if (bloomBitsPerKey > 0) {
+                filters.get(shard.get()).add(carrier.key);
+            }
 
             bumpProgress();
         }
@@ -105,6 +131,12 @@ public class ElephantOutputFormat implements OutputFormat<IntWritable, ElephantR
                 LOG.info("Closing LP for shard " + shard + " at " + lpDir);
                 lps.get(shard).close();
                 LOG.info("Closed LP for shard " + shard + " at " + lpDir);
+                if (filters.containsKey(shard)) {
+                    filters.remove(shard).build(bloomBitsPerKey).writeToShard(lpDir);
+                    LOG.info("Wrote bloom filter for shard " + shard + " at " + lpDir);
+                }
+                writeManifest(lpDir);
+                LOG.info("Wrote manifest for shard " + shard + " at " + lpDir);
                 progress();
                 String remoteDir = args.outputDirHdfs + "/" + shard;
                 
@@ -129,6 +161,25 @@ public class ElephantOutputFormat implements OutputFormat<IntWritable, ElephantR
             localManager.cleanup();
         }
 
+        /**
+         * Summarizes the closed shard by scanning it, rather than tallying writes, so
+         * overwritten keys and records carried over from an existing shard count correctly.
+         */
+        private void writeManifest(String lpDir) throws IOException {
+            Persistence lp = args.spec.getCoordinator()
+                .openPersistenceForRead(lpDir, args.spec.getPersistenceOptions());
+            ShardManifest manifest;
+            try {
+                manifest = ShardManifest.build(lp);
+            } finally {
+                lp.close();
+            }
+            manifest.addFileDigests(new File(lpDir));
+            // the raw filesystem, so no .crc file ends up in the shard
+            FileSystem localFs = FileSystem.getLocal(new Configuration()).getRawFileSystem();
+            manifest.writeToFileSystem(localFs, lpDir);
+        }
+
         private void progress() {
             if (progressable != null)
                 progressable.progress();
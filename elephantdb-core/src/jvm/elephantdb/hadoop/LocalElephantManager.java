@@ -2,7 +2,7 @@ package elephantdb.hadoop;
 
 import elephantdb.DomainSpec;
 import elephantdb.persistence.Coordinator;
-import org.apache.commons.io.FileUtils;
+import elephantdb.store.ShardManifest;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -36,6 +36,7 @@ public class LocalElephantManager {
     String localRoot;
     DomainSpec spec;
     Reporter reporter;
+    TransferEngine transfers = null;
 
     public LocalElephantManager(FileSystem fs, DomainSpec spec, List<String> tmpDirs, Reporter reporter) throws IOException {
         localRoot = selectAndFlagRoot(tmpDirs);
@@ -50,7 +51,8 @@ public class LocalElephantManager {
 
     /**
      * Creates a temporary directory, downloads the remotePath (tied to the FS), and returns it. If
-     * remotePath is null or doesn't exist, creates an empty local elephant and closes it.
+     * remotePath is null or doesn't exist, creates an empty local elephant and closes it. The
+     * download is checked against the shard's manifest when it has one.
      * @param id
      * @param remotePath
      * @return
@@ -64,18 +66,23 @@ public class LocalElephantManager {
             if(reporter != null)
                 reporter.progress();
         } else {
-            fs.copyToLocalFile(new Path(remotePath), new Path(returnDir));
-            if(reporter != null)
-                reporter.progress();
-            Collection<File> crcs =
-                    FileUtils.listFiles(new File(returnDir), new String[]{"crc"}, true);
-            for (File crc : crcs) {
-                FileUtils.forceDelete(crc);
-            }
+            transfers().downloadShard(fs, remotePath, returnDir,
+                ShardManifest.readFromFileSystem(fs, remotePath), reporter);
         }
         return returnDir;
     }
 
+    /**
+     * The engine's threads are only started by the first real download; record writers mostly
+     * create empty shards and never need them.
+     */
+    private synchronized TransferEngine transfers() {
+        if (transfers == null) {
+            transfers = new TransferEngine(TransferEngine.DEFAULT_STREAMS, null);
+        }
+        return transfers;
+    }
+
     public String localTmpDir(String id) {
         return localRoot + "/" + id;
     }
@@ -86,6 +93,12 @@ public class LocalElephantManager {
 
 
     public void cleanup() throws IOException {
+        synchronized (this) {
+            if (transfers != null) {
+                transfers.shutdown();
+                transfers = null;
+            }
+        }
         FileSystem.getLocal(new Configuration()).delete(new Path(localRoot), true);
         dirFlag.delete();
     }
@@ -0,0 +1,251 @@
+package elephantdb.hadoop;
+
+import elephantdb.store.ShardManifest;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only FileSystem over the shards another server exposes through its PeerServer, so
+ * TransferEngine can read from a peer exactly as it reads from the remote store. Paths are
+ * /domain/version/shard, optionally followed by a file name.
+ *
+ * A stream from open(Path, int) asks the peer for the rest of the file after every seek; one from
+ * open(Path, long, long) only asks for its range.
+ */
+public class PeerFileSystem extends FileSystem implements RangedFileSystem {
+    public static final String SCHEME = "peer";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private URI uri;
+    private Path workingDir = new Path("/");
+
+    /**
+     * @param address the peer's PeerServer, as host:port
+     */
+    public PeerFileSystem(String address) throws IOException {
+        initialize(URI.create(SCHEME + "://" + address + "/"), new Configuration());
+    }
+
+    @Override public void initialize(URI uri, Configuration conf) throws IOException {
+        super.initialize(uri, conf);
+        setConf(conf);
+        this.uri = uri;
+    }
+
+    @Override public URI getUri() {
+        return uri;
+    }
+
+    private URL url(Path path) throws IOException {
+        return new URL("http://" + uri.getAuthority() + makeQualified(path).toUri().getPath());
+    }
+
+    /**
+     * Requests the file from offset up to end (exclusive), or to the end of the file if end is
+     * negative.
+     */
+    private HttpURLConnection connect(Path path, long offset, long end) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url(path).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        boolean ranged = offset > 0 || end >= 0;
+        if (ranged) {
+            String last = (end >= 0) ? String.valueOf(end - 1) : "";
+            conn.setRequestProperty("Range", "bytes=" + offset + "-" + last);
+        }
+        int code = conn.getResponseCode();
+        if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+            conn.disconnect();
+            throw new FileNotFoundException(path + " is not available from " + uri);
+        }
+        if (code != (ranged ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK)) {
+            conn.disconnect();
+            throw new IOException("Unexpected response " + code + " for " + path + " from " + uri);
+        }
+        return conn;
+    }
+
+    @Override public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+        return new FSDataInputStream(new PeerInputStream(f, 0, -1));
+    }
+
+    public FSDataInputStream open(Path f, long start, long length) throws IOException {
+        return new FSDataInputStream(new PeerInputStream(f, start, start + length));
+    }
+
+    /**
+     * Lists a shard directory. Throws FileNotFoundException when the peer doesn't have all of
+     * the shard.
+     */
+    @Override public FileStatus[] listStatus(Path f) throws IOException {
+        Path dir = makeQualified(f);
+        HttpURLConnection conn = connect(dir, 0, -1);
+        List<FileStatus> ret = new ArrayList<FileStatus>();
+        BufferedReader reader =
+            new BufferedReader(new InputStreamReader(conn.getInputStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab > 0) {
+                    ret.add(new FileStatus(Long.parseLong(line.substring(tab + 1)), false, 1,
+                        ShardManifest.BLOCK_BYTES, 0, new Path(dir, line.substring(0, tab))));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return ret.toArray(new FileStatus[ret.size()]);
+    }
+
+    @Override public FileStatus getFileStatus(Path f) throws IOException {
+        Path path = makeQualified(f);
+        if (path.depth() == 3) {
+            listStatus(path);
+            return new FileStatus(0, true, 1, 0, 0, path);
+        }
+        for (FileStatus status : listStatus(path.getParent())) {
+            if (status.getPath().getName().equals(path.getName())) {
+                return status;
+            }
+        }
+        throw new FileNotFoundException(path + " is not available from " + uri);
+    }
+
+    @Override public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite,
+        int bufferSize, short replication, long blockSize, Progressable progress)
+        throws IOException {
+        throw new IOException(getClass().getSimpleName() + " is read-only");
+    }
+
+    @Override public FSDataOutputStream append(Path f, int bufferSize, Progressable progress)
+        throws IOException {
+        throw new IOException(getClass().getSimpleName() + " is read-only");
+    }
+
+    @Override public boolean rename(Path src, Path dst) throws IOException {
+        throw new IOException(getClass().getSimpleName() + " is read-only");
+    }
+
+    @Override @Deprecated public boolean delete(Path f) throws IOException {
+        return delete(f, true);
+    }
+
+    @Override public boolean delete(Path f, boolean recursive) throws IOException {
+        throw new IOException(getClass().getSimpleName() + " is read-only");
+    }
+
+    @Override public boolean mkdirs(Path f, FsPermission permission) throws IOException {
+        throw new IOException(getClass().getSimpleName() + " is read-only");
+    }
+
+    @Override public void setWorkingDirectory(Path dir) {
+        workingDir = makeQualified(dir);
+    }
+
+    @Override public Path getWorkingDirectory() {
+        return workingDir;
+    }
+
+    /**
+     * Streams a file from the offset it was last seeked to, opening a new ranged request after
+     * every seek that moves the position. A bounded stream never reads past end.
+     */
+    private class PeerInputStream extends FSInputStream {
+        private final Path path;
+        private final long end;
+        private long pos;
+        private HttpURLConnection conn = null;
+        private InputStream in = null;
+
+        /**
+         * @param end the offset to stop at, or -1 for the end of the file
+         */
+        PeerInputStream(Path path, long start, long end) {
+            this.path = path;
+            this.pos = start;
+            this.end = end;
+        }
+
+        private InputStream stream() throws IOException {
+            if (in == null) {
+                conn = connect(path, pos, end);
+                in = conn.getInputStream();
+            }
+            return in;
+        }
+
+        private boolean atEnd() {
+            return end >= 0 && pos >= end;
+        }
+
+        @Override public void seek(long newPos) throws IOException {
+            if (newPos != pos) {
+                close();
+                pos = newPos;
+            }
+        }
+
+        @Override public long getPos() throws IOException {
+            return pos;
+        }
+
+        @Override public boolean seekToNewSource(long targetPos) throws IOException {
+            return false;
+        }
+
+        @Override public int read() throws IOException {
+            if (atEnd()) {
+                return -1;
+            }
+            int ret = stream().read();
+            if (ret >= 0) {
+                pos++;
+            }
+            return ret;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (atEnd()) {
+                return -1;
+            }
+            int ret = stream().read(b, off, (int) (end >= 0 ? Math.min(len, end - pos) : len));
+            if (ret > 0) {
+                pos += ret;
+            }
+            return ret;
+        }
+
+        @Override public void close() throws IOException {
+            if (in != null) {
+                try {
+                    in.close();
+                } finally {
+                    conn.disconnect();
+                    in = null;
+                    conn = null;
+                }
+            }
+        }
+    }
+}
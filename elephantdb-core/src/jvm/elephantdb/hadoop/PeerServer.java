@@ -0,0 +1,171 @@
+package elephantdb.hadoop;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves the shards a node holds to the other servers of its ring over HTTP, so that a shard
+ * with several replicas is only pulled from the remote store once. PeerFileSystem is the client.
+ *
+ * GET /domain/version/shard lists the shard's files, one "name TAB length" line each, and
+ * GET /domain/version/shard/file returns a file, honoring a single "bytes=start-[end]" Range.
+ * Both answer 404 unless the locator reports the node has all of that shard.
+ */
+public class PeerServer {
+    public static Logger LOG = Logger.getLogger(PeerServer.class);
+
+    public static final int DEFAULT_THREADS = 4;
+
+    public interface ShardLocator {
+        /**
+         * Returns the local directory of the shard if this node holds all of it, else null.
+         */
+        File completedShard(String domain, long version, int shard);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public PeerServer(InetSocketAddress address, ShardLocator locator) throws IOException {
+        this.server = HttpServer.create(address, 0);
+        this.executor = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "elephantdb-peer-server");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.createContext("/", new ShardHandler(locator));
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    static boolean isServable(String fileName) {
+        return !fileName.startsWith(".") && !fileName.endsWith(TransferEngine.PARTIAL_SUFFIX);
+    }
+
+    private static class ShardHandler implements HttpHandler {
+        private final ShardLocator locator;
+
+        ShardHandler(ShardLocator locator) {
+            this.locator = locator;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String[] parts = exchange.getRequestURI().getPath().substring(1).split("/");
+                File dir = null;
+                if (exchange.getRequestMethod().equals("GET")
+                    && (parts.length == 3 || parts.length == 4)) {
+                    try {
+                        dir = locator.completedShard(parts[0], Long.parseLong(parts[1]),
+                            Integer.parseInt(parts[2]));
+                    } catch (NumberFormatException e) {
+                        dir = null;
+                    }
+                }
+                if (dir == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else if (parts.length == 3) {
+                    sendListing(exchange, dir);
+                } else {
+                    sendFile(exchange, dir, parts[3]);
+                }
+            } catch (IOException e) {
+                // usually a client that stopped reading, e.g. after a checksum mismatch
+                LOG.warn("Error serving " + exchange.getRequestURI() + ": " + e);
+                throw e;
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void sendListing(HttpExchange exchange, File dir) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            File[] files = dir.listFiles();
+            Arrays.sort(files);
+            for (File f : files) {
+                if (f.isFile() && isServable(f.getName())) {
+                    sb.append(f.getName()).append('\t').append(f.length()).append('\n');
+                }
+            }
+            byte[] body = sb.toString().getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+
+        private void sendFile(HttpExchange exchange, File dir, String name) throws IOException {
+            File file = new File(dir, name);
+            if (!isServable(name) || !file.isFile() || !file.getParentFile().equals(dir)) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            long length = file.length();
+            long start = 0;
+            long end = length - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                try {
+                    start = Long.parseLong(bounds[0]);
+                    if (bounds.length > 1 && bounds[1].length() > 0) {
+                        end = Math.min(end, Long.parseLong(bounds[1]));
+                    }
+                } catch (NumberFormatException e) {
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                if (start > end && !(start == 0 && length == 0)) {
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + length);
+                exchange.sendResponseHeaders(206, Math.max(0, end - start + 1));
+            } else {
+                exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                OutputStream os = exchange.getResponseBody();
+                byte[] buf = new byte[64 * 1024];
+                raf.seek(start);
+                long left = end - start + 1;
+                while (left > 0) {
+                    int n = raf.read(buf, 0, (int) Math.min(buf.length, left));
+                    if (n < 0) {
+                        break;
+                    }
+                    os.write(buf, 0, n);
+                    left -= n;
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package elephantdb.hadoop;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+
+import java.io.IOException;
+
+/**
+ * A FileSystem that can open a stream over just one range of a file, so that the far end only
+ * reads and sends that range. TransferEngine opens its ranges this way when it can.
+ */
+public interface RangedFileSystem {
+    /**
+     * Returns a stream positioned at start that ends after length bytes.
+     */
+    FSDataInputStream open(Path f, long start, long length) throws IOException;
+}
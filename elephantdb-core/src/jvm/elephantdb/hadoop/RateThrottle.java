@@ -0,0 +1,46 @@
+package elephantdb.hadoop;
+
+/**
+ * A Throttle that holds all streams sharing it to a number of bytes per second, allowing bursts
+ * of up to one second's worth. The rate can be changed while transfers are running.
+ */
+public class RateThrottle implements Throttle {
+    private volatile long bytesPerSecond;
+    private double available;
+    private long lastRefill;
+
+    public RateThrottle(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid rate " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Invalid rate " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public void acquire(int bytes) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long rate = bytesPerSecond;
+            long now = System.nanoTime();
+            available = Math.min(rate, available + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+            available -= bytes;
+            waitNanos = available < 0 ? (long) (-available * 1e9 / rate) : 0;
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+}
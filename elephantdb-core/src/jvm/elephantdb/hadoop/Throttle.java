@@ -0,0 +1,12 @@
+package elephantdb.hadoop;
+
+/**
+ * Paces the bytes TransferEngine pulls from a remote store. Every stream calls acquire before it
+ * writes a buffer it has read.
+ */
+public interface Throttle {
+    /**
+     * Blocks until the supplied number of bytes may be transferred.
+     */
+    void acquire(int bytes) throws InterruptedException;
+}
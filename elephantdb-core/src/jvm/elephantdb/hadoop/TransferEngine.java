@@ -0,0 +1,395 @@
+package elephantdb.hadoop;
+
+import elephantdb.store.Crc32C;
+import elephantdb.store.ShardManifest;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Progressable;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads shard directories from a remote filesystem over a fixed number of parallel streams.
+ * Every file is split into ranges, and each range is fetched with its own positioned read, so a
+ * single large file uses as many streams as a directory of small ones.
+ *
+ * When the shard's manifest has block checksums, ranges line up with its blocks and each one is
+ * checked against its CRC32C as it arrives, with a mismatch fetched again. Files are written to
+ * a ".part" file next to their final name and renamed once every range is in, so after a crash
+ * or a failed attempt the next download keeps the complete files, re-reads the ranges of each
+ * partial file locally and only fetches those whose checksum doesn't match. Without checksums a
+ * partial file is started over and a file is only checked against the remote length.
+ *
+ * A download can also read from a mirror, such as a peer server that already holds the shard.
+ * The remote directory still decides which files there are and how long they are, and only
+ * ranges with a checksum are read from the mirror. A file the mirror doesn't have or has a
+ * different copy of is read from the remote instead, and so is the rest of the download once
+ * the mirror stops answering.
+ *
+ * One engine can be shared by any number of concurrent downloadShard calls; they share its
+ * streams and throttle. The streams can also come from an UpdateScheduler lane, so that the
+ * downloads of every domain on a node share one limit.
+ */
+public class TransferEngine {
+    public static Logger LOG = Logger.getLogger(TransferEngine.class);
+
+    public static final int DEFAULT_STREAMS = 8;
+    public static final String PARTIAL_SUFFIX = ".part";
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ExecutorService streams;
+    private final long rangeBytes;
+    private final Throttle throttle;
+
+    public TransferEngine(int maxStreams, Throttle throttle) {
+        this(maxStreams, ShardManifest.BLOCK_BYTES, throttle);
+    }
+
+    /**
+     * @param rangeBytes the range size for files the manifest has no checksums for
+     * @param throttle   may be null
+     */
+    public TransferEngine(int maxStreams, long rangeBytes, Throttle throttle) {
+        this(Executors.newFixedThreadPool(maxStreams, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "elephantdb-transfer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }), rangeBytes, throttle);
+    }
+
+    /**
+     * Runs ranges on the supplied executor, which shutdown() shuts down.
+     */
+    public TransferEngine(ExecutorService streams, Throttle throttle) {
+        this(streams, ShardManifest.BLOCK_BYTES, throttle);
+    }
+
+    public TransferEngine(ExecutorService streams, long rangeBytes, Throttle throttle) {
+        this.streams = streams;
+        this.rangeBytes = rangeBytes;
+        this.throttle = throttle;
+    }
+
+    public Throttle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Downloads the remote directory into the local one, resuming whatever an earlier attempt
+     * left there, and returns the number of bytes fetched. Files already present at their final
+     * name with the remote length are kept as they are, so callers can link files in beforehand.
+     *
+     * @param manifest the shard's manifest, or null to download without checksums
+     * @param progress may be null
+     */
+    public long downloadShard(FileSystem fs, String remotePath, String localPath,
+        ShardManifest manifest, Progressable progress) throws IOException {
+        return downloadShard(fs, remotePath, null, null, localPath, manifest, progress);
+    }
+
+    /**
+     * Downloads the remote directory like downloadShard above, reading checksummed ranges from
+     * the mirror directory where it can.
+     *
+     * @param mirrorFs may be null to read everything from the remote
+     */
+    public long downloadShard(FileSystem fs, String remotePath, FileSystem mirrorFs,
+        String mirrorPath, String localPath, ShardManifest manifest, Progressable progress)
+        throws IOException {
+        List<FileTransfer> files = new ArrayList<FileTransfer>();
+        plan(fs, new Path(remotePath), (mirrorFs == null) ? null : new Path(mirrorPath),
+            new File(localPath), manifest, files);
+
+        Download download = new Download(fs, mirrorFs, progress);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (FileTransfer ft : files) {
+            ft.open();
+            for (int i = 0; i < ft.ranges; i++) {
+                futures.add(streams.submit(new RangeTask(download, ft, i)));
+            }
+        }
+
+        IOException error = null;
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                download.failed.set(true);
+                Thread.currentThread().interrupt();
+                error = new IOException("Interrupted downloading " + remotePath);
+            } catch (ExecutionException e) {
+                download.failed.set(true);
+                if (error == null) {
+                    Throwable cause = e.getCause();
+                    error = (cause instanceof IOException)
+                        ? (IOException) cause
+                        : new IOException("Error downloading " + remotePath, cause);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (mirrorFs != null) {
+            LOG.info("Read " + download.mirrored.get() + " of " + download.fetched.get()
+                + " bytes of " + remotePath + " from " + mirrorFs.getUri());
+        }
+        return download.fetched.get();
+    }
+
+    public void shutdown() {
+        streams.shutdownNow();
+    }
+
+    private void plan(FileSystem fs, Path remote, Path mirror, File local,
+        ShardManifest manifest, List<FileTransfer> files) throws IOException {
+        if (!local.isDirectory() && !local.mkdirs()) {
+            throw new IOException("Unable to create " + local);
+        }
+        for (FileStatus status : fs.listStatus(remote)) {
+            String name = status.getPath().getName();
+            File target = new File(local, name);
+            Path mirrored = (mirror == null) ? null : new Path(mirror, name);
+            if (status.isDir()) {
+                // nested directories have no manifest entries of their own
+                plan(fs, status.getPath(), mirrored, target, null, files);
+            } else if (!(name.startsWith(".") && name.endsWith(".crc"))) {
+                if (target.isFile() && target.length() == status.getLen()) {
+                    continue;
+                }
+                long[] checksums = (manifest == null) ? null : manifest.getBlockChecksums(name);
+                long size = (checksums == null) ? rangeBytes : manifest.getBlockBytes();
+                if (checksums != null
+                    && checksums.length != (status.getLen() + size - 1) / size) {
+                    throw new IOException("Manifest doesn't match " + status.getPath() + " ("
+                        + status.getLen() + " bytes, " + checksums.length + " blocks)");
+                }
+                files.add(new FileTransfer(status, (checksums == null) ? null : mirrored, target,
+                    checksums, size));
+            }
+        }
+    }
+
+    private static class Download {
+        final FileSystem fs;
+        final FileSystem mirrorFs;
+        final Progressable progress;
+        final AtomicLong fetched = new AtomicLong();
+        final AtomicLong mirrored = new AtomicLong();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final AtomicBoolean mirrorFailed = new AtomicBoolean(false);
+
+        Download(FileSystem fs, FileSystem mirrorFs, Progressable progress) {
+            this.fs = fs;
+            this.mirrorFs = mirrorFs;
+            this.progress = progress;
+        }
+    }
+
+    private static class FileTransfer {
+        final FileStatus status;
+        final Path mirror;
+        final File target;
+        final File partial;
+        final long[] checksums;
+        final long rangeBytes;
+        final int ranges;
+        final AtomicInteger remaining;
+        final AtomicBoolean mirrorFailed = new AtomicBoolean(false);
+        boolean resumed;
+
+        FileTransfer(FileStatus status, Path mirror, File target, long[] checksums,
+            long rangeBytes) {
+            this.status = status;
+            this.mirror = mirror;
+            this.target = target;
+            this.partial = new File(target.getPath() + PARTIAL_SUFFIX);
+            this.checksums = checksums;
+            this.rangeBytes = rangeBytes;
+            this.ranges = (int) ((status.getLen() + rangeBytes - 1) / rangeBytes);
+            this.remaining = new AtomicInteger(ranges);
+        }
+
+        void open() throws IOException {
+            if (target.exists() && !target.delete()) {
+                throw new IOException("Unable to replace " + target);
+            }
+            resumed = (checksums != null) && partial.isFile();
+            if (!resumed && partial.exists() && !partial.delete()) {
+                throw new IOException("Unable to restart " + partial);
+            }
+            RandomAccessFile raf = new RandomAccessFile(partial, "rw");
+            try {
+                raf.setLength(status.getLen());
+            } finally {
+                raf.close();
+            }
+            if (ranges == 0) {
+                finish();
+            }
+        }
+
+        long rangeStart(int idx) {
+            return idx * rangeBytes;
+        }
+
+        int rangeLength(int idx) {
+            return (int) Math.min(rangeBytes, status.getLen() - rangeStart(idx));
+        }
+
+        void finish() throws IOException {
+            if (partial.length() != status.getLen()) {
+                throw new IOException(partial + " has " + partial.length() + " bytes, expected "
+                    + status.getLen());
+            }
+            if (!partial.renameTo(target)) {
+                throw new IOException("Unable to rename " + partial + " to " + target);
+            }
+        }
+    }
+
+    private class RangeTask implements Callable<Object> {
+        private final Download d;
+        private final FileTransfer ft;
+        private final int idx;
+
+        RangeTask(Download d, FileTransfer ft, int idx) {
+            this.d = d;
+            this.ft = ft;
+            this.idx = idx;
+        }
+
+        public Object call() throws Exception {
+            if (d.failed.get()) {
+                return null;
+            }
+            byte[] buf = new byte[BUFFER_SIZE];
+            RandomAccessFile raf = new RandomAccessFile(ft.partial, "rw");
+            try {
+                if (!(ft.resumed && localChecksum(raf, buf) == ft.checksums[idx])) {
+                    fetchVerified(raf, buf);
+                }
+            } finally {
+                raf.close();
+            }
+            if (ft.remaining.decrementAndGet() == 0) {
+                ft.finish();
+            }
+            return null;
+        }
+
+        private long localChecksum(RandomAccessFile raf, byte[] buf) throws IOException {
+            Crc32C crc = new Crc32C();
+            raf.seek(ft.rangeStart(idx));
+            int left = ft.rangeLength(idx);
+            while (left > 0) {
+                int n = raf.read(buf, 0, Math.min(buf.length, left));
+                if (n < 0) {
+                    break;
+                }
+                crc.update(buf, 0, n);
+                left -= n;
+            }
+            return crc.getValue();
+        }
+
+        private void fetchVerified(RandomAccessFile raf, byte[] buf) throws Exception {
+            IOException last = null;
+            if (ft.mirror != null && !ft.mirrorFailed.get() && !d.mirrorFailed.get()) {
+                try {
+                    if (fetch(d.mirrorFs, ft.mirror, d.mirrored, raf, buf) == ft.checksums[idx]) {
+                        return;
+                    }
+                    last = new IOException("Checksum mismatch in range " + idx + " of "
+                        + ft.mirror);
+                    ft.mirrorFailed.set(true);
+                } catch (FileNotFoundException e) {
+                    last = e;
+                    ft.mirrorFailed.set(true);
+                } catch (IOException e) {
+                    last = e;
+                    d.mirrorFailed.set(true);
+                }
+                LOG.warn("Reading range " + idx + " of " + ft.mirror + " failed, reading it "
+                    + "from the remote: " + last);
+            }
+            for (int attempt = 1; attempt <= MAX_ATTEMPTS && !d.failed.get(); attempt++) {
+                try {
+                    long crc = fetch(d.fs, ft.status.getPath(), null, raf, buf);
+                    if (ft.checksums == null || crc == ft.checksums[idx]) {
+                        return;
+                    }
+                    last = new IOException("Checksum mismatch in range " + idx + " of "
+                        + ft.status.getPath());
+                } catch (IOException e) {
+                    last = e;
+                }
+                LOG.warn("Attempt " + attempt + " at range " + idx + " of "
+                    + ft.status.getPath() + " failed: " + last);
+            }
+            if (last == null) {
+                last = new IOException("Download of " + ft.status.getPath() + " abandoned");
+            }
+            throw last;
+        }
+
+        private long fetch(FileSystem fs, Path path, AtomicLong counter, RandomAccessFile raf,
+            byte[] buf) throws Exception {
+            Crc32C crc = new Crc32C();
+            long pos = ft.rangeStart(idx);
+            int left = ft.rangeLength(idx);
+            FSDataInputStream in = (fs instanceof RangedFileSystem)
+                ? ((RangedFileSystem) fs).open(path, pos, left)
+                : fs.open(path);
+            try {
+                in.seek(pos);
+                raf.seek(pos);
+                while (left > 0) {
+                    int n = in.read(buf, 0, Math.min(buf.length, left));
+                    if (n < 0) {
+                        throw new IOException("Unexpected end of " + path);
+                    }
+                    if (throttle != null) {
+                        throttle.acquire(n);
+                    }
+                    raf.write(buf, 0, n);
+                    crc.update(buf, 0, n);
+                    d.fetched.addAndGet(n);
+                    if (counter != null) {
+                        counter.addAndGet(n);
+                    }
+                    left -= n;
+                    if (d.progress != null) {
+                        d.progress.progress();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            return crc.getValue();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package elephantdb.hadoop;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the update work of a whole node. Downloads and shard opens each run on a fixed number of
+ * threads shared by every domain, however many domains are updating at once.
+ *
+ * Each domain submits through its own lane, an ExecutorService with a priority. A free thread
+ * always takes the next task of the highest-priority lane that has work queued, and lanes of the
+ * same priority take turns task by task. Downloads are queued as ranges, so a small domain with a
+ * higher priority than a bulk one waits at most for the ranges already in flight, and domains of
+ * equal priority split the streams evenly.
+ */
+public class UpdateScheduler {
+    public static Logger LOG = Logger.getLogger(UpdateScheduler.class);
+
+    public static final int DEFAULT_TRANSFERS = 8;
+    public static final int DEFAULT_OPENS = 4;
+
+    private final FairPool transfers;
+    private final FairPool opens;
+
+    public UpdateScheduler() {
+        this(DEFAULT_TRANSFERS, DEFAULT_OPENS);
+    }
+
+    public UpdateScheduler(int maxTransfers, int maxOpens) {
+        this.transfers = new FairPool("elephantdb-transfer", maxTransfers);
+        this.opens = new FairPool("elephantdb-open", maxOpens);
+    }
+
+    /**
+     * Returns the named domain's lane for downloads. Asking again with a different priority
+     * changes the lane's priority.
+     */
+    public ExecutorService transfers(String domain, int priority) {
+        return transfers.lane(domain, priority);
+    }
+
+    /**
+     * Returns the named domain's lane for shard opens.
+     */
+    public ExecutorService opens(String domain, int priority) {
+        return opens.lane(domain, priority);
+    }
+
+    public void shutdown() {
+        transfers.shutdown();
+        opens.shutdown();
+    }
+
+    private static class FairPool {
+        private final Map<String, Lane> lanes = new HashMap<String, Lane>();
+        private final List<Thread> threads = new ArrayList<Thread>();
+        private long turns = 0;
+        private boolean shutdown = false;
+
+        FairPool(String name, int size) {
+            for (int i = 1; i <= size; i++) {
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        work();
+                    }
+                }, name + "-" + i);
+                t.setDaemon(true);
+                t.start();
+                threads.add(t);
+            }
+        }
+
+        synchronized Lane lane(String key, int priority) {
+            Lane ret = lanes.get(key);
+            if (ret == null) {
+                ret = new Lane(this);
+                lanes.put(key, ret);
+            }
+            ret.priority = priority;
+            return ret;
+        }
+
+        synchronized void enqueue(Lane lane, Runnable task) {
+            if (shutdown) {
+                throw new IllegalStateException("Scheduler is shut down");
+            }
+            lane.queue.add(task);
+            notify();
+        }
+
+        synchronized List<Runnable> drain(Lane lane) {
+            List<Runnable> ret = new ArrayList<Runnable>(lane.queue);
+            lane.queue.clear();
+            for (Runnable r : ret) {
+                // so that nobody waits forever on a task that will never run
+                if (r instanceof Future) {
+                    ((Future) r).cancel(false);
+                }
+            }
+            return ret;
+        }
+
+        private synchronized Runnable take() throws InterruptedException {
+            while (!shutdown) {
+                Lane next = null;
+                for (Lane l : lanes.values()) {
+                    if (!l.queue.isEmpty() && (next == null || l.priority > next.priority
+                        || (l.priority == next.priority && l.lastTurn < next.lastTurn))) {
+                        next = l;
+                    }
+                }
+                if (next != null) {
+                    next.lastTurn = ++turns;
+                    return next.queue.removeFirst();
+                }
+                wait();
+            }
+            return null;
+        }
+
+        private void work() {
+            try {
+                Runnable task;
+                while ((task = take()) != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        LOG.error("Update task failed", t);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shut down
+            }
+        }
+
+        synchronized void shutdown() {
+            shutdown = true;
+            for (Lane l : lanes.values()) {
+                drain(l);
+            }
+            for (Thread t : threads) {
+                t.interrupt();
+            }
+        }
+    }
+
+    /**
+     * A domain's view of a pool. Lanes live as long as the scheduler: shutdown() is a no-op and
+     * shutdownNow() only cancels that domain's queued tasks, leaving the pool running for
+     * everyone else.
+     */
+    private static class Lane extends AbstractExecutorService {
+        final FairPool pool;
+        final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+        int priority;
+        long lastTurn = 0;
+
+        Lane(FairPool pool) {
+            this.pool = pool;
+        }
+
+        public void execute(Runnable task) {
+            pool.enqueue(this, task);
+        }
+
+        public void shutdown() {
+        }
+
+        public List<Runnable> shutdownNow() {
+            return pool.drain(this);
+        }
+
+        public boolean isShutdown() {
+            return false;
+        }
+
+        public boolean isTerminated() {
+            return false;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package elephantdb.partition;
+
+/**
+ * A ShardingScheme that can route a whole batch of keys in one call. Callers go through
+ * Utils.shardIndices, which falls back to one shardIndex call per key for schemes that don't
+ * implement this.
+ */
+public interface BatchShardingScheme extends ShardingScheme {
+    /**
+     * Fills out[i] with the shard index of shardKeys[i].
+     */
+    void shardIndices(byte[][] shardKeys, int shardCount, int[] out);
+}
@@ -0,0 +1,14 @@
+package elephantdb.partition;
+
+import java.util.Map;
+
+/**
+ * A ShardingScheme with settings that have to travel with the domain. DomainSpec writes them to
+ * domain-spec.yaml under shard_scheme_opts and hands them back to a freshly instantiated scheme
+ * before it routes any keys.
+ */
+public interface ConfigurableScheme extends ShardingScheme {
+    Map<String, Object> getOptions();
+
+    void setOptions(Map<String, Object> options);
+}
@@ -0,0 +1,20 @@
+package elephantdb.partition;
+
+/**
+ * Base for sharding schemes built on a 64-bit non-cryptographic hash. These are much cheaper
+ * than HashModScheme's MD5, but route keys differently, so they're only for new domains.
+ */
+public abstract class FastHashScheme implements BatchShardingScheme {
+
+    protected abstract long hash(byte[] shardKey);
+
+    public int shardIndex(byte[] shardKey, int shardCount) {
+        return Hashing.reduce(hash(shardKey), shardCount);
+    }
+
+    public void shardIndices(byte[][] shardKeys, int shardCount, int[] out) {
+        for (int i = 0; i < shardKeys.length; i++) {
+            out[i] = Hashing.reduce(hash(shardKeys[i]), shardCount);
+        }
+    }
+}
@@ -2,9 +2,13 @@ package elephantdb.partition;
 
 import elephantdb.Utils;
 
-public class HashModScheme implements ShardingScheme {
+public class HashModScheme implements BatchShardingScheme {
 
     public int shardIndex(byte[] shardKey, int shardCount) {
         return Utils.keyShard(shardKey, shardCount);
     }
+
+    public void shardIndices(byte[][] shardKeys, int shardCount, int[] out) {
+        Utils.keyShards(shardKeys, shardCount, out);
+    }
 }
@@ -0,0 +1,200 @@
+package elephantdb.partition;
+
+/**
+ * Non-cryptographic 64-bit hash functions for the fast sharding schemes. Both are read
+ * little-endian straight out of the key array and are stable across JVMs, so a key always hashes
+ * to the same value regardless of where the domain is built or served.
+ */
+public final class Hashing {
+    private Hashing() {
+    }
+
+    private static final long MURMUR_C1 = 0x87c37b91114253d5L;
+    private static final long MURMUR_C2 = 0x4cf5ad432745937fL;
+
+    private static final long XX_P1 = 0x9E3779B185EBCA87L;
+    private static final long XX_P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long XX_P3 = 0x165667B19E3779F9L;
+    private static final long XX_P4 = 0x85EBCA77C2B2AE63L;
+    private static final long XX_P5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * Returns the first 64 bits of MurmurHash3_x64_128 of the supplied key (seed 0).
+     */
+    public static long murmur3(byte[] key) {
+        int len = key.length;
+        int nblocks = len >>> 4;
+        long h1 = 0;
+        long h2 = 0;
+
+        for (int i = 0; i < nblocks; i++) {
+            int off = i << 4;
+            long k1 = getLong(key, off);
+            long k2 = getLong(key, off + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int off = nblocks << 4;
+        long k1 = 0;
+        long k2 = 0;
+        switch (len & 15) {
+            case 15: k2 ^= (long) (key[off + 14] & 0xff) << 48;
+            case 14: k2 ^= (long) (key[off + 13] & 0xff) << 40;
+            case 13: k2 ^= (long) (key[off + 12] & 0xff) << 32;
+            case 12: k2 ^= (long) (key[off + 11] & 0xff) << 24;
+            case 11: k2 ^= (long) (key[off + 10] & 0xff) << 16;
+            case 10: k2 ^= (long) (key[off + 9] & 0xff) << 8;
+            case 9:  k2 ^= (long) (key[off + 8] & 0xff);
+                     h2 ^= mixK2(k2);
+            case 8:  k1 ^= (long) (key[off + 7] & 0xff) << 56;
+            case 7:  k1 ^= (long) (key[off + 6] & 0xff) << 48;
+            case 6:  k1 ^= (long) (key[off + 5] & 0xff) << 40;
+            case 5:  k1 ^= (long) (key[off + 4] & 0xff) << 32;
+            case 4:  k1 ^= (long) (key[off + 3] & 0xff) << 24;
+            case 3:  k1 ^= (long) (key[off + 2] & 0xff) << 16;
+            case 2:  k1 ^= (long) (key[off + 1] & 0xff) << 8;
+            case 1:  k1 ^= (long) (key[off] & 0xff);
+                     h1 ^= mixK1(k1);
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        return h1 + h2;
+    }
+
+    /**
+     * Returns XXH64 of the supplied key (seed 0).
+     */
+    public static long xxHash64(byte[] key) {
+        return xxHash64(key, 0, key.length);
+    }
+
+    /**
+     * Returns XXH64 (seed 0) of the len bytes of key starting at start.
+     */
+    public static long xxHash64(byte[] key, int start, int len) {
+        int end = start + len;
+        int off = start;
+        long h;
+
+        if (len >= 32) {
+            long v1 = XX_P1 + XX_P2;
+            long v2 = XX_P2;
+            long v3 = 0;
+            long v4 = -XX_P1;
+            int limit = end - 32;
+            do {
+                v1 = xxRound(v1, getLong(key, off));
+                v2 = xxRound(v2, getLong(key, off + 8));
+                v3 = xxRound(v3, getLong(key, off + 16));
+                v4 = xxRound(v4, getLong(key, off + 24));
+                off += 32;
+            } while (off <= limit);
+
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+                + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = xxMerge(h, v1);
+            h = xxMerge(h, v2);
+            h = xxMerge(h, v3);
+            h = xxMerge(h, v4);
+        } else {
+            h = XX_P5;
+        }
+
+        h += len;
+
+        while (off + 8 <= end) {
+            h ^= xxRound(0, getLong(key, off));
+            h = Long.rotateLeft(h, 27) * XX_P1 + XX_P4;
+            off += 8;
+        }
+        if (off + 4 <= end) {
+            h ^= (getInt(key, off) & 0xffffffffL) * XX_P1;
+            h = Long.rotateLeft(h, 23) * XX_P2 + XX_P3;
+            off += 4;
+        }
+        while (off < end) {
+            h ^= (key[off] & 0xff) * XX_P5;
+            h = Long.rotateLeft(h, 11) * XX_P1;
+            off++;
+        }
+
+        h ^= h >>> 33;
+        h *= XX_P2;
+        h ^= h >>> 29;
+        h *= XX_P3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    /**
+     * Maps a 64-bit hash onto [0, n) using the high 32 bits and a multiply-shift instead of a
+     * division.
+     */
+    public static int reduce(long hash, int n) {
+        return (int) (((hash >>> 32) * n) >>> 32);
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= MURMUR_C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * MURMUR_C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= MURMUR_C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * MURMUR_C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long xxRound(long acc, long input) {
+        acc += input * XX_P2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * XX_P1;
+    }
+
+    private static long xxMerge(long acc, long val) {
+        acc ^= xxRound(0, val);
+        return acc * XX_P1 + XX_P4;
+    }
+
+    private static long getLong(byte[] b, int off) {
+        return (b[off] & 0xffL)
+            | (b[off + 1] & 0xffL) << 8
+            | (b[off + 2] & 0xffL) << 16
+            | (b[off + 3] & 0xffL) << 24
+            | (b[off + 4] & 0xffL) << 32
+            | (b[off + 5] & 0xffL) << 40
+            | (b[off + 6] & 0xffL) << 48
+            | (b[off + 7] & 0xffL) << 56;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xff)
+            | (b[off + 1] & 0xff) << 8
+            | (b[off + 2] & 0xff) << 16
+            | (b[off + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,30 @@
+package elephantdb.partition;
+
+/**
+ * Jump consistent hashing (Lamping & Veach) over XXH64. When the shard count grows from N to M,
+ * a key either stays in its shard or moves to one of the new shards N..M-1, and only about
+ * (M - N) / M of the keys move. That lets a domain be resharded upwards by building just the new
+ * shards and carrying the old ones over as-is; see DomainStore.inheritShards.
+ *
+ * Select it in domain-spec.yaml with shard_scheme: elephantdb.partition.JumpHashScheme
+ */
+public class JumpHashScheme implements ShardingScheme {
+
+    public int shardIndex(byte[] shardKey, int shardCount) {
+        return jump(Hashing.xxHash64(shardKey), shardCount);
+    }
+
+    public static int jump(long key, int buckets) {
+        if (buckets <= 0) {
+            throw new IllegalArgumentException("buckets must be positive, got " + buckets);
+        }
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
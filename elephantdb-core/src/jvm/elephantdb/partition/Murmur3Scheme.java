@@ -0,0 +1,12 @@
+package elephantdb.partition;
+
+/**
+ * Shards on the first 64 bits of MurmurHash3_x64_128. Select it in domain-spec.yaml with
+ * shard_scheme: elephantdb.partition.Murmur3Scheme
+ */
+public class Murmur3Scheme extends FastHashScheme {
+
+    protected long hash(byte[] shardKey) {
+        return Hashing.murmur3(shardKey);
+    }
+}
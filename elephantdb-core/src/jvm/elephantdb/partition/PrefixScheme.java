@@ -0,0 +1,107 @@
+package elephantdb.partition;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shards on the XXH64 of a key prefix only, so that keys like "entity-id:attribute" that share a
+ * prefix land on the same shard, and a multi-get for one entity goes to a single host. The prefix
+ * is either everything before the first occurrence of a delimiter (the whole key if it has none)
+ * or a fixed number of leading bytes. In domain-spec.yaml:
+ *
+ * shard_scheme: elephantdb.partition.PrefixScheme
+ * shard_scheme_opts: {delimiter: ":"}
+ *
+ * or shard_scheme_opts: {prefix_length: 8}. With no options the delimiter is ":".
+ */
+public class PrefixScheme extends FastHashScheme implements ConfigurableScheme {
+    public static final String DELIMITER_OPT = "delimiter";
+    public static final String PREFIX_LENGTH_OPT = "prefix_length";
+
+    private String delimiter;
+    private byte[] delimiterBytes;
+    private int prefixLength;
+
+    public PrefixScheme() {
+        this(":");
+    }
+
+    public PrefixScheme(String delimiter) {
+        setDelimiter(delimiter);
+    }
+
+    public PrefixScheme(int prefixLength) {
+        setPrefixLength(prefixLength);
+    }
+
+    private void setDelimiter(String delimiter) {
+        if (delimiter == null || delimiter.length() == 0) {
+            throw new IllegalArgumentException("Delimiter must be non-empty.");
+        }
+        try {
+            this.delimiterBytes = delimiter.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        this.delimiter = delimiter;
+        this.prefixLength = 0;
+    }
+
+    private void setPrefixLength(int prefixLength) {
+        if (prefixLength <= 0) {
+            throw new IllegalArgumentException("Prefix length must be positive: " + prefixLength);
+        }
+        this.prefixLength = prefixLength;
+        this.delimiter = null;
+        this.delimiterBytes = null;
+    }
+
+    public Map<String, Object> getOptions() {
+        Map<String, Object> ret = new HashMap<String, Object>();
+        if (delimiter != null) {
+            ret.put(DELIMITER_OPT, delimiter);
+        } else {
+            ret.put(PREFIX_LENGTH_OPT, prefixLength);
+        }
+        return ret;
+    }
+
+    public void setOptions(Map<String, Object> options) {
+        Object delim = options.get(DELIMITER_OPT);
+        Object length = options.get(PREFIX_LENGTH_OPT);
+        if (delim != null && length != null) {
+            throw new IllegalArgumentException("Set either " + DELIMITER_OPT + " or "
+                + PREFIX_LENGTH_OPT + ", not both.");
+        }
+        if (length != null) {
+            setPrefixLength(((Number) length).intValue());
+        } else if (delim != null) {
+            setDelimiter((String) delim);
+        }
+    }
+
+    /**
+     * Returns the number of leading bytes of the key that are hashed.
+     */
+    public int prefixLength(byte[] shardKey) {
+        if (delimiterBytes == null) {
+            return Math.min(prefixLength, shardKey.length);
+        }
+        int last = shardKey.length - delimiterBytes.length;
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+            while (j < delimiterBytes.length && shardKey[i + j] == delimiterBytes[j]) {
+                j++;
+            }
+            if (j == delimiterBytes.length) {
+                return i;
+            }
+        }
+        return shardKey.length;
+    }
+
+    protected long hash(byte[] shardKey) {
+        return Hashing.xxHash64(shardKey, 0, prefixLength(shardKey));
+    }
+}
@@ -0,0 +1,140 @@
+package elephantdb.partition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Order-preserving sharding. Keys are compared as unsigned bytes, the same order
+ * KeyValTailAssembly sorts them in within a shard, and shard i holds the keys in
+ * [splitPoints[i - 1], splitPoints[i]). A domain with shard_count N stores its N - 1 split
+ * points next to the shard count in domain-spec.yaml; they're usually computed from a sample of
+ * the keys with fromSample.
+ */
+public class RangeScheme implements BatchShardingScheme {
+    public static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        public int compare(byte[] a, byte[] b) {
+            return compareKeys(a, b);
+        }
+    };
+
+    private byte[][] splitPoints;
+
+    public RangeScheme() {
+    }
+
+    public RangeScheme(byte[][] splitPoints) {
+        setSplitPoints(splitPoints);
+    }
+
+    public byte[][] getSplitPoints() {
+        return splitPoints;
+    }
+
+    public void setSplitPoints(byte[][] splitPoints) {
+        for (int i = 1; i < splitPoints.length; i++) {
+            if (compareKeys(splitPoints[i - 1], splitPoints[i]) > 0) {
+                throw new IllegalArgumentException("Split points must be sorted.");
+            }
+        }
+        this.splitPoints = splitPoints;
+    }
+
+    public int shardIndex(byte[] shardKey, int shardCount) {
+        assertShardCount(shardCount);
+        return search(shardKey);
+    }
+
+    public void shardIndices(byte[][] shardKeys, int shardCount, int[] out) {
+        assertShardCount(shardCount);
+        for (int i = 0; i < shardKeys.length; i++) {
+            out[i] = search(shardKeys[i]);
+        }
+    }
+
+    private int search(byte[] shardKey) {
+        int lo = 0;
+        int hi = splitPoints.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKeys(splitPoints[mid], shardKey) <= 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the first and last shard, inclusive, that can hold keys in [startKey, endKey].
+     */
+    public int[] shardRange(byte[] startKey, byte[] endKey, int shardCount) {
+        return new int[]{shardIndex(startKey, shardCount), shardIndex(endKey, shardCount)};
+    }
+
+    /**
+     * Returns the first and last shard, inclusive, that can hold keys starting with prefix.
+     */
+    public int[] prefixShardRange(byte[] prefix, int shardCount) {
+        int first = shardIndex(prefix, shardCount);
+        int last = first;
+        while (last < splitPoints.length && startsWithOrBelow(splitPoints[last], prefix)) {
+            last++;
+        }
+        return new int[]{first, last};
+    }
+
+    public void assertShardCount(int shardCount) {
+        if (splitPoints == null) {
+            throw new IllegalStateException("RangeScheme has no split points.");
+        }
+        if (splitPoints.length != shardCount - 1) {
+            throw new IllegalArgumentException(splitPoints.length + " split points can't route to "
+                + shardCount + " shards; expected " + (shardCount - 1));
+        }
+    }
+
+    /**
+     * Picks shardCount - 1 split points that cut the sorted sample into evenly sized runs. An
+     * empty sample routes every key to the last shard.
+     */
+    public static RangeScheme fromSample(List<byte[]> sample, int shardCount) {
+        List<byte[]> sorted = new ArrayList<byte[]>(sample);
+        Collections.sort(sorted, KEY_ORDER);
+
+        byte[][] splits = new byte[shardCount - 1][];
+        for (int i = 1; i < shardCount; i++) {
+            splits[i - 1] = sorted.isEmpty()
+                ? new byte[0]
+                : sorted.get((int) ((long) i * sorted.size() / shardCount));
+        }
+        return new RangeScheme(splits);
+    }
+
+    /**
+     * Returns true for roughly rate of all distinct keys. Sampling by hash rather than at random
+     * means duplicate keys are sampled together, and the same input always gives the same splits.
+     */
+    public static boolean isSampled(byte[] key, double rate) {
+        return (Hashing.xxHash64(key) >>> 11) * 0x1.0p-53 < rate;
+    }
+
+    public static int compareKeys(byte[] a, byte[] b) {
+        int len = Math.min(a.length, b.length);
+        for (int i = 0; i < len; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static boolean startsWithOrBelow(byte[] key, byte[] prefix) {
+        byte[] head = key.length > prefix.length ? Arrays.copyOf(key, prefix.length) : key;
+        return compareKeys(head, prefix) <= 0;
+    }
+}
@@ -0,0 +1,12 @@
+package elephantdb.partition;
+
+/**
+ * Shards on XXH64. Select it in domain-spec.yaml with
+ * shard_scheme: elephantdb.partition.XXHashScheme
+ */
+public class XXHashScheme extends FastHashScheme {
+
+    protected long hash(byte[] shardKey) {
+        return Hashing.xxHash64(shardKey);
+    }
+}
@@ -0,0 +1,12 @@
+package elephantdb.persistence;
+
+import java.io.IOException;
+
+/**
+ * A KeyValPersistence that can scan its records through a KeyValCursor. Callers go through
+ * Utils.openCursor, which wraps the persistence's iterator for persistences that don't implement
+ * this.
+ */
+public interface CursorPersistence extends KeyValPersistence {
+    KeyValCursor openCursor() throws IOException;
+}
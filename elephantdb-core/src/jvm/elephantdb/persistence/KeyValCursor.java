@@ -0,0 +1,22 @@
+package elephantdb.persistence;
+
+import elephantdb.document.KeyValDocument;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A forward-only cursor over every record of a shard that refills a single KeyValDocument in
+ * place instead of allocating one per record. Meant for full scans (ElephantInputFormat, counts,
+ * resharding) where the per-record garbage of an iterator adds up.
+ *
+ * The document returned by next() is only valid until the following call, but the key and value
+ * arrays it points to are never reused, so callers can keep those.
+ */
+public interface KeyValCursor extends Closeable {
+    /**
+     * Advances to the next record and returns the cursor's document refilled with it, or null
+     * once the shard is exhausted.
+     */
+    KeyValDocument next() throws IOException;
+}
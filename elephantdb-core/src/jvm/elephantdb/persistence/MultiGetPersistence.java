@@ -0,0 +1,16 @@
+package elephantdb.persistence;
+
+import java.io.IOException;
+
+/**
+ * A KeyValPersistence that can look up a whole batch of keys in one call, typically by visiting
+ * them in key order so neighbouring lookups share the blocks they read. Callers go through
+ * Utils.multiGet, which falls back to one get per key for persistences that don't implement this.
+ */
+public interface MultiGetPersistence extends KeyValPersistence {
+    /**
+     * Returns the value of each of the supplied keys, in the same order, with null for keys the
+     * persistence doesn't hold.
+     */
+    byte[][] multiGet(byte[][] keys) throws IOException;
+}
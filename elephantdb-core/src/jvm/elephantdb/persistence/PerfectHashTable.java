@@ -0,0 +1,644 @@
+package elephantdb.persistence;
+
+import elephantdb.document.KeyValDocument;
+import elephantdb.partition.Hashing;
+import elephantdb.partition.RangeScheme;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A point-lookup-only coordinator built around a minimal perfect hash (BBHash). Documents are
+ * appended to a data file in whatever order they arrive; on close the persistence hashes every
+ * key and builds levels of bit arrays in which each key owns exactly one set bit. The rank of
+ * that bit indexes a packed array of data-file offsets, so a get is one hash, a few bit probes
+ * and one read at a known offset, where the stored key is compared to reject absent keys. The
+ * index costs about 3.7 bits per key plus the offset width, far less than a B-tree or LSM
+ * index. Keys that still collide after the last level, including repeated keys (the last value
+ * wins), go to a small sorted fallback table.
+ *
+ * The build happens in close(), so under ElephantOutputFormat it runs in the record writer on
+ * the local shard before the upload. Opening an existing table for append copies its entries
+ * into the new one and rebuilds. Closing a table unmaps it, as SortedTable does, so close() must
+ * not race reads.
+ *
+ * Options in persistence_opts: gamma, the bits per key of each level (default 2.0); higher is
+ * faster to build and probe, lower is smaller.
+ */
+public class PerfectHashTable implements Coordinator {
+    public static Logger LOG = Logger.getLogger(PerfectHashTable.class);
+
+    public static final String TABLE_FILENAME = "perfect-hash";
+    public static final String GAMMA_OPT = "gamma";
+    public static final double DEFAULT_GAMMA = 2.0;
+
+    static final long MAGIC = 0x4544424d50484631L; // "EDBMPHF1"
+    static final int FOOTER_SIZE = 8 + 4 + 4 + 4 + 4 + 8;
+    static final int MAX_LEVELS = 32;
+    static final int SEGMENT_BITS = 30;
+
+    public PerfectHashTable() {
+        super();
+    }
+
+    public Persistence openPersistenceForRead(String root, Map options) throws IOException {
+        return new PerfectHashPersistence(root, options, true);
+    }
+
+    public Persistence openPersistenceForAppend(String root, Map options) throws IOException {
+        return new PerfectHashPersistence(root, options, false);
+    }
+
+    public Persistence createPersistence(String root, Map options) throws IOException {
+        new File(root).mkdirs();
+        new TableWriter(tableFile(root), gamma(options)).close();
+        PerfectHashPersistence ret = new PerfectHashPersistence(root, options, true);
+        ret.close();
+        return ret;
+    }
+
+    static File tableFile(String root) {
+        return new File(root, TABLE_FILENAME);
+    }
+
+    static double gamma(Map options) {
+        Object gamma = (options == null) ? null : options.get(GAMMA_OPT);
+        return (gamma == null) ? DEFAULT_GAMMA : ((Number) gamma).doubleValue();
+    }
+
+    public static class PerfectHashPersistence implements KeyValPersistence {
+        String root;
+        double gamma;
+        boolean readOnly;
+        TableReader reader;
+        TableWriter writer;
+
+        public PerfectHashPersistence(String root, Map options, boolean readOnly) throws IOException {
+            this.root = root;
+            this.gamma = gamma(options);
+            this.readOnly = readOnly;
+            File table = tableFile(root);
+            if (table.exists()) {
+                reader = new TableReader(table);
+            } else if (readOnly) {
+                throw new IOException("No perfect hash table at " + root);
+            }
+        }
+
+        /**
+         * In append mode this reads the table as it was when opened; new entries become
+         * visible once the persistence is closed.
+         */
+        public byte[] get(byte[] key) throws IOException {
+            return (reader == null) ? null : reader.get(key);
+        }
+
+        public void put(byte[] key, byte[] value) throws IOException {
+            index(new KeyValDocument(key, value));
+        }
+
+        public void index(KeyValDocument document) throws IOException {
+            if (readOnly) {
+                throw new IOException("Perfect hash table at " + root + " is open for reading.");
+            }
+            if (writer == null) {
+                new File(root).mkdirs();
+                writer = new TableWriter(new File(root, TABLE_FILENAME + ".tmp"), gamma);
+                if (reader != null) {
+                    CloseableIterator<KeyValDocument> it = reader.iterator();
+                    while (it.hasNext()) {
+                        KeyValDocument doc = it.next();
+                        writer.append(doc.key, doc.value);
+                    }
+                }
+            }
+            writer.append(document.key, document.value);
+        }
+
+        public void close() throws IOException {
+            if (writer != null) {
+                writer.close();
+                File table = tableFile(root);
+                table.delete();
+                if (!writer.file.renameTo(table)) {
+                    throw new IOException("Unable to move " + writer.file + " to " + table);
+                }
+                writer = null;
+            }
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+
+        public CloseableIterator<KeyValDocument> iterator() {
+            if (reader == null) {
+                throw new IllegalStateException("No perfect hash table at " + root);
+            }
+            return reader.iterator();
+        }
+    }
+
+    /**
+     * Position of a key's hash in a level of the supplied size, in bits. Each level remixes the
+     * key's XXH64 so that keys which collide on one level spread out on the next.
+     */
+    static int position(long hash, int level, int size) {
+        long h = hash + (level + 1) * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return Hashing.reduce(h, size);
+    }
+
+    static boolean isSet(long[] bits, long bit) {
+        return (bits[(int) (bit >>> 6)] & (1L << bit)) != 0;
+    }
+
+    static int offsetBits(long dataLength) {
+        return Math.max(1, 64 - Long.numberOfLeadingZeros(dataLength));
+    }
+
+    /**
+     * Appends entries (varint key length, varint value length, key, value) to the data section
+     * as they arrive, keeping each key's hash and offset, and writes the hash levels, packed
+     * offsets and fallback table after them on close.
+     */
+    static class TableWriter {
+        final File file;
+        final double gamma;
+        final DataOutputStream out;
+
+        long pos = 0;
+        int count = 0;
+        long[] hashes = new long[1024];
+        long[] offsets = new long[1024];
+
+        TableWriter(File file, double gamma) throws IOException {
+            this.file = file;
+            this.gamma = gamma;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        }
+
+        void append(byte[] key, byte[] value) throws IOException {
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            hashes[count] = Hashing.xxHash64(key);
+            offsets[count] = pos;
+            count++;
+            pos += SortedTable.writeVarInt(out, key.length);
+            pos += SortedTable.writeVarInt(out, value.length);
+            out.write(key);
+            out.write(value);
+            pos += key.length + value.length;
+        }
+
+        void close() throws IOException {
+            out.flush();
+            long dataLength = pos;
+
+            // Build the levels. Keys whose position is taken by another key move on.
+            List<long[]> levels = new ArrayList<long[]>();
+            int[] remaining = new int[count];
+            for (int i = 0; i < count; i++) {
+                remaining[i] = i;
+            }
+            int remainingCount = count;
+            for (int level = 0; level < MAX_LEVELS && remainingCount > 0; level++) {
+                int size = (int) Math.min(Integer.MAX_VALUE - 63,
+                    Math.max(64, (long) Math.ceil(gamma * remainingCount)));
+                size = (size + 63) & ~63;
+                long[] seen = new long[size >>> 6];
+                long[] collided = new long[size >>> 6];
+                for (int r = 0; r < remainingCount; r++) {
+                    int p = position(hashes[remaining[r]], level, size);
+                    if (isSet(seen, p)) {
+                        collided[p >>> 6] |= 1L << p;
+                    } else {
+                        seen[p >>> 6] |= 1L << p;
+                    }
+                }
+                int next = 0;
+                for (int r = 0; r < remainingCount; r++) {
+                    if (isSet(collided, position(hashes[remaining[r]], level, size))) {
+                        remaining[next++] = remaining[r];
+                    }
+                }
+                for (int w = 0; w < seen.length; w++) {
+                    seen[w] &= ~collided[w];
+                }
+                levels.add(seen);
+                remainingCount = next;
+            }
+
+            Levels index = new Levels(levels);
+            int placed = count - remainingCount;
+            int bits = offsetBits(dataLength);
+            long[] packed = new long[(int) (((long) placed * bits + 63) >>> 6) + 1];
+            boolean[] inFallback = new boolean[count];
+            for (int r = 0; r < remainingCount; r++) {
+                inFallback[remaining[r]] = true;
+            }
+            for (int i = 0; i < count; i++) {
+                if (!inFallback[i]) {
+                    setPacked(packed, index.rank(hashes[i]), bits, offsets[i]);
+                }
+            }
+
+            for (long[] level : levels) {
+                out.writeInt(level.length);
+                for (long w : level) {
+                    out.writeLong(w);
+                }
+            }
+            for (long w : packed) {
+                out.writeLong(w);
+            }
+            long[] fallback = fallbackOffsets(remaining, remainingCount);
+            for (long offset : fallback) {
+                out.writeLong(offset);
+            }
+
+            out.writeLong(dataLength);
+            out.writeInt(levels.size());
+            out.writeInt(placed);
+            out.writeInt(fallback.length);
+            out.writeInt(packed.length);
+            out.writeLong(MAGIC);
+            out.close();
+            hashes = null;
+            offsets = null;
+        }
+
+        /**
+         * Sorts the leftover keys by key, keeping only the last offset for a repeated key.
+         * Reads the keys back from the data just written.
+         */
+        private long[] fallbackOffsets(int[] remaining, int remainingCount) throws IOException {
+            if (remainingCount == 0) {
+                return new long[0];
+            }
+            final List<byte[]> keys = new ArrayList<byte[]>();
+            List<Integer> order = new ArrayList<Integer>();
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                for (int r = 0; r < remainingCount; r++) {
+                    keys.add(readKey(raf, offsets[remaining[r]]));
+                    order.add(r);
+                }
+            } finally {
+                raf.close();
+            }
+            final int[] rem = remaining;
+            final long[] offs = offsets;
+            Collections.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int cmp = RangeScheme.compareKeys(keys.get(a), keys.get(b));
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                    long diff = offs[rem[a]] - offs[rem[b]];
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            List<Long> ret = new ArrayList<Long>();
+            for (int i = 0; i < order.size(); i++) {
+                int r = order.get(i);
+                boolean superseded = i + 1 < order.size()
+                    && Arrays.equals(keys.get(r), keys.get(order.get(i + 1)));
+                if (!superseded) {
+                    ret.add(offsets[remaining[r]]);
+                }
+            }
+            long[] arr = new long[ret.size()];
+            for (int i = 0; i < arr.length; i++) {
+                arr[i] = ret.get(i);
+            }
+            return arr;
+        }
+
+        private static byte[] readKey(RandomAccessFile raf, long offset) throws IOException {
+            raf.seek(offset);
+            int keyLength = readVarInt(raf);
+            readVarInt(raf);
+            byte[] key = new byte[keyLength];
+            raf.readFully(key);
+            return key;
+        }
+
+        private static int readVarInt(RandomAccessFile raf) throws IOException {
+            int ret = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = raf.readByte();
+                ret |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return ret;
+        }
+    }
+
+    static void setPacked(long[] packed, long index, int bits, long value) {
+        long bitPos = index * bits;
+        int word = (int) (bitPos >>> 6);
+        int shift = (int) (bitPos & 63);
+        packed[word] |= value << shift;
+        if (shift + bits > 64) {
+            packed[word + 1] |= value >>> (64 - shift);
+        }
+    }
+
+    static long getPacked(long[] packed, long index, int bits) {
+        long bitPos = index * bits;
+        int word = (int) (bitPos >>> 6);
+        int shift = (int) (bitPos & 63);
+        long value = packed[word] >>> shift;
+        if (shift + bits > 64) {
+            value |= packed[word + 1] << (64 - shift);
+        }
+        return (bits == 64) ? value : value & ((1L << bits) - 1);
+    }
+
+    /**
+     * The hash levels, with a rank sample every 512 bits.
+     */
+    static class Levels {
+        final long[][] levels;
+        final int[] sizes;
+        final long[] levelRank;
+        final int[][] samples;
+
+        Levels(List<long[]> levelList) {
+            levels = levelList.toArray(new long[levelList.size()][]);
+            sizes = new int[levels.length];
+            levelRank = new long[levels.length];
+            samples = new int[levels.length][];
+            long total = 0;
+            for (int l = 0; l < levels.length; l++) {
+                long[] words = levels[l];
+                sizes[l] = words.length << 6;
+                levelRank[l] = total;
+                samples[l] = new int[(words.length >>> 3) + 1];
+                int running = 0;
+                for (int w = 0; w < words.length; w++) {
+                    if ((w & 7) == 0) {
+                        samples[l][w >>> 3] = running;
+                    }
+                    running += Long.bitCount(words[w]);
+                }
+                total += running;
+            }
+        }
+
+        /**
+         * Returns the index of the key with the supplied hash among all placed keys, or -1 if
+         * no level has a bit set for it.
+         */
+        long rank(long hash) {
+            for (int l = 0; l < levels.length; l++) {
+                long[] words = levels[l];
+                int p = position(hash, l, sizes[l]);
+                int w = p >>> 6;
+                long bit = 1L << p;
+                if ((words[w] & bit) != 0) {
+                    int rank = samples[l][w >>> 3];
+                    for (int i = w & ~7; i < w; i++) {
+                        rank += Long.bitCount(words[i]);
+                    }
+                    rank += Long.bitCount(words[w] & (bit - 1));
+                    return levelRank[l] + rank;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The read side. The hash levels, packed offsets and fallback table live on the heap; the
+     * data section is mapped in 1GB segments and read with absolute gets only, so gets need no
+     * locking.
+     */
+    static class TableReader {
+        final Levels levels;
+        final long[] packed;
+        final int offsetBits;
+        final long[] fallback;
+        final long dataLength;
+        final ByteBuffer[] segments;
+        boolean closed = false;
+
+        TableReader(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long length = raf.length();
+                if (length < FOOTER_SIZE) {
+                    throw new IOException("Corrupt perfect hash table " + file + ": too short");
+                }
+                raf.seek(length - FOOTER_SIZE);
+                dataLength = raf.readLong();
+                int levelCount = raf.readInt();
+                raf.readInt();
+                int fallbackCount = raf.readInt();
+                int packedWords = raf.readInt();
+                if (raf.readLong() != MAGIC) {
+                    throw new IOException("Corrupt perfect hash table " + file + ": bad magic number");
+                }
+
+                FileChannel channel = raf.getChannel();
+                ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, dataLength,
+                    length - FOOTER_SIZE - dataLength);
+                List<long[]> levelList = new ArrayList<long[]>();
+                for (int l = 0; l < levelCount; l++) {
+                    long[] words = new long[index.getInt()];
+                    index.asLongBuffer().get(words);
+                    index.position(index.position() + 8 * words.length);
+                    levelList.add(words);
+                }
+                levels = new Levels(levelList);
+                packed = new long[packedWords];
+                index.asLongBuffer().get(packed);
+                index.position(index.position() + 8 * packedWords);
+                fallback = new long[fallbackCount];
+                index.asLongBuffer().get(fallback);
+                offsetBits = offsetBits(dataLength);
+                SortedTable.unmap(index);
+
+                int segmentCount = (int) ((dataLength + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS);
+                segments = new ByteBuffer[segmentCount];
+                for (int s = 0; s < segmentCount; s++) {
+                    long start = (long) s << SEGMENT_BITS;
+                    long size = Math.min(1L << SEGMENT_BITS, dataLength - start);
+                    segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        byte byteAt(long pos) {
+            return segments[(int) (pos >>> SEGMENT_BITS)].get((int) (pos & ((1L << SEGMENT_BITS) - 1)));
+        }
+
+        void read(long pos, byte[] dst) {
+            int done = 0;
+            while (done < dst.length) {
+                ByteBuffer seg = segments[(int) ((pos + done) >>> SEGMENT_BITS)].duplicate();
+                int off = (int) ((pos + done) & ((1L << SEGMENT_BITS) - 1));
+                int n = Math.min(dst.length - done, seg.capacity() - off);
+                seg.position(off);
+                seg.get(dst, done, n);
+                done += n;
+            }
+        }
+
+        long readVarInt(long pos, long[] next) {
+            long ret = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = byteAt(pos++);
+                ret |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            next[0] = pos;
+            return ret;
+        }
+
+        /**
+         * Compares the key stored at offset with the supplied key.
+         */
+        int compareAt(long offset, byte[] key) {
+            long[] next = new long[1];
+            int keyLength = (int) readVarInt(offset, next);
+            readVarInt(next[0], next);
+            long p = next[0];
+            int len = Math.min(keyLength, key.length);
+            for (int i = 0; i < len; i++) {
+                int diff = (byteAt(p + i) & 0xff) - (key[i] & 0xff);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return keyLength - key.length;
+        }
+
+        byte[] valueAt(long offset) {
+            long[] next = new long[1];
+            int keyLength = (int) readVarInt(offset, next);
+            int valueLength = (int) readVarInt(next[0], next);
+            byte[] ret = new byte[valueLength];
+            read(next[0] + keyLength, ret);
+            return ret;
+        }
+
+        /**
+         * Returns the data offset holding the supplied key, or -1.
+         */
+        long offsetOf(byte[] key) {
+            long rank = levels.rank(Hashing.xxHash64(key));
+            if (rank >= 0) {
+                long offset = getPacked(packed, rank, offsetBits);
+                return (compareAt(offset, key) == 0) ? offset : -1;
+            }
+            int lo = 0;
+            int hi = fallback.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compareAt(fallback[mid], key);
+                if (cmp == 0) {
+                    return fallback[mid];
+                } else if (cmp < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return -1;
+        }
+
+        byte[] get(byte[] key) {
+            long offset = offsetOf(key);
+            return (offset < 0) ? null : valueAt(offset);
+        }
+
+        /**
+         * Walks the data section in the order documents were indexed, skipping entries that a
+         * later one with the same key replaced.
+         */
+        CloseableIterator<KeyValDocument> iterator() {
+            return new CloseableIterator<KeyValDocument>() {
+                long pos = 0;
+                KeyValDocument next = null;
+
+                private void advance() {
+                    long[] cursor = new long[1];
+                    while (next == null && pos < dataLength) {
+                        long offset = pos;
+                        int keyLength = (int) readVarInt(pos, cursor);
+                        int valueLength = (int) readVarInt(cursor[0], cursor);
+                        byte[] key = new byte[keyLength];
+                        read(cursor[0], key);
+                        pos = cursor[0] + keyLength + valueLength;
+                        if (offsetOf(key) == offset) {
+                            byte[] value = new byte[valueLength];
+                            read(cursor[0] + keyLength, value);
+                            next = new KeyValDocument(key, value);
+                        }
+                    }
+                }
+
+                public boolean hasNext() {
+                    advance();
+                    return next != null;
+                }
+
+                public KeyValDocument next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    KeyValDocument ret = next;
+                    next = null;
+                    return ret;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("Not supported.");
+                }
+
+                public void close() {
+                }
+            };
+        }
+
+        /**
+         * Unmaps the table. Nothing may read it afterwards, or be reading it at the time.
+         */
+        void close() {
+            if (!closed) {
+                closed = true;
+                for (ByteBuffer seg : segments) {
+                    SortedTable.unmap(seg);
+                }
+            }
+        }
+    }
+}
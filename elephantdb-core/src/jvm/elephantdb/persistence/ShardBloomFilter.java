@@ -0,0 +1,186 @@
+package elephantdb.persistence;
+
+import elephantdb.partition.Hashing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A Bloom filter over the keys of one shard, stored in the shard directory next to the
+ * persistence. ElephantOutputFormat builds it while indexing and the server loads it with the
+ * shard, so that a lookup for a key the shard definitely doesn't hold never reaches the
+ * persistence.
+ *
+ * Filters are opt-in through persistence_opts: bloom_fpr sets the target false-positive rate
+ * (e.g. 0.01), or bloom_bits_per_key sets the size directly. Probes are derived from the key's
+ * XXH64 by double hashing.
+ */
+public class ShardBloomFilter {
+    public static final String FILENAME = "bloom-filter";
+    public static final String FPR_OPT = "bloom_fpr";
+    public static final String BITS_PER_KEY_OPT = "bloom_bits_per_key";
+
+    private static final int MAGIC = 0x45444246; // "EDBF"
+
+    private final long[] words;
+    private final long numBits;
+    private final int numHashes;
+
+    public ShardBloomFilter(long numBits, int numHashes) {
+        long bits = Math.max(64, (numBits + 63) & ~63L);
+        this.words = new long[(int) (bits >>> 6)];
+        this.numBits = bits;
+        this.numHashes = Math.max(1, numHashes);
+    }
+
+    private ShardBloomFilter(long[] words, int numHashes) {
+        this.words = words;
+        this.numBits = (long) words.length << 6;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Returns the configured bits per key, or 0 if the options don't ask for a filter.
+     */
+    public static double bitsPerKey(Map options) {
+        if (options == null) {
+            return 0;
+        }
+        Object bits = options.get(BITS_PER_KEY_OPT);
+        if (bits != null) {
+            return ((Number) bits).doubleValue();
+        }
+        Object fpr = options.get(FPR_OPT);
+        if (fpr != null) {
+            double p = ((Number) fpr).doubleValue();
+            return -Math.log(p) / (Math.log(2) * Math.log(2));
+        }
+        return 0;
+    }
+
+    public static boolean isEnabled(Map options) {
+        return bitsPerKey(options) > 0;
+    }
+
+    /**
+     * Sizes a filter for the supplied number of keys and adds each of the supplied key hashes
+     * (as returned by hash).
+     */
+    public static ShardBloomFilter build(long[] keyHashes, int count, double bitsPerKey) {
+        int numHashes = (int) Math.round(bitsPerKey * Math.log(2));
+        ShardBloomFilter ret = new ShardBloomFilter((long) Math.ceil(count * bitsPerKey), numHashes);
+        for (int i = 0; i < count; i++) {
+            ret.addHash(keyHashes[i]);
+        }
+        return ret;
+    }
+
+    public static long hash(byte[] key) {
+        return Hashing.xxHash64(key);
+    }
+
+    public void add(byte[] key) {
+        addHash(hash(key));
+    }
+
+    public void addHash(long hash) {
+        for (int i = 0; i < numHashes; i++) {
+            long bit = probe(hash, i);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * False means the shard definitely doesn't hold the key.
+     */
+    public boolean mightContain(byte[] key) {
+        long hash = hash(key);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = probe(hash, i);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long probe(long hash, int i) {
+        long h2 = ((hash >>> 32) | (hash << 32)) | 1;
+        return ((hash + i * h2) & Long.MAX_VALUE) % numBits;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public void writeToShard(String shardRoot) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(new File(shardRoot, FILENAME))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(numHashes);
+            out.writeInt(words.length);
+            for (long w : words) {
+                out.writeLong(w);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the filter stored in the supplied local shard directory, or null if it has none.
+     */
+    public static ShardBloomFilter readFromShard(String shardRoot) throws IOException {
+        File file = new File(shardRoot, FILENAME);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Corrupt bloom filter at " + file);
+            }
+            int numHashes = in.readInt();
+            long[] words = new long[in.readInt()];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return new ShardBloomFilter(words, numHashes);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Collects key hashes while a shard is written, so the filter can be sized exactly once the
+     * key count is known.
+     */
+    public static class Builder {
+        private long[] hashes = new long[1024];
+        private int count = 0;
+
+        public void add(byte[] key) {
+            if (count == hashes.length) {
+                hashes = Arrays.copyOf(hashes, count * 2);
+            }
+            hashes[count++] = hash(key);
+        }
+
+        public ShardBloomFilter build(double bitsPerKey) {
+            return ShardBloomFilter.build(hashes, count, bitsPerKey);
+        }
+    }
+}
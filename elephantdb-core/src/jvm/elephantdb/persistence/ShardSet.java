@@ -5,6 +5,7 @@ import java.io.IOException;
 public interface ShardSet {
     int getNumShards();
     int shardIndex(byte[] shardKey);
+    void shardIndices(byte[][] shardKeys, int[] out);
     String shardPath(int shardIdx);
     Persistence openShardForAppend(int shardIdx) throws IOException;
     Persistence openShardForRead(int shardIdx) throws IOException;
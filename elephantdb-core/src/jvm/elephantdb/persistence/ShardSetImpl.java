@@ -1,6 +1,7 @@
 package elephantdb.persistence;
 
 import elephantdb.DomainSpec;
+import elephantdb.Utils;
 import elephantdb.partition.ShardingScheme;
 
 import java.io.IOException;
@@ -15,10 +16,20 @@ public class ShardSetImpl implements ShardSet {
     
     private String root;
     private DomainSpec spec;
+    private Map<Integer, String> shardPaths;
 
     public ShardSetImpl(String root, DomainSpec spec) {
+        this(root, spec, null);
+    }
+
+    /**
+     * @param shardPaths shard index -> path for shards that live outside of root, e.g. in an
+     * earlier version. May be null.
+     */
+    public ShardSetImpl(String root, DomainSpec spec, Map<Integer, String> shardPaths) {
         this.root = root;
         this.spec = spec;
+        this.shardPaths = shardPaths;
     }
 
     public Coordinator getCoordinator() {
@@ -59,6 +70,9 @@ public class ShardSetImpl implements ShardSet {
 
     public String shardPath(int shardIdx) {
         assertValidShard(shardIdx);
+        if (shardPaths != null && shardPaths.containsKey(shardIdx)) {
+            return shardPaths.get(shardIdx);
+        }
         return root + "/" + shardIdx;
     }
 
@@ -69,4 +83,8 @@ public class ShardSetImpl implements ShardSet {
     public int shardIndex(byte[] shardKey) {
         return getShardScheme().shardIndex(shardKey, getNumShards());
     }
+
+    public void shardIndices(byte[][] shardKeys, int[] out) {
+        Utils.shardIndices(getShardScheme(), shardKeys, getNumShards(), out);
+    }
 }
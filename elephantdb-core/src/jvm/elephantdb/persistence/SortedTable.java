@@ -0,0 +1,491 @@
+package elephantdb.persistence;
+
+import elephantdb.document.KeyValDocument;
+import elephantdb.partition.RangeScheme;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable sorted table with no native dependencies, for read-only domains. A shard is a
+ * single file written in one sequential pass: blocks of key/value entries in key order, then a
+ * sparse index holding the first key and offset of each block, then a fixed-size footer. Reads
+ * map the file with MappedByteBuffers, binary search the sparse index and scan one block, using
+ * only absolute reads so that any number of threads can get at once without locking.
+ *
+ * close() unmaps the file, so that a closed (and then deleted) table frees its disk space right
+ * away rather than whenever the buffers are collected. It must not race with reads: a get or
+ * iterator still running against an unmapped table can crash the JVM. The server only closes a
+ * shard after swapping it out under the domain's write lock, and reads it under the read lock.
+ *
+ * Keys must be indexed in unsigned byte order, which is how KeyValTailAssembly and elephant<-
+ * already sort each shard; an out-of-order key fails the write. A repeated key overwrites the
+ * previous value. Opening an existing table for append merges the new (sorted) keys into it.
+ *
+ * Options in persistence_opts: block_size, the target size of a block in bytes (default 4096).
+ */
+public class SortedTable implements Coordinator {
+    public static Logger LOG = Logger.getLogger(SortedTable.class);
+
+    public static final String TABLE_FILENAME = "sorted-table";
+    public static final String BLOCK_SIZE_OPT = "block_size";
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    static final long MAGIC = 0x4544425354424c31L; // "EDBSTBL1"
+    static final int FOOTER_SIZE = 8 + 4 + 8 + 8;
+    static final int MAX_SEGMENT_SIZE = 1 << 30;
+
+    public SortedTable() {
+        super();
+    }
+
+    public Persistence openPersistenceForRead(String root, Map options) throws IOException {
+        return new SortedTablePersistence(root, options, true);
+    }
+
+    public Persistence openPersistenceForAppend(String root, Map options) throws IOException {
+        return new SortedTablePersistence(root, options, false);
+    }
+
+    public Persistence createPersistence(String root, Map options) throws IOException {
+        new File(root).mkdirs();
+        new TableWriter(tableFile(root), blockSize(options)).close();
+        SortedTablePersistence ret = new SortedTablePersistence(root, options, true);
+        ret.close();
+        return ret;
+    }
+
+    static File tableFile(String root) {
+        return new File(root, TABLE_FILENAME);
+    }
+
+    static int blockSize(Map options) {
+        Object size = (options == null) ? null : options.get(BLOCK_SIZE_OPT);
+        return (size == null) ? DEFAULT_BLOCK_SIZE : ((Number) size).intValue();
+    }
+
+    public static class SortedTablePersistence implements KeyValPersistence {
+        String root;
+        int blockSize;
+        boolean readOnly;
+        TableReader reader;
+        TableWriter writer;
+        CloseableIterator<KeyValDocument> existing;
+        KeyValDocument nextExisting;
+
+        public SortedTablePersistence(String root, Map options, boolean readOnly) throws IOException {
+            this.root = root;
+            this.blockSize = blockSize(options);
+            this.readOnly = readOnly;
+            File table = tableFile(root);
+            if (table.exists()) {
+                reader = new TableReader(table);
+            } else if (readOnly) {
+                throw new IOException("No sorted table at " + root);
+            }
+        }
+
+        /**
+         * In append mode this reads the table as it was when opened; new entries become
+         * visible once the persistence is closed.
+         */
+        public byte[] get(byte[] key) throws IOException {
+            return (reader == null) ? null : reader.get(key);
+        }
+
+        public void put(byte[] key, byte[] value) throws IOException {
+            index(new KeyValDocument(key, value));
+        }
+
+        public void index(KeyValDocument document) throws IOException {
+            if (readOnly) {
+                throw new IOException("Sorted table at " + root + " is open for reading.");
+            }
+            if (writer == null) {
+                new File(root).mkdirs();
+                writer = new TableWriter(new File(root, TABLE_FILENAME + ".tmp"), blockSize);
+                if (reader != null) {
+                    existing = reader.iterator();
+                    nextExisting = existing.hasNext() ? existing.next() : null;
+                }
+            }
+            // merge in the existing entries that sort before this one
+            while (nextExisting != null
+                && RangeScheme.compareKeys(nextExisting.key, document.key) < 0) {
+                writer.append(nextExisting.key, nextExisting.value);
+                nextExisting = existing.hasNext() ? existing.next() : null;
+            }
+            if (nextExisting != null && Arrays.equals(nextExisting.key, document.key)) {
+                nextExisting = existing.hasNext() ? existing.next() : null;
+            }
+            writer.append(document.key, document.value);
+        }
+
+        public void close() throws IOException {
+            if (writer != null) {
+                while (nextExisting != null) {
+                    writer.append(nextExisting.key, nextExisting.value);
+                    nextExisting = existing.hasNext() ? existing.next() : null;
+                }
+                writer.close();
+                if (existing != null) {
+                    existing.close();
+                }
+                File table = tableFile(root);
+                table.delete();
+                if (!writer.file.renameTo(table)) {
+                    throw new IOException("Unable to move " + writer.file + " to " + table);
+                }
+                writer = null;
+            }
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+
+        public CloseableIterator<KeyValDocument> iterator() {
+            if (reader == null) {
+                throw new IllegalStateException("No sorted table at " + root);
+            }
+            return reader.iterator();
+        }
+    }
+
+    /**
+     * Writes a table in one pass. Entries are varint key length, varint value length, key,
+     * value. Each index entry is varint key length, key, 8-byte block offset.
+     */
+    static class TableWriter {
+        final File file;
+        final int blockSize;
+        final DataOutputStream out;
+
+        long pos = 0;
+        long blockStart = -1;
+        long entryCount = 0;
+        List<byte[]> blockKeys = new ArrayList<byte[]>();
+        List<Long> blockOffsets = new ArrayList<Long>();
+
+        byte[] pendingKey;
+        byte[] pendingValue;
+
+        TableWriter(File file, int blockSize) throws IOException {
+            this.file = file;
+            this.blockSize = blockSize;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        }
+
+        void append(byte[] key, byte[] value) throws IOException {
+            if (pendingKey != null) {
+                int cmp = RangeScheme.compareKeys(key, pendingKey);
+                if (cmp < 0) {
+                    throw new IOException("Keys must be indexed in sorted order; got a key that "
+                        + "sorts before the previous one in " + file);
+                } else if (cmp == 0) {
+                    pendingValue = value;
+                    return;
+                }
+                writeEntry(pendingKey, pendingValue);
+            }
+            pendingKey = key;
+            pendingValue = value;
+        }
+
+        private void writeEntry(byte[] key, byte[] value) throws IOException {
+            if (blockStart < 0 || pos - blockStart >= blockSize) {
+                blockStart = pos;
+                blockKeys.add(key);
+                blockOffsets.add(pos);
+            }
+            pos += writeVarInt(out, key.length);
+            pos += writeVarInt(out, value.length);
+            out.write(key);
+            out.write(value);
+            pos += key.length + value.length;
+            entryCount++;
+        }
+
+        void close() throws IOException {
+            if (pendingKey != null) {
+                writeEntry(pendingKey, pendingValue);
+                pendingKey = null;
+            }
+            long indexOffset = pos;
+            for (int i = 0; i < blockKeys.size(); i++) {
+                byte[] key = blockKeys.get(i);
+                writeVarInt(out, key.length);
+                out.write(key);
+                out.writeLong(blockOffsets.get(i));
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(blockKeys.size());
+            out.writeLong(entryCount);
+            out.writeLong(MAGIC);
+            out.close();
+        }
+    }
+
+    /**
+     * The read side of a table. The data section is mapped in segments of up to 1GB, each
+     * holding whole blocks, and the sparse index is kept on the heap.
+     */
+    static class TableReader {
+        final long entryCount;
+        final byte[][] blockKeys;
+        final int[] blockSegment;
+        final int[] blockPos;
+        final int[] blockEnd;
+        final ByteBuffer[] segments;
+        boolean closed = false;
+
+        TableReader(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long length = raf.length();
+                if (length < FOOTER_SIZE) {
+                    throw new IOException("Corrupt sorted table " + file + ": too short");
+                }
+                raf.seek(length - FOOTER_SIZE);
+                long indexOffset = raf.readLong();
+                int blockCount = raf.readInt();
+                entryCount = raf.readLong();
+                if (raf.readLong() != MAGIC) {
+                    throw new IOException("Corrupt sorted table " + file + ": bad magic number");
+                }
+
+                long indexLength = length - FOOTER_SIZE - indexOffset;
+                ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, indexLength);
+                blockKeys = new byte[blockCount][];
+                long[] offsets = new long[blockCount + 1];
+                int p = 0;
+                for (int i = 0; i < blockCount; i++) {
+                    int keyLength = readVarInt(index, p);
+                    p += varIntSize(keyLength);
+                    blockKeys[i] = new byte[keyLength];
+                    for (int j = 0; j < keyLength; j++) {
+                        blockKeys[i][j] = index.get(p + j);
+                    }
+                    p += keyLength;
+                    offsets[i] = index.getLong(p);
+                    p += 8;
+                }
+                offsets[blockCount] = indexOffset;
+                unmap(index);
+
+                blockSegment = new int[blockCount];
+                blockPos = new int[blockCount];
+                blockEnd = new int[blockCount];
+                List<ByteBuffer> segs = new ArrayList<ByteBuffer>();
+                int first = 0;
+                while (first < blockCount) {
+                    long segStart = offsets[first];
+                    int last = first;
+                    while (last + 1 < blockCount && offsets[last + 2] - segStart <= MAX_SEGMENT_SIZE) {
+                        last++;
+                    }
+                    long segLength = offsets[last + 1] - segStart;
+                    if (segLength > MAX_SEGMENT_SIZE) {
+                        throw new IOException("Block at " + segStart + " in " + file + " is too large to map");
+                    }
+                    for (int b = first; b <= last; b++) {
+                        blockSegment[b] = segs.size();
+                        blockPos[b] = (int) (offsets[b] - segStart);
+                        blockEnd[b] = (int) (offsets[b + 1] - segStart);
+                    }
+                    MappedByteBuffer seg = channel.map(FileChannel.MapMode.READ_ONLY, segStart, segLength);
+                    segs.add(seg);
+                    first = last + 1;
+                }
+                segments = segs.toArray(new ByteBuffer[segs.size()]);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Returns the last block whose first key is <= key, or -1.
+         */
+        int floorBlock(byte[] key) {
+            int lo = 0;
+            int hi = blockKeys.length - 1;
+            int ret = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (RangeScheme.compareKeys(blockKeys[mid], key) <= 0) {
+                    ret = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return ret;
+        }
+
+        byte[] get(byte[] key) {
+            int b = floorBlock(key);
+            if (b < 0) {
+                return null;
+            }
+            ByteBuffer seg = segments[blockSegment[b]];
+            int p = blockPos[b];
+            int end = blockEnd[b];
+            while (p < end) {
+                int keyLength = readVarInt(seg, p);
+                p += varIntSize(keyLength);
+                int valueLength = readVarInt(seg, p);
+                p += varIntSize(valueLength);
+                int cmp = compare(seg, p, keyLength, key);
+                if (cmp == 0) {
+                    byte[] ret = new byte[valueLength];
+                    ByteBuffer dup = seg.duplicate();
+                    dup.position(p + keyLength);
+                    dup.get(ret);
+                    return ret;
+                } else if (cmp > 0) {
+                    return null;
+                }
+                p += keyLength + valueLength;
+            }
+            return null;
+        }
+
+        CloseableIterator<KeyValDocument> iterator() {
+            return new CloseableIterator<KeyValDocument>() {
+                int block = 0;
+                int p = (blockPos.length > 0) ? blockPos[0] : 0;
+                ByteBuffer seg = (segments.length > 0) ? segments[0].duplicate() : null;
+
+                public boolean hasNext() {
+                    while (block < blockPos.length && p >= blockEnd[block]) {
+                        block++;
+                        if (block < blockPos.length) {
+                            seg = segments[blockSegment[block]].duplicate();
+                            p = blockPos[block];
+                        }
+                    }
+                    return block < blockPos.length;
+                }
+
+                public KeyValDocument next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int keyLength = readVarInt(seg, p);
+                    p += varIntSize(keyLength);
+                    int valueLength = readVarInt(seg, p);
+                    p += varIntSize(valueLength);
+                    byte[] key = new byte[keyLength];
+                    byte[] value = new byte[valueLength];
+                    seg.position(p);
+                    seg.get(key);
+                    seg.get(value);
+                    p += keyLength + valueLength;
+                    return new KeyValDocument(key, value);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("Not supported.");
+                }
+
+                public void close() {
+                }
+            };
+        }
+
+        /**
+         * Unmaps the table. Nothing may read it afterwards, or be reading it at the time.
+         */
+        void close() {
+            if (!closed) {
+                closed = true;
+                for (ByteBuffer seg : segments) {
+                    unmap(seg);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases a mapped buffer now instead of when it's collected. The buffer must not be read
+     * afterwards. On a JVM that allows neither way of doing this, it's left to the collector.
+     */
+    static void unmap(ByteBuffer buf) {
+        try {
+            try {
+                // Java 9 and later
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buf);
+            } catch (NoSuchMethodException e) {
+                Method cleanerMethod = buf.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buf);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            LOG.debug("Unable to unmap a sorted table buffer, leaving it to the collector: " + e);
+        }
+    }
+
+    static int compare(ByteBuffer buf, int pos, int length, byte[] key) {
+        int len = Math.min(length, key.length);
+        for (int i = 0; i < len; i++) {
+            int diff = (buf.get(pos + i) & 0xff) - (key[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - key.length;
+    }
+
+    static int writeVarInt(DataOutputStream out, int value) throws IOException {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+            size++;
+        }
+        out.writeByte(value);
+        return size;
+    }
+
+    static int readVarInt(ByteBuffer buf, int pos) {
+        int ret = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get(pos++);
+            ret |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return ret;
+    }
+
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -10,10 +10,19 @@ import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 public class DomainStore {
+    /**
+     * Marks a shard that was carried over as-is from a version with fewer shards. It may still
+     * hold keys that now route to other shards; readers iterating over it must skip those.
+     */
+    public static final String INHERITED_SHARD_MARKER = "inherited-shard";
+
     VersionedStore vs;
     DomainSpec spec;
 
@@ -57,9 +66,25 @@ public class DomainStore {
         return spec;
     }
     
-    public ShardSet getShardSet(long version) {
-        String path = versionPath(version);
-        return new ShardSetImpl(path, spec);
+    /**
+     * Returns the shards of the supplied version, with shards the version references in earlier
+     * versions resolved to where they live.
+     */
+    public ShardSet getShardSet(long version) throws IOException {
+        Map<Integer, String> shardPaths = new HashMap<Integer, String>();
+        for (Map.Entry<String, Long> ref : vs.getReferences(version).entrySet()) {
+            shardPaths.put(Integer.parseInt(ref.getKey()),
+                versionPath(ref.getValue()) + "/" + ref.getKey());
+        }
+        return new ShardSetImpl(versionPath(version), spec, shardPaths);
+    }
+
+    /**
+     * Returns the shards physically in the supplied version's directory, ignoring references.
+     * Shards are only ever written here, never into the version a reference points at.
+     */
+    private ShardSet getOwnShardSet(long version) {
+        return new ShardSetImpl(versionPath(version), spec);
     }
 
     public FileSystem getFileSystem() {
@@ -79,7 +104,7 @@ public class DomainStore {
     }
 
     public Persistence openShardForAppend(int shardIdx, long version) throws IOException {
-        return getShardSet(version).openShardForAppend(shardIdx);
+        return getOwnShardSet(version).openShardForAppend(shardIdx);
     }
 
     public Persistence openShardForRead(int shardIdx) throws IOException {
@@ -95,7 +120,7 @@ public class DomainStore {
     }
 
     public Persistence createShard(int shardIdx, long version) throws IOException {
-        return getShardSet(version).createShard(shardIdx);
+        return getOwnShardSet(version).createShard(shardIdx);
     }
     
     public String shardPath(int shardIdx) throws IOException {
@@ -106,6 +131,55 @@ public class DomainStore {
         return getShardSet(version).shardPath(shardIdx);
     }
 
+    /**
+     * Returns the manifest of the supplied shard in the supplied version, or null if the shard
+     * doesn't exist or was written without one.
+     */
+    public ShardManifest getManifest(int shardIdx, long version) throws IOException {
+        return ShardManifest.readFromFileSystem(getFileSystem(), shardPath(shardIdx, version));
+    }
+
+    /**
+     * Returns a map of shard index -> manifest for every shard of the supplied version that has
+     * one.
+     */
+    public Map<Integer, ShardManifest> getManifests(long version) throws IOException {
+        Map<Integer, ShardManifest> ret = new HashMap<Integer, ShardManifest>();
+        ShardSet shards = getShardSet(version);
+        for (int i = 0; i < spec.getNumShards(); i++) {
+            ShardManifest manifest =
+                ShardManifest.readFromFileSystem(getFileSystem(), shards.shardPath(i));
+            if (manifest != null) {
+                ret.put(i, manifest);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the number of records in the supplied version, summed from its shard manifests,
+     * or null if any of its shards lacks one or was inherited.
+     */
+    public Long getRecordCount(long version) throws IOException {
+        long ret = 0;
+        ShardSet shards = getShardSet(version);
+        for (int i = 0; i < spec.getNumShards(); i++) {
+            String shardPath = shards.shardPath(i);
+            ShardManifest manifest = ShardManifest.readFromFileSystem(getFileSystem(), shardPath);
+            if (manifest == null) {
+                if (!getFileSystem().exists(new Path(shardPath))) {
+                    continue;
+                }
+                return null;
+            }
+            if (isInherited(getFileSystem(), shardPath)) {
+                return null;
+            }
+            ret += manifest.getRecordCount();
+        }
+        return ret;
+    }
+
     /*
     Back to old code.
      */
@@ -137,6 +211,14 @@ public class DomainStore {
         return vs.createVersion(version);
     }
 
+    public String resumeVersion(long version) throws IOException {
+        return vs.resumeVersion(version);
+    }
+
+    public void retireVersion(long version) throws IOException {
+        vs.retireVersion(version);
+    }
+
     public void failVersion(String path) throws IOException {
         vs.failVersion(path);
     }
@@ -153,22 +235,90 @@ public class DomainStore {
         return vs.parseVersion(path);
     }
 
+    /**
+     * Makes newv reference every shard of oldv that newv doesn't have, instead of copying it.
+     * References to shards oldv itself references are carried over as they are, so a reference
+     * always points at the version that physically holds the shard. Versions in different
+     * stores can't reference each other, so their shards are still copied.
+     */
     public static void synchronizeVersions(FileSystem fs, DomainSpec spec, String oldv, String newv) throws IOException {
-        // TODO: might want to do a distcp here if the files are large
-        // kept simple here for now since large domains implies large updates which will hit every shard
         if(oldv!=null) {
+            Path oldPath = new Path(oldv).makeQualified(fs);
+            Path newPath = new Path(newv).makeQualified(fs);
+            if (!oldPath.getParent().equals(newPath.getParent())) {
+                copyMissingShards(fs, spec, oldv, newv);
+                return;
+            }
+            long oldVersion = Long.parseLong(oldPath.getName());
+            Map<String, Long> oldRefs = VersionedStore.readReferences(fs, oldv);
+            Map<String, Long> refs = VersionedStore.readReferences(fs, newv);
             for(int i=0; i<spec.getNumShards(); i++) {
-                String currPath = oldv + "/" + i;
-                String newPath = newv + "/" + i;
-                if(fs.exists(new Path(currPath)) && !fs.exists(new Path(newPath))) {
-                    if(!FileUtil.copy(fs, new Path(currPath), fs, new Path(newPath), false, false, new Configuration())) {
-                        throw new IOException("Unable to synchronize versions");
-                    }
+                String shard = "" + i;
+                if (fs.exists(new Path(newv + "/" + i)) || refs.containsKey(shard)) {
+                    continue;
+                }
+                if (oldRefs.containsKey(shard)) {
+                    refs.put(shard, oldRefs.get(shard));
+                } else if (fs.exists(new Path(oldv + "/" + i))) {
+                    refs.put(shard, oldVersion);
+                }
+            }
+            if (!refs.isEmpty()) {
+                fs.mkdirs(newPath);
+                VersionedStore.writeReferences(fs, newv, refs);
+            }
+        }
+    }
+
+    private static void copyMissingShards(FileSystem fs, DomainSpec spec, String oldv, String newv) throws IOException {
+        Map<String, Long> oldRefs = VersionedStore.readReferences(fs, oldv);
+        for(int i=0; i<spec.getNumShards(); i++) {
+            String currPath = resolveShardPath(oldv, oldRefs, i);
+            String newPath = newv + "/" + i;
+            if(fs.exists(new Path(currPath)) && !fs.exists(new Path(newPath))) {
+                if(!FileUtil.copy(fs, new Path(currPath), fs, new Path(newPath), false, false, new Configuration())) {
+                    throw new IOException("Unable to synchronize versions");
                 }
             }
         }
     }
 
+    /**
+     * Returns the path of the shard of the version at versionPath, following the version's
+     * reference to an earlier version if it has one for the shard.
+     */
+    private static String resolveShardPath(String versionPath, Map<String, Long> refs, int shard) {
+        Long holder = refs.get("" + shard);
+        if (holder == null) {
+            return versionPath + "/" + shard;
+        }
+        return new Path(new Path(versionPath).getParent(), holder + "/" + shard).toString();
+    }
+
+    /**
+     * Copies the supplied shards from oldv into newv without rewriting them and marks each copy
+     * as inherited. Shards oldv only references are copied from the version holding them. Used when resharding with a JumpHashScheme, where growing the shard count
+     * only moves keys into the new shards. Shards already present in newv are left alone.
+     */
+    public static void inheritShards(FileSystem oldFs, String oldv, FileSystem newFs, String newv,
+        Collection<Integer> shards) throws IOException {
+        Map<String, Long> oldRefs = VersionedStore.readReferences(oldFs, oldv);
+        for (int i : shards) {
+            Path currPath = new Path(resolveShardPath(oldv, oldRefs, i));
+            Path newPath = new Path(newv + "/" + i);
+            if (oldFs.exists(currPath) && !newFs.exists(newPath)) {
+                if (!FileUtil.copy(oldFs, currPath, newFs, newPath, false, false, new Configuration())) {
+                    throw new IOException("Unable to inherit shard " + currPath + " into " + newPath);
+                }
+                newFs.createNewFile(new Path(newPath, INHERITED_SHARD_MARKER));
+            }
+        }
+    }
+
+    public static boolean isInherited(FileSystem fs, String shardPath) throws IOException {
+        return fs.exists(new Path(shardPath, INHERITED_SHARD_MARKER));
+    }
+
     /**
      * When updating the prior version:
      *
@@ -0,0 +1,351 @@
+package elephantdb.store;
+
+import elephantdb.Utils;
+import elephantdb.document.KeyValDocument;
+import elephantdb.partition.RangeScheme;
+import elephantdb.persistence.KeyValCursor;
+import elephantdb.persistence.Persistence;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.StringUtils;
+import org.jvyaml.YAML;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A summary of one shard, stored in the shard directory as YAML: its record count, the total
+ * bytes of its keys and values, its smallest and largest key (in RangeScheme order) and a CRC32
+ * over its records in the order the persistence stores them. ElephantOutputFormat writes it when
+ * a shard is closed, so counts and sizes can be answered without scanning or listing the shard.
+ *
+ * It also lists an MD5 digest of every non-empty file in the shard directory, so a server that
+ * already holds an identical file (typically an SST that an unchanged shard shares with the
+ * version being served) can link it instead of downloading it again. Each of those files also
+ * gets a CRC32C per BLOCK_BYTES block, which TransferEngine checks every downloaded range against
+ * and uses to tell which ranges of an interrupted download are already good.
+ *
+ * A manifest describes the shard as it was written. An inherited shard keeps the manifest of the
+ * version it came from, including the records that now route to other shards.
+ */
+public class ShardManifest {
+    public static final String FILENAME = "shard-manifest.yaml";
+    public static final long BLOCK_BYTES = 64L * 1024 * 1024;
+
+    private static final String RECORD_COUNT_CONF = "record_count";
+    private static final String KEY_BYTES_CONF = "key_bytes";
+    private static final String VALUE_BYTES_CONF = "value_bytes";
+    private static final String MIN_KEY_CONF = "min_key";
+    private static final String MAX_KEY_CONF = "max_key";
+    private static final String CHECKSUM_CONF = "checksum";
+    private static final String FILES_CONF = "files";
+    private static final String BLOCK_BYTES_CONF = "block_bytes";
+    private static final String BLOCKS_CONF = "blocks";
+
+    private long recordCount = 0;
+    private long keyBytes = 0;
+    private long valueBytes = 0;
+    private byte[] minKey = null;
+    private byte[] maxKey = null;
+    private long checksum = 0;
+    private Map<String, String> fileDigests = new HashMap<String, String>();
+    private long blockBytes = BLOCK_BYTES;
+    private Map<String, long[]> blockChecksums = new HashMap<String, long[]>();
+
+    private ShardManifest() {
+    }
+
+    /**
+     * Scans every record of the supplied persistence and returns its manifest.
+     */
+    public static ShardManifest build(Persistence persistence) throws IOException {
+        ShardManifest ret = new ShardManifest();
+        CRC32 crc = new CRC32();
+        KeyValCursor cursor = Utils.openCursor(persistence);
+        try {
+            KeyValDocument doc;
+            while ((doc = cursor.next()) != null) {
+                ret.recordCount++;
+                ret.keyBytes += doc.key.length;
+                ret.valueBytes += doc.value.length;
+                if (ret.minKey == null || RangeScheme.compareKeys(doc.key, ret.minKey) < 0) {
+                    ret.minKey = doc.key;
+                }
+                if (ret.maxKey == null || RangeScheme.compareKeys(doc.key, ret.maxKey) > 0) {
+                    ret.maxKey = doc.key;
+                }
+                updateChecksum(crc, doc.key);
+                updateChecksum(crc, doc.value);
+            }
+        } finally {
+            cursor.close();
+        }
+        ret.checksum = crc.getValue();
+        return ret;
+    }
+
+    private static void updateChecksum(CRC32 crc, byte[] bytes) {
+        int len = bytes.length;
+        crc.update(len >>> 24);
+        crc.update(len >>> 16);
+        crc.update(len >>> 8);
+        crc.update(len);
+        crc.update(bytes);
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getKeyBytes() {
+        return keyBytes;
+    }
+
+    public long getValueBytes() {
+        return valueBytes;
+    }
+
+    public long getTotalBytes() {
+        return keyBytes + valueBytes;
+    }
+
+    /**
+     * Returns the smallest key in the shard, or null if the shard is empty.
+     */
+    public byte[] getMinKey() {
+        return minKey;
+    }
+
+    /**
+     * Returns the largest key in the shard, or null if the shard is empty.
+     */
+    public byte[] getMaxKey() {
+        return maxKey;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Returns a map of file name -> MD5 digest (hex) for the files in the shard directory.
+     * Empty for manifests written before digests were recorded.
+     */
+    public Map<String, String> getFileDigests() {
+        return fileDigests;
+    }
+
+    /**
+     * Returns the size of the blocks the file checksums cover.
+     */
+    public long getBlockBytes() {
+        return blockBytes;
+    }
+
+    /**
+     * Returns the CRC32C of each block of the named file, or null if the manifest has none for it.
+     */
+    public long[] getBlockChecksums(String fileName) {
+        return blockChecksums.get(fileName);
+    }
+
+    /**
+     * Records the digest and block checksums of every non-empty file in the supplied local shard
+     * directory. Empty files (lock files, fresh logs) are left out, as there's nothing to save by
+     * sharing them.
+     */
+    public void addFileDigests(File shardDir) throws IOException {
+        File[] files = shardDir.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + shardDir);
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (f.isFile() && f.length() > 0 && !name.equals(FILENAME) && !name.startsWith(".")) {
+                MessageDigest md5 = md5();
+                blockChecksums.put(name, scan(f, md5, blockBytes));
+                fileDigests.put(name, StringUtils.byteToHexString(md5.digest()));
+            }
+        }
+    }
+
+    /**
+     * Returns the MD5 digest of the file's contents as a hex string.
+     */
+    public static String digest(File file) throws IOException {
+        MessageDigest md5 = md5();
+        scan(file, md5, BLOCK_BYTES);
+        return StringUtils.byteToHexString(md5.digest());
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the file once, feeding it to the digest and returning the CRC32C of each block.
+     */
+    private static long[] scan(File file, MessageDigest md5, long blockBytes) throws IOException {
+        long[] ret = new long[(int) ((file.length() + blockBytes - 1) / blockBytes)];
+        Crc32C crc = new Crc32C();
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            long inBlock = 0;
+            int block = 0;
+            int n;
+            while (block < ret.length
+                   && (n = is.read(buf, 0, (int) Math.min(buf.length, blockBytes - inBlock))) > 0) {
+                md5.update(buf, 0, n);
+                crc.update(buf, 0, n);
+                inBlock += n;
+                if (inBlock == blockBytes) {
+                    ret[block++] = crc.getValue();
+                    crc.reset();
+                    inBlock = 0;
+                }
+            }
+            if (inBlock > 0) {
+                ret[block] = crc.getValue();
+            }
+        } finally {
+            is.close();
+        }
+        return ret;
+    }
+
+    public static boolean exists(FileSystem fs, String shardPath) throws IOException {
+        return fs.exists(new Path(shardPath, FILENAME));
+    }
+
+    /**
+     * Returns the manifest stored in the supplied shard directory, or null if it has none.
+     */
+    public static ShardManifest readFromFileSystem(FileSystem fs, String shardPath)
+        throws IOException {
+        Path filePath = new Path(shardPath, FILENAME);
+        if (!fs.exists(filePath)) {
+            return null;
+        }
+        FSDataInputStream is = fs.open(filePath);
+        try {
+            return parseFromMap((Map) YAML.load(new InputStreamReader(is)));
+        } finally {
+            is.close();
+        }
+    }
+
+    public void writeToFileSystem(FileSystem fs, String shardPath) throws IOException {
+        FSDataOutputStream os = fs.create(new Path(shardPath, FILENAME));
+        try {
+            os.write(YAML.dump(mapify()).getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    private static ShardManifest parseFromMap(Map manifest) {
+        ShardManifest ret = new ShardManifest();
+        ret.recordCount = ((Number) manifest.get(RECORD_COUNT_CONF)).longValue();
+        ret.keyBytes = ((Number) manifest.get(KEY_BYTES_CONF)).longValue();
+        ret.valueBytes = ((Number) manifest.get(VALUE_BYTES_CONF)).longValue();
+        ret.checksum = ((Number) manifest.get(CHECKSUM_CONF)).longValue();
+        if (manifest.get(MIN_KEY_CONF) != null) {
+            ret.minKey = Utils.fromYamlHex(manifest.get(MIN_KEY_CONF));
+            ret.maxKey = Utils.fromYamlHex(manifest.get(MAX_KEY_CONF));
+        }
+        Map files = (Map) manifest.get(FILES_CONF);
+        if (files != null) {
+            for (Object entry : files.entrySet()) {
+                Map.Entry file = (Map.Entry) entry;
+                byte[] digest = Utils.fromYamlHex(file.getValue());
+                ret.fileDigests.put(String.valueOf(file.getKey()),
+                                    StringUtils.byteToHexString(digest));
+            }
+        }
+        if (manifest.get(BLOCK_BYTES_CONF) != null) {
+            ret.blockBytes = ((Number) manifest.get(BLOCK_BYTES_CONF)).longValue();
+            Map blocks = (Map) manifest.get(BLOCKS_CONF);
+            for (Object entry : blocks.entrySet()) {
+                Map.Entry file = (Map.Entry) entry;
+                ret.blockChecksums.put(String.valueOf(file.getKey()),
+                                       parseChecksums(file.getValue()));
+            }
+        }
+        return ret;
+    }
+
+    // Block checksums are kept as one comma-separated hex string per file, so a large file
+    // doesn't turn into thousands of YAML list entries. Like keys and digests, the string carries
+    // Utils.YAML_HEX_PREFIX, or a lone checksum such as "1e5" would be read back as a float.
+    private static long[] parseChecksums(Object value) {
+        String joined = Utils.stripYamlHexPrefix(value);
+        if (joined.length() == 0) {
+            return new long[0];
+        }
+        String[] parts = joined.split(",");
+        long[] ret = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ret[i] = Long.parseLong(parts[i], 16);
+        }
+        return ret;
+    }
+
+    private static String joinChecksums(long[] checksums) {
+        StringBuilder sb = new StringBuilder(Utils.YAML_HEX_PREFIX);
+        for (int i = 0; i < checksums.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(Long.toHexString(checksums[i]));
+        }
+        return sb.toString();
+    }
+
+    private Map<String, Object> mapify() {
+        Map<String, Object> ret = new HashMap<String, Object>();
+        ret.put(RECORD_COUNT_CONF, recordCount);
+        ret.put(KEY_BYTES_CONF, keyBytes);
+        ret.put(VALUE_BYTES_CONF, valueBytes);
+        ret.put(CHECKSUM_CONF, checksum);
+        if (minKey != null) {
+            // hex-encoded so that arbitrary key bytes survive the YAML round trip
+            ret.put(MIN_KEY_CONF, Utils.toYamlHex(minKey));
+            ret.put(MAX_KEY_CONF, Utils.toYamlHex(maxKey));
+        }
+        if (!fileDigests.isEmpty()) {
+            Map<String, String> files = new HashMap<String, String>();
+            for (Map.Entry<String, String> e : fileDigests.entrySet()) {
+                files.put(e.getKey(), Utils.toYamlHex(StringUtils.hexStringToByte(e.getValue())));
+            }
+            ret.put(FILES_CONF, files);
+        }
+        if (!blockChecksums.isEmpty()) {
+            Map<String, String> blocks = new HashMap<String, String>();
+            for (Map.Entry<String, long[]> e : blockChecksums.entrySet()) {
+                blocks.put(e.getKey(), joinChecksums(e.getValue()));
+            }
+            ret.put(BLOCK_BYTES_CONF, blockBytes);
+            ret.put(BLOCKS_CONF, blocks);
+        }
+        return ret;
+    }
+
+    @Override public String toString() {
+        return mapify().toString();
+    }
+}
@@ -1,28 +1,64 @@
 package elephantdb.store;
 
 import elephantdb.Utils;
+import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.security.AccessControlException;
+import org.jvyaml.YAML;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Every change to the set of finished versions republishes a "latest" pointer file at the root
+ * listing them, newest first, one per line. Readers keep a catalog of the versions and only list
+ * the root again once the pointer's contents change, so polling for new versions costs reading one
+ * small file instead of a listing. Contents are compared rather than modification times, which
+ * many filesystems only keep to the second. Stores without a pointer (written before it existed) are listed on every
+ * call, and the catalog is relisted at least every ten minutes to pick up versions finished by
+ * writers that don't publish it.
+ *
+ * A version can reference entries of earlier versions instead of holding copies of them, through
+ * a references file in its directory mapping entry name -> version that holds it (see
+ * DomainStore.synchronizeVersions). Deleting a version keeps whatever entries the remaining
+ * finished versions still reference; the rest of its directory goes once nothing references it.
+ */
 public class VersionedStore {
     private static final String FINISHED_VERSION_SUFFIX = ".version";
+    public static final String LATEST_POINTER = "latest";
+    public static final String REFERENCES_FILENAME = "version-references.yaml";
+    private static final long CATALOG_MAX_AGE_MS = 10 * 60 * 1000;
 
     private String root;
     private FileSystem fs;
 
+    private List<Long> catalog = null;
+    private String catalogPointer = null;
+    private long catalogLoadedAt = 0;
+
+    private final Map<Long, Map<String, Long>> references = new HashMap<Long, Map<String, Long>>();
+
     public VersionedStore(String path) throws IOException {
         this(Utils.getFS(path, new Configuration()), path);
     }
@@ -85,18 +121,46 @@ public class VersionedStore {
             throw new RuntimeException("Version already exists or data already exists");
         else {
             //in case there's an incomplete version there, delete it
+            forgetReferences(version);
             fs.delete(new Path(versionPath(version)), true);
             return ret;
         }
     }
 
+    /**
+     * Like createVersion, but keeps whatever an earlier, unfinished attempt at the version left
+     * in its directory, so a download can pick up where it stopped.
+     */
+    public String resumeVersion(long version) throws IOException {
+        String ret = versionPath(version);
+        if(getAllVersions().contains(version))
+            throw new RuntimeException("Version already exists or data already exists");
+        forgetReferences(version);
+        fs.mkdirs(new Path(ret));
+        return ret;
+    }
+
+    /**
+     * Stops counting the supplied version as finished, leaving its data in place. A version that
+     * is being replaced shard by shard is retired first, so it can't be served whole again.
+     */
+    public void retireVersion(long version) throws IOException {
+        fs.delete(new Path(tokenPath(version)), false);
+        forgetReferences(version);
+        publishLatest();
+    }
+
     public void failVersion(String path) throws IOException {
         deleteVersion(validateAndGetVersion(path));
     }
 
     public void deleteVersion(long version) throws IOException {
-        fs.delete(new Path(versionPath(version)), true);
         fs.delete(new Path(tokenPath(version)), false);
+        forgetReferences(version);
+        List<Long> remaining = listVersions();
+        remaining.remove(Long.valueOf(version));
+        deleteUnreferenced(new Path(versionPath(version)), referencedPaths(remaining));
+        publishLatest();
     }
 
     public void succeedVersion(String path) throws IOException {
@@ -105,31 +169,256 @@ public class VersionedStore {
 
     public void succeedVersion(long version) throws IOException {
         createNewFile(tokenPath(version));
+        publishLatest();
     }
 
     public void cleanup() throws IOException {
         cleanup(-1);
     }
 
+    /**
+     * Deletes all but the supplied number of most recent finished versions. Unfinished versions
+     * newer than the most recent finished one are in progress (or waiting to be resumed) and are
+     * left alone.
+     */
     public void cleanup(int versionsToKeep) throws IOException {
         List<Long> versions = getAllVersions();
+        Long newest = versions.isEmpty() ? null : versions.get(0);
         if(versionsToKeep >= 0) {
             versions = versions.subList(0, Math.min(versions.size(), versionsToKeep));
         }
         HashSet<Long> keepers = new HashSet<Long>(versions);
+        Set<String> referenced = referencedPaths(versions);
 
+        boolean deleted = false;
         for(Path p: listDir(root)) {
             Long v = parseVersion(p.toString());
             if(v!=null && !keepers.contains(v)) {
-                fs.delete(p, true);
+                boolean finished = p.getName().endsWith(FINISHED_VERSION_SUFFIX);
+                if (!finished && (newest == null || v > newest)) {
+                    continue;
+                }
+                forgetReferences(v);
+                if (finished) {
+                    fs.delete(p, false);
+                } else {
+                    deleteUnreferenced(p, referenced);
+                }
+                deleted = true;
+            }
+        }
+        if (deleted) {
+            publishLatest();
+        }
+    }
+
+    /**
+     * Returns the entries the supplied version references in earlier versions, as a map of
+     * entry name -> version holding it. Empty if the version references nothing.
+     *
+     * A finished version never changes, so its references are read once and kept; resolving
+     * every shard of a version then costs no filesystem calls after the first. This relies on
+     * version numbers not being reused once a version is deleted, which holds for the timestamps
+     * createVersion() picks.
+     */
+    public Map<String, Long> getReferences(long version) throws IOException {
+        synchronized (references) {
+            Map<String, Long> cached = references.get(version);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // checked first, so that references read from an unfinished version aren't kept
+        boolean finished = fs.exists(new Path(tokenPath(version)));
+        Map<String, Long> ret =
+            Collections.unmodifiableMap(readReferences(fs, versionPath(version)));
+        if (finished) {
+            synchronized (references) {
+                references.put(version, ret);
+            }
+        }
+        return ret;
+    }
+
+    private void forgetReferences(long version) {
+        synchronized (references) {
+            references.remove(version);
+        }
+    }
+
+    /**
+     * Returns the path of the named entry of the supplied version, following a reference to an
+     * earlier version if the version has one for it.
+     */
+    public String resolvePath(long version, String name) throws IOException {
+        Long holder = getReferences(version).get(name);
+        return new Path(versionPath(holder == null ? version : holder), name).toString();
+    }
+
+    public static Map<String, Long> readReferences(FileSystem fs, String versionPath)
+        throws IOException {
+        Map<String, Long> ret = new HashMap<String, Long>();
+        Path filePath = new Path(versionPath, REFERENCES_FILENAME);
+        if (!fs.exists(filePath)) {
+            return ret;
+        }
+        FSDataInputStream is = fs.open(filePath);
+        try {
+            Map refs = (Map) YAML.load(new InputStreamReader(is, "UTF-8"));
+            if (refs != null) {
+                // entry names that look like numbers come back as numbers
+                for (Object entry : refs.entrySet()) {
+                    Map.Entry ref = (Map.Entry) entry;
+                    ret.put(String.valueOf(ref.getKey()), ((Number) ref.getValue()).longValue());
+                }
+            }
+        } finally {
+            is.close();
+        }
+        return ret;
+    }
+
+    public static void writeReferences(FileSystem fs, String versionPath, Map<String, Long> refs)
+        throws IOException {
+        FSDataOutputStream os = fs.create(new Path(versionPath, REFERENCES_FILENAME), true);
+        try {
+            os.write(YAML.dump(refs).getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Returns "version/name" for every entry the supplied versions reference.
+     */
+    private Set<String> referencedPaths(Collection<Long> versions) throws IOException {
+        Set<String> ret = new HashSet<String>();
+        for (long v : versions) {
+            for (Map.Entry<String, Long> ref : getReferences(v).entrySet()) {
+                ret.add(ref.getValue() + "/" + ref.getKey());
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Deletes the supplied version directory, except for the entries in it that are still
+     * referenced.
+     */
+    private void deleteUnreferenced(Path versionDir, Set<String> referenced) throws IOException {
+        String prefix = versionDir.getName() + "/";
+        boolean retained = false;
+        for (String ref : referenced) {
+            if (ref.startsWith(prefix)) {
+                retained = true;
+                break;
+            }
+        }
+        if (!retained) {
+            fs.delete(versionDir, true);
+        } else if (fs.exists(versionDir)) {
+            for (FileStatus status : fs.listStatus(versionDir)) {
+                if (!referenced.contains(prefix + status.getPath().getName())) {
+                    fs.delete(status.getPath(), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sorted from most recent to oldest. Served from the catalog while the latest pointer is
+     * unchanged.
+     */
+    public synchronized List<Long> getAllVersions() throws IOException {
+        String pointer = readPointer();
+        long now = System.currentTimeMillis();
+        if (catalog != null && pointer != null && pointer.equals(catalogPointer)
+            && now - catalogLoadedAt < CATALOG_MAX_AGE_MS) {
+            return new ArrayList<Long>(catalog);
+        }
+        List<Long> ret = listVersions();
+        if (pointer != null) {
+            catalog = new ArrayList<Long>(ret);
+            catalogPointer = pointer;
+            catalogLoadedAt = now;
+        } else {
+            catalog = null;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the version the latest pointer names, or null if the store has no pointer.
+     */
+    public Long getLatestPointer() throws IOException {
+        Path pointer = new Path(root, LATEST_POINTER);
+        if (!fs.exists(pointer)) {
+            return null;
+        }
+        FSDataInputStream is = fs.open(pointer);
+        try {
+            return Long.parseLong(new BufferedReader(new InputStreamReader(is, "UTF-8")).readLine().trim());
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Points the latest pointer at the finished versions, newest first, or removes it if there are
+     * none. The new pointer is written next to the old one and renamed over it.
+     */
+    private synchronized void publishLatest() throws IOException {
+        catalog = null;
+        Path pointer = new Path(root, LATEST_POINTER);
+        List<Long> versions = listVersions();
+        if (versions.isEmpty()) {
+            fs.delete(pointer, false);
+            return;
+        }
+        Path tmp = new Path(root, "_" + LATEST_POINTER + "." + System.nanoTime());
+        FSDataOutputStream os = fs.create(tmp, true);
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (Long v : versions) {
+                sb.append(v).append('\n');
+            }
+            os.write(sb.toString().getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+        if (!fs.rename(tmp, pointer)) {
+            // HDFS won't rename over an existing file. Readers that look in between
+            // find no pointer and list the root instead.
+            fs.delete(pointer, false);
+            if (!fs.rename(tmp, pointer)) {
+                fs.delete(tmp, false);
+                throw new IOException("Unable to publish latest version pointer at " + pointer);
             }
         }
     }
 
     /**
-     * Sorted from most recent to oldest
+     * Returns the latest pointer's contents, or null if the store has none.
      */
-    public List<Long> getAllVersions() throws IOException {
+    private String readPointer() throws IOException {
+        InputStream is;
+        try {
+            if (fs instanceof LocalFileSystem) {
+                is = new FileInputStream(new File(root, LATEST_POINTER));
+            } else {
+                is = fs.open(new Path(root, LATEST_POINTER));
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            return IOUtils.toString(is, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    private List<Long> listVersions() throws IOException {
         List<Long> ret = new ArrayList<Long>();
 
         Path rootPath = new Path(getRoot());
@@ -1,20 +1,88 @@
 package elephantdb.persistence;
 
+import elephantdb.Utils;
 import elephantdb.document.KeyValDocument;
 import org.apache.log4j.Logger;
 
 import org.iq80.leveldb.*;
-import static org.fusesource.leveldbjni.JniDBFactory.*;
 import org.fusesource.leveldbjni.internal.JniDB;
+import org.fusesource.leveldbjni.internal.NativeCache;
+import org.fusesource.leveldbjni.internal.NativeCompressionType;
+import org.fusesource.leveldbjni.internal.NativeDB;
+import org.fusesource.leveldbjni.internal.NativeIterator;
+import org.fusesource.leveldbjni.internal.NativeOptions;
+import org.fusesource.leveldbjni.internal.NativeReadOptions;
 
 import java.io.File;
 import java.io.IOException;
 
+import java.util.Arrays;
 import java.util.Map;
 
+/**
+ * Options in persistence_opts:
+ *
+ * block_size - target size of a table block in bytes (LevelDB's default, 4KB).
+ * compression - "snappy" (default) or "none".
+ * cache_size - bytes of block cache for the shard (default 20MB). Ignored while a node-wide
+ * cache is set through setSharedCacheSize.
+ * max_open_files - table files the shard keeps open (LevelDB's default, 1000).
+ * write_buffer_size - bytes of writes buffered in memory before a table is written.
+ * paranoid_checks - whether LevelDB checks the shard aggressively on open (default true).
+ * verify_checksums - whether every read verifies block checksums (default false).
+ *
+ * bulk_load - set by ElephantOutputFormat while building shards. Writes are grouped into
+ * unsynced WriteBatches of write_batch_bytes (default 4MB) under a write buffer of
+ * write_buffer_size (default 64MB), and the whole shard is compacted before it's closed, so the
+ * uploaded shard is fully compacted and reads don't pay for level-0 overlap.
+ *
+ * This version of leveldbjni can't configure LevelDB's own filter policy; per-shard Bloom
+ * filters come from the bloom_fpr and bloom_bits_per_key options instead (see
+ * ShardBloomFilter).
+ */
 public class LevelDB implements Coordinator {
     public static Logger LOG = Logger.getLogger(LevelDB.class);
 
+    public static final String BLOCK_SIZE_OPT = "block_size";
+    public static final String COMPRESSION_OPT = "compression";
+    public static final String CACHE_SIZE_OPT = "cache_size";
+    public static final String MAX_OPEN_FILES_OPT = "max_open_files";
+    public static final String WRITE_BUFFER_SIZE_OPT = "write_buffer_size";
+    public static final String PARANOID_CHECKS_OPT = "paranoid_checks";
+    public static final String VERIFY_CHECKSUMS_OPT = "verify_checksums";
+    public static final String BULK_LOAD_OPT = "bulk_load";
+    public static final String WRITE_BATCH_BYTES_OPT = "write_batch_bytes";
+
+    private static final long DEFAULT_CACHE_SIZE = 20 * 1024 * 1024;
+    private static final long DEFAULT_WRITE_BATCH_BYTES = 4 * 1024 * 1024;
+    private static final long DEFAULT_BULK_WRITE_BUFFER_SIZE = 64 * 1024 * 1024;
+
+    private static NativeCache sharedCache = null;
+    private static long sharedCacheSize = 0;
+
+    /**
+     * Sets a single block cache of the supplied size that every LevelDB shard opened on this node
+     * from now on shares, in place of each shard's own cache_size. Blocks compete in one LRU, so
+     * the budget goes to whichever shards are getting the traffic. Pass 0 to go back to per-shard
+     * caches; shards already open keep the cache they were opened with.
+     */
+    public static synchronized void setSharedCacheSize(long bytes) {
+        if (bytes == sharedCacheSize) {
+            return;
+        }
+        // Shards opened on the old cache still point at it, so it's never freed.
+        sharedCache = (bytes > 0) ? new NativeCache(bytes) : null;
+        sharedCacheSize = bytes;
+    }
+
+    public static synchronized long getSharedCacheSize() {
+        return sharedCacheSize;
+    }
+
+    static synchronized NativeCache getSharedCache() {
+        return sharedCache;
+    }
+
     public LevelDB() {
         super();
     }
@@ -33,29 +101,124 @@ public class LevelDB implements Coordinator {
         return ret;
     }
 
-    public static class LevelDBPersistence implements KeyValPersistence {
-        Options dboptions;
+    static boolean booleanOption(Map options, String key, boolean defaultVal) {
+        Object val = (options == null) ? null : options.get(key);
+        if (val == null) {
+            return defaultVal;
+        }
+        return (val instanceof Boolean) ? (Boolean) val : Boolean.parseBoolean(String.valueOf(val));
+    }
+
+    static long longOption(Map options, String key, long defaultVal) {
+        Object val = (options == null) ? null : options.get(key);
+        return (val == null) ? defaultVal : ((Number) val).longValue();
+    }
+
+    static NativeCompressionType compression(Map options) {
+        Object val = (options == null) ? null : options.get(COMPRESSION_OPT);
+        if (val == null || "snappy".equals(val)) {
+            return NativeCompressionType.kSnappyCompression;
+        } else if ("none".equals(val)) {
+            return NativeCompressionType.kNoCompression;
+        }
+        throw new IllegalArgumentException("Unknown LevelDB compression: " + val);
+    }
+
+    public static class LevelDBPersistence implements MultiGetPersistence, CursorPersistence {
         DB db;
+        NativeDB nativeDb;
         boolean readOnly;
+        ReadOptions readOptions = null;
+
+        boolean bulkLoad;
+        long maxBatchBytes;
+        WriteOptions batchWriteOptions = new WriteOptions().sync(false);
+        WriteBatch batch = null;
+        long batchBytes = 0;
 
         public LevelDBPersistence(String root, Map options,
                                   boolean readOnly, boolean allowCreate) throws IOException {
             this.readOnly = readOnly;
             new File(root).mkdirs();
 
-            dboptions = new Options();
-            dboptions.createIfMissing(allowCreate);
-            dboptions.paranoidChecks(true);
-            // 20mb TODO: set this using the options map
-            dboptions.cacheSize(20 * 1024 * 1024);
-            dboptions.compressionType(CompressionType.SNAPPY);
+            bulkLoad = !readOnly && booleanOption(options, BULK_LOAD_OPT, false);
+            maxBatchBytes = longOption(options, WRITE_BATCH_BYTES_OPT, DEFAULT_WRITE_BATCH_BYTES);
 
-            db = factory.open(new File(root), dboptions);
+            NativeOptions dboptions = new NativeOptions()
+                .createIfMissing(allowCreate)
+                .paranoidChecks(booleanOption(options, PARANOID_CHECKS_OPT, true))
+                .compression(compression(options));
+            if (options != null && options.containsKey(BLOCK_SIZE_OPT)) {
+                dboptions.blockSize(longOption(options, BLOCK_SIZE_OPT, 0));
+            }
+            if (options != null && options.containsKey(MAX_OPEN_FILES_OPT)) {
+                dboptions.maxOpenFiles((int) longOption(options, MAX_OPEN_FILES_OPT, 0));
+            }
+            if (bulkLoad) {
+                dboptions.writeBufferSize(longOption(options, WRITE_BUFFER_SIZE_OPT,
+                                                     DEFAULT_BULK_WRITE_BUFFER_SIZE));
+            } else if (options != null && options.containsKey(WRITE_BUFFER_SIZE_OPT)) {
+                dboptions.writeBufferSize(longOption(options, WRITE_BUFFER_SIZE_OPT, 0));
+            }
+            if (booleanOption(options, VERIFY_CHECKSUMS_OPT, false)) {
+                readOptions = new ReadOptions().verifyChecksums(true);
+            }
 
+            // JniDB frees the cache it's handed on close, so it only gets the shard's own.
+            NativeCache ownCache = null;
+            NativeCache cache = getSharedCache();
+            if (cache == null) {
+                ownCache = new NativeCache(longOption(options, CACHE_SIZE_OPT, DEFAULT_CACHE_SIZE));
+                cache = ownCache;
+            }
+            dboptions.cache(cache);
+            try {
+                nativeDb = NativeDB.open(dboptions, new File(root));
+                db = new JniDB(nativeDb, ownCache, null, null);
+            } catch (IOException e) {
+                if (ownCache != null) {
+                    ownCache.delete();
+                }
+                throw e;
+            }
         }
 
         public byte[] get(byte[] key) throws IOException {
-            return db.get(key);
+            flushBatch();
+            return (readOptions == null) ? db.get(key) : db.get(key, readOptions);
+        }
+
+        /**
+         * Looks the keys up in sorted order, so consecutive lookups hit the blocks the previous
+         * ones loaded. A shard open for writes is read through one snapshot so the batch sees a
+         * single version of the data; a read-only shard can't change, so it skips the snapshot
+         * and the per-call ReadOptions it costs.
+         */
+        public byte[][] multiGet(byte[][] keys) throws IOException {
+            flushBatch();
+            byte[][] ret = new byte[keys.length][];
+            Snapshot snapshot = readOnly ? null : db.getSnapshot();
+            try {
+                ReadOptions batchOptions = readOptions;
+                if (snapshot != null) {
+                    batchOptions = new ReadOptions().snapshot(snapshot)
+                        .verifyChecksums(readOptions != null);
+                }
+                int prev = -1;
+                for (int i : Utils.sortedKeyOrder(keys)) {
+                    if (prev >= 0 && Arrays.equals(keys[prev], keys[i])) {
+                        ret[i] = ret[prev];
+                    } else {
+                        ret[i] = (batchOptions == null) ? db.get(keys[i]) : db.get(keys[i], batchOptions);
+                    }
+                    prev = i;
+                }
+            } finally {
+                if (snapshot != null) {
+                    snapshot.close();
+                }
+            }
+            return ret;
         }
 
         public void put(byte[] key, byte[] value) throws IOException {
@@ -63,7 +226,30 @@ public class LevelDB implements Coordinator {
         }
 
         private void add(byte[] key, byte[] value) throws IOException {
-            db.put(key, value);
+            if (!bulkLoad) {
+                db.put(key, value);
+                return;
+            }
+            if (batch == null) {
+                batch = db.createWriteBatch();
+            }
+            batch.put(key, value);
+            batchBytes += key.length + value.length;
+            if (batchBytes >= maxBatchBytes) {
+                flushBatch();
+            }
+        }
+
+        private void flushBatch() throws IOException {
+            if (batch != null) {
+                try {
+                    db.write(batch, batchWriteOptions);
+                } finally {
+                    batch.close();
+                    batch = null;
+                    batchBytes = 0;
+                }
+            }
         }
 
         public void index(KeyValDocument document) throws IOException {
@@ -71,7 +257,52 @@ public class LevelDB implements Coordinator {
         }
 
         public void close() throws IOException {
-            db.close();
+            try {
+                flushBatch();
+                if (bulkLoad) {
+                    LOG.info("Compacting bulk-loaded shard");
+                    ((JniDB) db).compactRange(null, null);
+                }
+            } finally {
+                db.close();
+            }
+        }
+
+        /**
+         * Walks the shard with a raw native iterator that doesn't fill the block cache, so a full
+         * scan doesn't push the blocks serving gets out of it. The key and value arrays come
+         * straight from the native iterator; only the document holding them is reused.
+         */
+        public KeyValCursor openCursor() throws IOException {
+            flushBatch();
+            final NativeIterator it = nativeDb.iterator(new NativeReadOptions()
+                .fillCache(false)
+                .verifyChecksums(readOptions != null));
+            it.seekToFirst();
+            return new KeyValCursor() {
+                final KeyValDocument doc = new KeyValDocument();
+                boolean closed = false;
+
+                public KeyValDocument next() throws IOException {
+                    if (closed) {
+                        return null;
+                    } else if (!it.isValid()) {
+                        close();
+                        return null;
+                    }
+                    doc.key = it.key();
+                    doc.value = it.value();
+                    it.next();
+                    return doc;
+                }
+
+                public void close() {
+                    if (!closed) {
+                        closed = true;
+                        it.delete();
+                    }
+                }
+            };
         }
 
         public CloseableIterator<KeyValDocument> iterator() {
@@ -81,11 +312,8 @@ public class LevelDB implements Coordinator {
 
                 private void cacheNext() {
                     if (cursor.hasNext()) {
-                        byte[] k = cursor.peekNext().getKey();
-                        byte[] v = cursor.peekNext().getValue();
-
-                        next = new KeyValDocument(k, v);
-                        cursor.next();
+                        Map.Entry<byte[], byte[]> entry = cursor.next();
+                        next = new KeyValDocument(entry.getKey(), entry.getValue());
                     } else {
                         next = null;
                         close();
@@ -94,6 +322,11 @@ public class LevelDB implements Coordinator {
 
                 private void initCursor() {
                     if (cursor == null) {
+                        try {
+                            flushBatch();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
                         cursor = db.iterator();
                         cursor.seekToFirst();
                         cacheNext();
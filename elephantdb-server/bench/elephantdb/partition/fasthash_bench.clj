@@ -0,0 +1,31 @@
+(ns elephantdb.partition.fasthash-bench
+  "Timing comparisons, kept out of the default test run. Run with
+  `lein with-profile +benchmark midje elephantdb.partition.fasthash-bench`."
+  (:use midje.sweet
+        [elephantdb.partition.fasthash-test :only (random-keys)])
+  (:require [jackknife.logging :as log])
+  (:import [elephantdb.partition HashModScheme Murmur3Scheme XXHashScheme]))
+
+;; ## Throughput
+
+(defn routing-nanos
+  "Returns the average nanoseconds per key for routing every key in
+  `key-arr` through `scheme`, after a warmup pass."
+  [scheme ^objects key-arr shard-count]
+  (let [run! (fn []
+               (let [start (System/nanoTime)]
+                 (dotimes [i (alength key-arr)]
+                   (.shardIndex scheme (aget key-arr i) shard-count))
+                 (- (System/nanoTime) start)))]
+    (dotimes [_ 3] (run!))
+    (/ (run!) (double (alength key-arr)))))
+
+(fact
+  "Fast schemes route keys more cheaply than HashModScheme."
+  (let [key-arr  (to-array (random-keys 13 200000))
+        hash-mod (routing-nanos (HashModScheme.) key-arr 64)]
+    (doseq [scheme [(Murmur3Scheme.) (XXHashScheme.)]
+            :let [nanos (routing-nanos scheme key-arr 64)]]
+      (log/info (format "%s: %.1f ns/key vs HashModScheme: %.1f ns/key"
+                        (.getSimpleName (class scheme)) nanos hash-mod))
+      nanos => #(< % hash-mod))))
@@ -0,0 +1,48 @@
+(ns elephantdb.persistence.sorted-table-bench
+  "Timing comparisons, kept out of the default test run. Run with
+  `lein with-profile +benchmark midje elephantdb.persistence.sorted-table-bench`."
+  (:use midje.sweet
+        [elephantdb.persistence.sorted-table-test :only (sorted-keys load-shard!)])
+  (:require [hadoop-util.test :as t]
+            [jackknife.logging :as log])
+  (:import [elephantdb.persistence JavaBerkDB LevelDB SortedTable]
+           [java.util Random]))
+
+;; ## Benchmark
+;;
+;; Builds the same shard with each coordinator and times random point
+;; lookups against it.
+
+(defn get-nanos
+  "Average nanoseconds per get of every key in `probes`, after a
+  warmup pass."
+  [coordinator path probes]
+  (with-open [db (.openPersistenceForRead coordinator path {})]
+    (let [run! (fn []
+                 (let [start (System/nanoTime)]
+                   (doseq [k probes]
+                     (.get db k))
+                   (- (System/nanoTime) start)))]
+      (dotimes [_ 3] (run!))
+      (/ (run!) (double (count probes))))))
+
+(fact
+  "SortedTable gets are cheaper than LevelDB and JavaBerkDB gets on the
+  same shard."
+  (log/with-log-level :off
+    (t/with-local-tmp [_ st-path level-path bdb-path]
+      (let [key-seq (sorted-keys 3 100000)
+            rand    (Random. 4)
+            key-vec (vec key-seq)
+            probes  (doall (repeatedly 100000 #(key-vec (.nextInt rand (count key-vec)))))
+            shards  [[(SortedTable.) st-path]
+                     [(LevelDB.) level-path]
+                     [(JavaBerkDB.) bdb-path]]
+            nanos   (into {} (for [[coord path] shards]
+                               (do (load-shard! coord path key-seq)
+                                   [(.getSimpleName (class coord))
+                                    (get-nanos coord path probes)])))]
+        (log/info (format "ns/get: SortedTable %.0f, LevelDB %.0f, JavaBerkDB %.0f"
+                          (nanos "SortedTable") (nanos "LevelDB") (nanos "JavaBerkDB")))
+        (nanos "SortedTable") => #(< % (nanos "LevelDB"))
+        (nanos "SortedTable") => #(< % (nanos "JavaBerkDB"))))))
@@ -3,6 +3,7 @@
 { :replication 2
   :hosts ["elephant1.server" "elephant2.server" "elephant3.server"]
   :port 3578
+  :peer-port 3579 ;; replicas fetch shards from each other on this port
   :domains {"graph" "s3n://mybucket/elephantdb/graph"
             "docs"  "/data/docdb"
             }
@@ -2,5 +2,9 @@
 
 {:local-root "/data1/elephantdb"
  :download-rate-limit 1024
+ :download-latency-slo-ms 20 ;; back downloads off while read p99 is above this
+ :max-concurrent-transfers 8 ;; download streams shared by all domains
+ :max-concurrent-opens 4
+ :warmup-ms 30000 ;; replay hot keys on new shards for up to 30s before the swap
  :update-interval-s 60 ;; check for domain updates every minute
  :hdfs-conf {"fs.default.name" "s3n://hdfs"}}
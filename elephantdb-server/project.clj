@@ -30,6 +30,9 @@
               [[ring-mock "0.1.3"]
                [clj-time "0.6.0"]
                [midje "1.6.3"]]
-              :plugins [[lein-midje "3.1.3"]]}}
+              :plugins [[lein-midje "3.1.3"]]}
+             ;; timing comparisons; too noisy for the default run.
+             :benchmark
+             {:test-paths ["bench"]}}
   :aot :all
   :main elephantdb.keyval.core)
@@ -17,7 +17,17 @@
 (def example-config
   {:replication 1
    :port 3578
+   :peer-port 3579
    :download-rate-limit 1024
+   :download-latency-slo-ms 20
+   :max-concurrent-transfers 8
+   :max-concurrent-opens 4
+   :domain-priorities {"docs" 10}
+   :rolling-update-shards 2
+   :warmup-ms 30000
+   :warmup-bytes (* 512 1024 1024)
+   :value-cache-bytes (* 256 1024 1024)
+   :leveldb-cache-bytes (* 1024 1024 1024)
    :local-root "/Users/sritchie/Desktop/domainroot"
    :hosts ["localhost"]
    :domains {"graph" "/mybucket/elephantdb/graph"
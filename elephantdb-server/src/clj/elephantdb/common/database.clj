@@ -8,16 +8,51 @@
             [elephantdb.common.status :as status]
             [elephantdb.common.metadata :as metadata]
             [elephantdb.ui.handler :as ui])
-  (:import [elephantdb.persistence Shutdownable]
-           [java.io File]))
+  (:import [elephantdb.cache ValueCache]
+           [elephantdb.hadoop AdaptiveThrottle DiskStats PeerServer
+            PeerServer$ShardLocator UpdateScheduler]
+           [elephantdb.persistence LevelDB Shutdownable]
+           [com.yammer.metrics Metrics]
+           [com.yammer.metrics.core Gauge MetricName Timer]
+           [java.io File]
+           [java.net InetSocketAddress]))
 
 ;; ## Domain metrics
 
-(defn build-meters [domain-name]
+(defn- cache-gauge
+  "Registers a gauge under the supplied title that reports `(f cache)`."
+  [[group type name] ^ValueCache cache f]
+  (Metrics/newGauge (MetricName. group type name)
+                    (proxy [Gauge] []
+                      (value [] (f cache)))))
+
+(defn build-cache-meters
+  "Returns gauges for the hit and miss counts, hit rate, evictions and
+  bytes in use of the supplied value cache."
+  [prefix domain-name ^ValueCache cache]
+  (letfn [(title [name] [prefix domain-name name])
+          (hit-rate [^ValueCache c]
+            (let [hits (.getHitCount c)
+                  total (+ hits (.getMissCount c))]
+              (if (zero? total) 0.0 (/ hits (double total)))))]
+    {:value-cache-hits (cache-gauge (title "value_cache_hits") cache
+                                    #(.getHitCount ^ValueCache %))
+     :value-cache-misses (cache-gauge (title "value_cache_misses") cache
+                                      #(.getMissCount ^ValueCache %))
+     :value-cache-hit-rate (cache-gauge (title "value_cache_hit_rate") cache hit-rate)
+     :value-cache-evictions (cache-gauge (title "value_cache_evictions") cache
+                                         #(.getEvictionCount ^ValueCache %))
+     :value-cache-bytes (cache-gauge (title "value_cache_bytes") cache
+                                     #(.getBytesInUse ^ValueCache %))}))
+
+(defn build-meters [domain-name domain]
   (let [domain-name (clojure.string/replace domain-name #"-" "_")
-        hostname (clojure.string/replace (.getCanonicalHostName (java.net.InetAddress/getLocalHost)) #"\." "_")]
-    {:direct-get-response-time (timer [(str hostname ".elephantdb.domain") domain-name "direct_get_response_time"])
-     :multi-get-response-time (timer [(str hostname ".elephantdb.domain") domain-name "multi_get_response_time"])}))
+        hostname (clojure.string/replace (.getCanonicalHostName (java.net.InetAddress/getLocalHost)) #"\." "_")
+        prefix (str hostname ".elephantdb.domain")]
+    (merge {:direct-get-response-time (timer [prefix domain-name "direct_get_response_time"])
+            :multi-get-response-time (timer [prefix domain-name "multi_get_response_time"])}
+           (when-let [cache (.valueCache domain)]
+             (build-cache-meters prefix domain-name cache)))))
 
 (defn metrics-get [{:keys [metrics]} domain-name]
   (get metrics domain-name))
@@ -106,6 +141,47 @@
                                    (future-cancel updater)))
     updater))
 
+(defn launch-throttle-tuner!
+  "If the database's downloads share an AdaptiveThrottle, starts a
+  process that feeds it the number of reads the supplied timer
+  recorded since the last tick, their p99 latency and the local disks'
+  queue depth, once every `interval-ms`. Returns the future, or nil."
+  [database ^Timer latency-timer interval-ms]
+  (let [throttle (get-in database [:options :throttle])]
+    (when (instance? AdaptiveThrottle throttle)
+      (let [disks (DiskStats.)
+            tuner (future
+                    (log/info "Starting download throttle tuner with an"
+                              " interval of: " interval-ms " ms.")
+                    (loop [last-count (.count latency-timer)]
+                      (Thread/sleep interval-ms)
+                      (let [n (.count latency-timer)]
+                        (.observe ^AdaptiveThrottle throttle
+                                  (- n last-count)
+                                  (.get99thPercentile (.getSnapshot latency-timer))
+                                  (.sampleQueueDepth disks))
+                        (recur n))))]
+        (u/register-shutdown-hook #(do (log/info "Killing throttle tuner...")
+                                       (future-cancel tuner)))
+        tuner))))
+
+(defn launch-peer-server!
+  "Starts serving the shards the database's domains hold to the other
+  servers of the ring on the supplied port (see `PeerServer`). Returns
+  the server."
+  [database port]
+  (let [server (PeerServer.
+                (InetSocketAddress. (int port))
+                (reify PeerServer$ShardLocator
+                  (completedShard [_ domain-name version shard]
+                    (when-let [domain (domain-get database domain-name)]
+                      (domain/completed-shard-dir domain version shard)))))]
+    (log/info (format "Starting peer server on port %s" port))
+    (.start server)
+    (u/register-shutdown-hook #(do (log/info "Killing peer server...")
+                                   (.stop server)))
+    server))
+
 (defn launch-ui!
   [conf-map]
   (let [conf-map (dissoc conf-map :blob-conf :hdfs-conf)
@@ -141,29 +217,79 @@
   (shutdown [_]
     (log/info "ElephantDB received shutdown notice...")
     (doseq [^Shutdownable domain (vals domains)]
-      (.shutdown domain))))
+      (.shutdown domain))
+    (when-let [^UpdateScheduler scheduler (:scheduler options)]
+      (.shutdown scheduler))))
+
+(defn build-throttle
+  "Returns the Throttle all of the node's downloads share. With
+  `:download-latency-slo-ms` set, the rate adapts between
+  `:download-rate-floor` (a sixteenth of the limit by default) and
+  `:download-rate-limit` to keep the node's read p99 under the SLO and
+  its disk queues under `:download-max-disk-queue`. Otherwise it holds
+  to `:download-rate-limit`. Rates are in KB per second."
+  [{:keys [download-rate-limit download-rate-floor
+           download-latency-slo-ms download-max-disk-queue]}]
+  (if (and download-rate-limit download-latency-slo-ms)
+    (AdaptiveThrottle. (* 1024 (long (or download-rate-floor
+                                         (max 1 (quot download-rate-limit 16)))))
+                       (* 1024 (long download-rate-limit))
+                       (double download-latency-slo-ms)
+                       (double (or download-max-disk-queue 8)))
+    (domain/throttle download-rate-limit)))
+
+(defn build-scheduler
+  "Returns the UpdateScheduler that bounds the node's concurrent
+  downloads (`:max-concurrent-transfers`) and shard opens
+  (`:max-concurrent-opens`) across all of its domains."
+  [{:keys [max-concurrent-transfers max-concurrent-opens]}]
+  (UpdateScheduler. (int (or max-concurrent-transfers UpdateScheduler/DEFAULT_TRANSFERS))
+                    (int (or max-concurrent-opens UpdateScheduler/DEFAULT_OPENS))))
 
 (defn build-database
-  "Returns a database linking to a bunch of read-only domains."
-  [{:keys [domains port local-root] :as conf-map}]
-  (let [throttle (domain/throttle (:download-rate-limit conf-map))
-        options   (select-keys conf-map [:hosts :replication :hdfs-conf
-                                         :remote-path :throttle])
-        options   (into {} (remove (comp nil? second) options))]
+  "Returns a database linking to a bunch of read-only domains. If the
+  configuration sets `:leveldb-cache-bytes`, every LevelDB shard on
+  the node shares one block cache of that size. The domains' updates
+  share one scheduler; `:domain-priorities` maps domain names to their
+  priority in it (0 by default, higher goes first). With `:peer-port`
+  set, the domains read shards from ring peers serving them on that
+  port (see `launch-peer-server!`) before falling back to the remote
+  store. `:warmup-ms` and `:warmup-bytes` bound how long each domain
+  warms a new version with its hottest keys before serving it."
+  [{:keys [domains port local-root domain-priorities peer-port] :as conf-map}]
+  (when-let [cache-bytes (:leveldb-cache-bytes conf-map)]
+    (LevelDB/setSharedCacheSize (long cache-bytes)))
+  (let [throttle  (build-throttle conf-map)
+        scheduler (build-scheduler conf-map)
+        options   (select-keys (assoc conf-map
+                                 :throttle throttle
+                                 :scheduler scheduler
+                                 :peer-address (when peer-port
+                                                 #(str % ":" peer-port)))
+                               [:hosts :replication :hdfs-conf
+                                :remote-path :throttle :scheduler
+                                :value-cache-bytes :rolling-update-shards
+                                :peer-address :warmup-ms :warmup-bytes])
+        options   (into {} (remove (comp nil? second) options))
+        domains   (u/update-vals
+                   domains
+                   (fn [domain-name remote-path]
+                     (let [local-path (domain-path local-root domain-name)]
+                       (apply domain/build-domain local-path
+                              :remote-path remote-path
+                              :priority (get domain-priorities domain-name 0)
+                              (apply concat options)))))]
     (Database. local-root
                (or port 3578) ;; TODO: Merge this default in elsewhere.
+               domains
                (u/update-vals
                 domains
-                (fn [domain-name remote-path]
-                  (let [local-path (domain-path local-root domain-name)]
-                    (apply domain/build-domain local-path
-                           :remote-path remote-path
-                           (apply concat options)))))
-               (u/update-vals
-                domains
-                (fn [domain-name _]
-                  (build-meters domain-name)))
-               (dissoc conf-map :domains :local-root :port))))
+                (fn [domain-name domain]
+                  (build-meters domain-name domain)))
+               (-> conf-map
+                   (dissoc :domains :local-root :port)
+                   (assoc :throttle throttle
+                          :scheduler scheduler)))))
 
 ;; A full database ends up looking something like the commented out
 ;; block below. Previously, a large number of functions would try and
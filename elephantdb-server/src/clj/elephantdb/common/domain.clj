@@ -1,8 +1,6 @@
 (ns elephantdb.common.domain
   (:refer-clojure :exclude (conj!))
-  (:use [jackknife.def :only (defalias)])
   (:require [hadoop-util.core :as h]
-            [hadoop-util.transfer :as transfer]
             [jackknife.core :as u]
             [jackknife.logging :as log]
             [clojure.java.io :as io]
@@ -11,10 +9,15 @@
             [elephantdb.common.status :as status]
             [elephantdb.common.thread-pool :as t])
   (:import [elephantdb Utils DomainSpec]
-           [elephantdb.store DomainStore]
+           [elephantdb.cache KeySample ValueCache]
+           [elephantdb.hadoop PeerFileSystem RateThrottle TransferEngine UpdateScheduler]
+           [elephantdb.store DomainStore ShardManifest]
            [elephantdb.common.status IStateful IStatus KeywordStatus]
-           [elephantdb.persistence ShardSet Shutdownable]
-           [java.util.concurrent ExecutionException]))
+           [elephantdb.persistence KeyValPersistence ShardBloomFilter Shutdownable]
+           [elephantdb.document KeyValDocument]
+           [java.io File IOException]
+           [java.util.concurrent Callable ExecutionException ExecutorService Future]
+           [org.apache.hadoop.fs FileStatus HardLink]))
 
 ;; Store manipulation
 
@@ -73,11 +76,25 @@
 
 (defn current-version
   "Returns the unix timestamp (in millis) of the current version being
-  served by the supplied domain."
+  served by the supplied domain. During a rolling update this is the
+  version being replaced."
   [domain]
   (-> (domain-data domain)
       (get :version)))
 
+(defn shard-version
+  "Returns the version the supplied domain data serves the shard
+  from. Only differs from `:version` during a rolling update."
+  [data shard-idx]
+  (get (:shard-versions data) shard-idx (:version data)))
+
+(defn mixed-version?
+  "Returns true while a rolling update of the domain is under way. Its
+  shards may then be served from different versions; `:target-version`
+  in the domain data is the version they're moving to."
+  [domain]
+  (boolean (:target-version (domain-data domain))))
+
 (defmulti version-seq type)
 
 (defmethod version-seq nil [_] nil)
@@ -173,42 +190,126 @@
   [domain-store shard-idx version & {:keys [allow-writes]}]
   (let [fs (.getFileSystem domain-store)]
     (log/debug "Opening shard #: " shard-idx " at " (.getRoot domain-store))
-    (when-not (.exists fs (h/path (.shardPath domain-store shard-idx)))
+    (when-not (.exists fs (h/path (.shardPath domain-store shard-idx version)))
       (log/debug "Shard doesn't exist. Creating shard # " shard-idx)
-      (.createShard domain-store shard-idx))
+      (.createShard domain-store shard-idx version))
     (u/with-ret (if allow-writes
-                  (.openShardForAppend domain-store shard-idx)
-                  (.openShardForRead domain-store shard-idx))
+                  (.openShardForAppend domain-store shard-idx version)
+                  (.openShardForRead domain-store shard-idx version))
       (log/debug "Opened shard #: " shard-idx))))
 
-(defn retrieve-shards!
-  "Accepts a domain object. On success, returns a sequence of opened
-  Persistence objects for the supplied version. (Version must exist in
-  local domain store!)"
-  [domain version]
+(defn open-shards!
+  "Opens the supplied shards of a version in the domain's local store
+  and returns a map of index -> Persistence. The opens go through the
+  domain's share of the node's open slots when it has one. If any
+  shard fails to open, the ones that did are closed again."
+  [domain version shard-seq]
   (let [local-store (.localStore domain)
-        shards      (shard-set domain)
         open!       (fn [idx]
                       (try
                         (open-shard! local-store idx version
                                      :allow-writes (.allowWrites domain))
                         (catch Throwable e
                           (log/error (format "Error opening shard %s of version %s for domain %s: %s" idx version domain e))
-                          nil)))]
+                          nil)))
+        lps         (if-let [^ExecutorService opens (.opens domain)]
+                      (->> shard-seq
+                           (mapv #(.submit opens ^Callable (fn [] (open! %))))
+                           (map #(.get ^Future %)))
+                      (map open! shard-seq))
+        opened      (zipmap shard-seq lps)]
+    (if (some nil? lps)
+      (do
+        (close-shards! (into {} (remove (comp nil? val) opened)))
+        (u/throw-runtime (format "Error retrieving shards for version %s" version)))
+      opened)))
+
+(defn retrieve-shards!
+  "Accepts a domain object. On success, returns a sequence of opened
+  Persistence objects for the supplied version. (Version must exist in
+  local domain store!)"
+  [domain version]
+  (let [local-store (.localStore domain)]
     (assert (has-version? local-store version)
             (str version "  doesn't exist."))
-    (u/with-ret (let [lps (map open! shards)]
-                  (if (some nil? lps)
-                    (do
-                      (map close-shard! (filter nil? lps))
-                      (u/throw-runtime (format "Error retrieving shards for version %s" version)))
-                    (zipmap shards lps)))
+    (u/with-ret (open-shards! domain version (shard-set domain))
       (log/info "Finished opening domain at " (.getRoot local-store)))))
 
+(defn retrieve-filters
+  "Returns a map of shard index -> ShardBloomFilter for the shards in
+  the supplied version of the local store that were built with one."
+  [domain-store version shard-seq]
+  (into {} (for [idx shard-seq
+                 :let [filter (ShardBloomFilter/readFromShard
+                               (.shardPath domain-store idx version))]
+                 :when filter]
+             [idx filter])))
+
+(defn retrieve-manifests
+  "Returns a map of shard index -> ShardManifest for the shards in the
+  supplied version of the local store that were written with one."
+  [^DomainStore domain-store version shard-seq]
+  (into {} (for [idx shard-seq
+                 :let [manifest (.getManifest domain-store idx version)]
+                 :when manifest]
+             [idx manifest])))
+
+(defn inherited-shards
+  "Returns the set of shards in the supplied version of the local
+  store that were carried over as-is by an incremental reshard. These
+  can hold keys that now route elsewhere."
+  [domain-store version shard-seq]
+  (let [fs (.getFileSystem domain-store)]
+    (into #{} (filter #(DomainStore/isInherited
+                        fs (.shardPath domain-store % version))
+                      shard-seq))))
+
+;; ### Warmup
+;;
+;; Freshly opened shards start with cold block and page caches, so
+;; read latency used to jump for minutes after every swap. A domain
+;; built with `:warmup-ms` samples the keys it's asked for, and reads
+;; the hottest of them from the new shards before swapping them in.
+
+(defn warm-shards!
+  "Reads the keys the domain was recently asked for, hottest first,
+  from the supplied map of index -> freshly opened shard, so that
+  their blocks are cached before the shards serve. Stops after
+  `:warmup-bytes` of values or once `:warmup-ms` have passed, and
+  never makes the caller wait longer than that. Returns the number of
+  keys read, or nil if the domain doesn't warm up or ran out of time."
+  [domain new-shards]
+  (when-let [{max-ms :ms max-bytes :bytes} (.warmup domain)]
+    (let [key-vec   (vec (.hottest ^KeySample (.keySample domain)))
+          ^DomainSpec spec (.getSpec ^DomainStore (.localStore domain))
+          shard-idxs (Utils/shardIndices (.getShardScheme spec)
+                                         (into-array (Class/forName "[B") key-vec)
+                                         (.getNumShards spec))
+          deadline  (+ (System/currentTimeMillis) max-ms)
+          warmup    (future
+                      (loop [i 0, warmed 0]
+                        (if (and (< i (count key-vec))
+                                 (or (nil? max-bytes) (< warmed max-bytes))
+                                 (< (System/currentTimeMillis) deadline))
+                          (let [^KeyValPersistence shard (get new-shards (aget shard-idxs i))
+                                ^bytes value (when shard (.get shard (key-vec i)))]
+                            (recur (inc i) (+ warmed (if value (alength value) 0))))
+                          i)))]
+      (if-let [n (deref warmup max-ms nil)]
+        (u/with-ret n
+          (log/info (format "Warmed %s of %s sampled keys on shards %s of %s"
+                            n (count key-vec) (vec (keys new-shards))
+                            (.getRoot (.localStore domain)))))
+        (do (future-cancel warmup)
+            (log/warning (format "Warmup of %s timed out after %s ms"
+                                 (.getRoot (.localStore domain)) max-ms))
+            nil)))))
+
 (defn load-version!
   "Takes a domain, a version number (a long!), and a read-write lock,
   and hot-swaps in the new version for the old, closing all old shards
-  on completion."
+  on completion. The new shards are warmed up first (see
+  `warm-shards!`)."
   [domain new-version]
   {:pre [(-> (.localStore domain)
              (has-version? new-version))]}
@@ -216,11 +317,31 @@
     (if (= version new-version)
       (log/warning new-version " is already loaded.")
       (try
-        (let [new-shards (retrieve-shards! domain new-version)]
+        (let [new-shards (retrieve-shards! domain new-version)
+              _          (when shards
+                           (warm-shards! domain new-shards))
+              inherited  (inherited-shards (.localStore domain)
+                                           new-version
+                                           (keys new-shards))
+              ;; index! changes shards under their filters and
+              ;; manifests, so writable domains do without both.
+              filters    (when-not (.allowWrites domain)
+                           (retrieve-filters (.localStore domain)
+                                             new-version
+                                             (keys new-shards)))
+              manifests  (when-not (.allowWrites domain)
+                           (retrieve-manifests (.localStore domain)
+                                               new-version
+                                               (keys new-shards)))]
           (u/with-write-lock (.rwLock domain)
             (reset! (.domainData domain)
                     {:shards new-shards
+                     :inherited inherited
+                     :filters filters
+                     :manifests manifests
                      :version new-version})))
+        (when-let [^ValueCache cache (.valueCache domain)]
+          (.clear cache))
         (status/to-ready domain)
         (close-shards! shards)
         (catch Throwable e
@@ -239,15 +360,28 @@
 ;; These functions provide hints to a given domain about where to look
 ;;for a given sharding key.
 
-;; TODO: Make this work with a sequence of keys!
+;; Routing goes straight through the local store's spec; the scheme
+;; and shard count are the same for every version, so there's no need
+;; for a ShardSet per lookup.
+
 (defn key->shard
-  "Accepts a local store and a key; returns the
-  approprate shard number for the given key."
+  "Accepts a domain and a key; returns the approprate shard number for
+  the given key, or nil if the domain has no version loaded."
   [domain ^bytes key]
-  (when-let [version (current-version domain)]
-    (let [^ShardSet shard-set (-> (.localStore domain)
-                                  (.getShardSet version))]
-      (.shardIndex shard-set key))))
+  (when (current-version domain)
+    (let [^DomainSpec spec (.getSpec ^DomainStore (.localStore domain))]
+      (.shardIndex (.getShardScheme spec) key (.getNumShards spec)))))
+
+(defn keys->shards
+  "Accepts a domain and a sequence of keys; returns an int array of
+  the shard number for each key, routed as a single batch, or nil if
+  the domain has no version loaded."
+  [domain key-seq]
+  (when (current-version domain)
+    (let [^DomainSpec spec (.getSpec ^DomainStore (.localStore domain))]
+      (Utils/shardIndices (.getShardScheme spec)
+                          (into-array (Class/forName "[B") key-seq)
+                          (.getNumShards spec)))))
 
 (defn retrieve-shard
   "If the supplied domain contains the given sharding key, returns the
@@ -258,6 +392,11 @@
     (get-in (domain-data domain)
             [:shards shard-idx])))
 
+(defn host-set
+  "Returns the set of hosts that serve the supplied shard."
+  [domain shard-idx]
+  (shard/host-set (.shardIndex domain) shard-idx))
+
 (defn prioritize-hosts
   "Accepts a domain and a sharding-key and returns a sequence of hosts
   to try when attempting to find the Document paired with the sharding
@@ -275,22 +414,31 @@
   {:pre [(.allowWrites domain)]}
   (u/with-write-lock (.rwLock domain)
     (when-let [shard-map (:shards (domain-data domain))]
-      (doseq [[idx doc-seq] (group-by #(key->shard domain (first %))
-                                      pairs)]
+      (doseq [[idx doc-seq] (group-by first
+                                      (map vector
+                                           (keys->shards domain (map first pairs))
+                                           (map second pairs)))]
         (let [shard (shard-map idx)]
           (doseq [doc (map second doc-seq)]
-            (.index shard doc)))))))
+            (.index shard doc))))
+      (when-let [^ValueCache cache (.valueCache domain)]
+        (.clear cache)))))
 
 ;; ## Domain Type Definition
 
 (deftype Domain
-    [localStore remoteStore throttle rwLock
-     hostname status domainData shardIndex allowWrites]
+    [localStore remoteStore transfers rwLock hostname status
+     domainData shardIndex allowWrites valueCache rollingShards opens
+     peerAddress completedShards keySample warmup]
   clojure.lang.Seqable
   (seq [this]
-    (when-let [data (domain-data this)]
-      (mapcat #(lazy-seq %)
-              (vals (:shards data)))))
+    (when-let [{:keys [shards inherited]} (domain-data this)]
+      (mapcat (fn [[idx shard]]
+                (if (contains? inherited idx)
+                  (filter #(= idx (key->shard this (.key ^KeyValDocument %)))
+                          (lazy-seq shard))
+                  (lazy-seq shard)))
+              shards)))
 
   Shutdownable
   (shutdown [this]
@@ -298,7 +446,10 @@
     (status/to-shutdown this)
     (u/with-write-lock rwLock
       (close-shards! (-> (domain-data this)
-                         (get :shards)))))
+                         (get :shards)))
+      (when valueCache
+        (.clear ^ValueCache valueCache)))
+    (.shutdown ^TransferEngine transfers))
 
   IStateful
   (get-status [_] @status)
@@ -329,14 +480,37 @@
 ;; This is the main function used by a database to build its domain objects.
 
 (defn build-domain
-  "Constructs a domain record."
+  "Constructs a domain record. Supply `:value-cache-bytes` to put an
+  off-heap cache of that size in front of the domain's shards.
+  Downloads use at most `:transfer-streams` parallel streams, paced by
+  the optional `:throttle` (see `throttle`). Given an UpdateScheduler
+  as `:scheduler`, downloads and shard opens instead share the node's
+  limits, at the domain's `:priority` (higher goes first). Supply
+  `:rolling-update-shards` to update a read-only domain that many
+  shards at a time (see `roll-version!`). Given `:peer-address`, a
+  function of a host to the host:port of its PeerServer, shards are
+  read from ring peers that already have them where possible (see
+  `transfer-shard!`). `:hostname` is this node's name in `:hosts`.
+  With `:warmup-ms` set, the domain samples one in
+  `:warmup-sample-rate` of the keys it's asked for, keeping the last
+  `:warmup-sample-keys`, and warms new shards with them for up to that
+  long, or until `:warmup-bytes` have been read, before serving them
+  (see `warm-shards!`)."
   [local-root
-   & {:keys [throttle hdfs-conf remote-path hosts
-             replication spec allow-writes]
+   & {:keys [throttle hdfs-conf remote-path hosts transfer-streams
+             replication spec allow-writes value-cache-bytes
+             rolling-update-shards scheduler priority hostname
+             peer-address warmup-ms warmup-bytes warmup-sample-keys
+             warmup-sample-rate]
       :or {hdfs-conf   {}
-           hosts       [(u/local-hostname)]
-           replication 1}}]
-  (let [remote-fs     (h/filesystem hdfs-conf)
+           replication 1
+           transfer-streams TransferEngine/DEFAULT_STREAMS
+           priority    0
+           warmup-sample-keys KeySample/DEFAULT_CAPACITY
+           warmup-sample-rate KeySample/DEFAULT_RATE}}]
+  (let [hostname      (or hostname (u/local-hostname))
+        hosts         (or hosts [hostname])
+        remote-fs     (h/filesystem hdfs-conf)
         remote-store  (when remote-path
                         (DomainStore. remote-fs remote-path))
         local-store   (mk-local-store local-root (or remote-store spec))
@@ -346,60 +520,191 @@
                                     replication)]
     (doto (Domain. local-store
                    remote-store
-                   throttle
+                   (if scheduler
+                     (TransferEngine. (.transfers ^UpdateScheduler scheduler
+                                                  local-root (int priority))
+                                      throttle)
+                     (TransferEngine. (int transfer-streams) throttle))
                    (u/mk-rw-lock)
-                   (u/local-hostname)
+                   hostname
                    (atom (KeywordStatus. :idle))
                    (atom nil)
                    index
-                   allow-writes)
+                   allow-writes
+                   (when value-cache-bytes
+                     (ValueCache. (long value-cache-bytes)))
+                   rolling-update-shards
+                   (when scheduler
+                     (.opens ^UpdateScheduler scheduler local-root (int priority)))
+                   peer-address
+                   (atom {})
+                   (when warmup-ms
+                     (KeySample. (int warmup-sample-keys) (int warmup-sample-rate)))
+                   (when warmup-ms
+                     {:ms warmup-ms :bytes warmup-bytes}))
       (boot-domain!))))
 
 ;; ## Domain Updater Logic
 
-(defalias throttle transfer/throttle
-  "Returns a throttling agent for use in throttling domain updates.")
+(defn throttle
+  "Returns a Throttle that holds the downloads of every domain sharing
+  it to the supplied number of KB per second, or nil for no limit."
+  [kb-per-second]
+  (when kb-per-second
+    (RateThrottle. (* 1024 (long kb-per-second)))))
+
+(defn- local-file-index
+  "Returns a map of MD5 digest -> local file for the files of the
+  version the domain currently serves, from its shard manifests."
+  [domain]
+  (let [{:keys [manifests] :as data} (domain-data domain)
+        local-store (.localStore domain)]
+    (into {} (for [[idx ^ShardManifest manifest] manifests
+                   [file-name digest] (.getFileDigests manifest)]
+               [digest (io/file (.shardPath local-store idx (shard-version data idx))
+                                file-name)]))))
+
+(defn- link-identical!
+  "Hard-links `source` to `target` if `source` still has the supplied
+  digest. Returns true if the link was made."
+  [^File source ^File target digest]
+  (try
+    (when (and (.isFile source)
+               (= digest (ShardManifest/digest source)))
+      (HardLink/createHardLink source target)
+      true)
+    (catch IOException e
+      (log/warning (format "Couldn't link %s to %s: %s" source target e))
+      false)))
+
+(defn- link-identical-files!
+  "Hard-links every file of the remote shard directory that's
+  byte-identical to one in `file-index` into the local one, skipping
+  files an earlier attempt already put there. Returns the number of
+  files linked."
+  [remote-fs remote-path local-path digests file-index]
+  (.mkdirs (io/file local-path))
+  (reduce (fn [linked ^FileStatus status]
+            (let [file-path (.getPath status)
+                  target    (io/file local-path (.getName file-path))
+                  digest    (get digests (.getName file-path))
+                  ^File source (get file-index digest)]
+              (if (and source
+                       (not (.isDir status))
+                       (not (.exists target))
+                       (= (.getLen status) (.length source))
+                       (link-identical! source target digest))
+                (inc linked)
+                linked)))
+          0
+          (.listStatus remote-fs (h/path remote-path))))
+
+;; ### Peer Transfers
+;;
+;; With replication, every replica of a shard used to pull it from the
+;; remote store. A node that has finished a shard of a version serves
+;; it to the rest of the ring through its PeerServer, and the others
+;; read it from there instead. Only the remote store's listing and
+;; manifest are trusted: every range read from a peer is checked
+;; against the manifest's block checksums, and anything a peer can't
+;; deliver intact comes from the remote store.
+
+(defn domain-name
+  "Returns the name the domain is served under, the last element of
+  its local root."
+  [domain]
+  (.getName (io/file (.getRoot (.localStore domain)))))
+
+(defn completed-shard-dir
+  "Returns the local directory of the supplied shard of `version` if
+  the domain holds all of it, else nil. That's the case once the
+  version is finished, or once the update under way has transferred
+  that shard."
+  [domain version idx]
+  (let [local-store (.localStore domain)]
+    (when (or (contains? (get @(.completedShards domain) version) idx)
+              (has-version? local-store version))
+      (let [dir (io/file (.shardPath local-store idx version))]
+        (when (.isDirectory dir)
+          dir)))))
+
+(defn- peer-mirror
+  "Returns a vector of the PeerFileSystem and path of the supplied
+  shard on a ring peer that has all of it, or nil if the domain has no
+  peers or none of them has it yet. Peers are tried in random order so
+  the replicas of a shard spread their reads."
+  [domain version idx]
+  (when-let [peer-address (.peerAddress domain)]
+    (let [path (format "/%s/%s/%s" (domain-name domain) version idx)]
+      (some (fn [host]
+              (try
+                (let [fs (PeerFileSystem. (peer-address host))]
+                  (.listStatus fs (h/path path))
+                  [fs path])
+                (catch IOException e
+                  (log/debug (format "Peer %s can't serve %s: %s" host path e))
+                  nil)))
+            (shuffle (remove #{(.hostname domain)} (host-set domain idx)))))))
 
 (defn transfer-shard!
   "Transfers the supplied shard (specified by `idx`) from the supplied
   remote version's remote store to the appropriate path on the local
+  store, through the domain's TransferEngine. Whatever an earlier
+  attempt left in the local shard is resumed, and if the remote
+  shard's manifest lists file digests, files matching one in
+  `file-index` (see `local-file-index`) are linked rather than
+  downloaded. When a ring peer has already finished the shard, its
+  checksummed files are read from the peer rather than the remote
   store."
-  [domain version idx]
-  (let [throttle     (.throttle domain)
+  [domain version idx & [file-index]]
+  (let [^TransferEngine transfers (.transfers domain)
         local-store  (.localStore domain)
         remote-store (.remoteStore domain)
         remote-fs    (.getFileSystem remote-store)
         remote-path  (.shardPath remote-store idx version)
         local-path   (.shardPath local-store idx version)]
     (if (.exists remote-fs (h/path remote-path))
-      (do
-        (try
-          (log/debug (format "Copying %s to %s" remote-path local-path))
-          (transfer/rcopy remote-fs remote-path local-path
-                          :throttle throttle)
-          (log/debug (format "Copied %s to %s" remote-path local-path))
-          (catch Throwable e
-            (log/error (format "Error transferring shard %s to %s: %s" remote-path local-path e))
-            (throw e))))
+      (try
+        (log/debug (format "Copying %s to %s" remote-path local-path))
+        (let [^ShardManifest manifest (.getManifest remote-store idx version)
+              digests (when manifest (.getFileDigests manifest))]
+          (when (and (seq digests) (seq file-index))
+            (let [linked (link-identical-files! remote-fs remote-path local-path
+                                                digests file-index)]
+              (log/info (format "Linked %s of %s files of %s from the served version"
+                                linked (count digests) remote-path))))
+          (let [[mirror-fs mirror-path] (when manifest
+                                          (peer-mirror domain version idx))
+                fetched (.downloadShard transfers remote-fs remote-path
+                                        mirror-fs mirror-path
+                                        local-path manifest nil)]
+            (log/debug (format "Copied %s to %s, fetching %s bytes"
+                               remote-path local-path fetched))))
+        (catch Throwable e
+          (log/error (format "Error transferring shard %s to %s: %s" remote-path local-path e))
+          (throw e)))
       (do (log/debug "Shard doesn't exist. Creating shard # " idx)
-          (.createShard local-store idx version)))))
+          (.createShard local-store idx version)))
+    (swap! (.completedShards domain) update-in [version] (fnil conj #{}) idx)))
 
 (defn transfer-version!
   "Transfers the supplied version from the domain's remote store to
-  its local store. To throttle the download, provide a throttling
-  agent with the optional `:throttle` keyword argument."
+  its local store. An unfinished earlier attempt at the same version
+  is picked up where it stopped rather than started over."
   [domain version]
   (let [local-store  (.localStore domain)
-        version-path (.createVersion local-store version)
-        shards (shard-set domain)]
+        version-path (.resumeVersion local-store version)
+        shards (shard-set domain)
+        file-index (local-file-index domain)]
     (when (nil? shards)
       (log/warning
        (format
         "shard-set returned nil; no shards to download. Verify that %s is included in the :hosts key of the global configuration map"
         (.hostname domain))))
     (try
-      (u/do-pmap (partial transfer-shard! domain version) shards)
+      (u/do-pmap #(transfer-shard! domain version % file-index) shards)
       (.succeedVersion local-store version-path)
+      (swap! (.completedShards domain) dissoc version)
       (catch Throwable e
         (log/error (format "Error transferring version %s: %s" version-path e))
         (throw e)))))
@@ -413,11 +718,92 @@
         (-> (.remoteStore domain)
             (has-version? version)))))
 
+(defn- swap-shards!
+  "Serves the supplied map of index -> opened shard of `new-version` in
+  place of those shards' current ones, and returns the domain data
+  from before the swap."
+  [domain new-version new-shards]
+  (let [local-store (.localStore domain)
+        idxs        (keys new-shards)
+        inherited   (inherited-shards local-store new-version idxs)
+        filters     (retrieve-filters local-store new-version idxs)
+        manifests   (retrieve-manifests local-store new-version idxs)]
+    (u/with-write-lock (.rwLock domain)
+      (u/with-ret (domain-data domain)
+        (swap! (.domainData domain)
+               (fn [data]
+                 (-> data
+                     (update-in [:shards] merge new-shards)
+                     (update-in [:inherited] #(into (apply disj (set %) idxs) inherited))
+                     (update-in [:filters] #(merge (apply dissoc % idxs) filters))
+                     (update-in [:manifests] #(merge (apply dissoc % idxs) manifests))
+                     (update-in [:shard-versions]
+                                merge (zipmap idxs (repeat new-version))))))))))
+
+(defn roll-version!
+  "Updates a loaded, read-only domain to `new-version` a few shards at
+  a time. Each batch of `rollingShards` shards is downloaded, opened
+  and swapped in under the write lock, and the shards it replaces are
+  closed and deleted straight away, so the node only ever holds one
+  batch of shards twice rather than two whole versions.
+
+  Until the last batch is in, the domain is in a mixed-version state
+  (see `mixed-version?`). The version being replaced stops counting as
+  finished when the roll begins, so a node restarted midway finishes
+  the roll instead of booting a version that's missing shards. A roll
+  that fails leaves the domain serving its mixed state; the next
+  update carries on from the shards that haven't moved yet."
+  [domain new-version]
+  (let [local-store  (.localStore domain)
+        old-version  (current-version domain)
+        version-path (.resumeVersion local-store new-version)
+        file-index   (local-file-index domain)
+        pending      (remove #(= new-version (shard-version (domain-data domain) %))
+                             (sort (shard-set domain)))]
+    (log/info (format "Rolling %s from version %s to %s"
+                      (.getRoot local-store) old-version new-version))
+    (swap! (.domainData domain) assoc :target-version new-version)
+    (when (has-version? local-store old-version)
+      (.retireVersion local-store old-version))
+    (doseq [batch (partition-all (.rollingShards domain) pending)]
+      (u/do-pmap #(transfer-shard! domain new-version % file-index) batch)
+      (let [opened   (open-shards! domain new-version batch)
+            _        (warm-shards! domain opened)
+            old-data (swap-shards! domain new-version opened)]
+        (doseq [idx batch
+                :let [shard   (get-in old-data [:shards idx])
+                      version (shard-version old-data idx)]
+                :when shard]
+          (close-shard! shard)
+          (when (not= version new-version)
+            (.delete (.getFileSystem local-store)
+                     (h/path (.shardPath local-store idx version))
+                     true)))
+        (log/info (format "Swapped shards %s of %s to version %s"
+                          (vec batch) (.getRoot local-store) new-version))))
+    (.succeedVersion local-store version-path)
+    (swap! (.completedShards domain) dissoc new-version)
+    (u/with-write-lock (.rwLock domain)
+      (swap! (.domainData domain)
+             #(-> %
+                  (assoc :version new-version)
+                  (dissoc :target-version :shard-versions))))
+    (status/to-ready domain)))
+
+(defn- rolling?
+  "True if updates to the domain should go through `roll-version!`."
+  [domain]
+  (boolean (and (.rollingShards domain)
+                (loaded? domain)
+                (not (.allowWrites domain)))))
+
 (defn update-domain!
   "When a new version is available on the remote store,
   `update-domain!` transfers the version to the local store, hotswaps
   it in and closes the old version's shards. The domain's status is
-  set appropriately at each stage.
+  set appropriately at each stage. A domain built with
+  `:rolling-update-shards` is updated shard by shard through
+  `roll-version!` instead.
 
   `update-domain!` accepts the following optional keyword arguments:
 
@@ -428,18 +814,26 @@
     (when (transfer-possible? domain version)
       (log/info (format "New version %s detected" version))
       (try
-        (doto domain
-          (status/to-loading)
-          (cleanup-domain!)
-          (transfer-version! version)
-          (load-version! version))
+        (if (rolling? domain)
+          (doto domain
+            (status/to-loading)
+            (cleanup-domain!)
+            (roll-version! version))
+          (doto domain
+            (status/to-loading)
+            (cleanup-domain!)
+            (transfer-version! version)
+            (load-version! version)))
         (catch Throwable e
           (log/error (format "Error updating version %s: %s" version e))
           (let [local-store (.localStore domain)
-                version-path (.versionPath local-store version)
-                {:keys [shards version] :as data} (domain-data domain)]
-            (log/error (format "Failing version %s" version-path))
-            (.failVersion local-store version-path))
+                version-path (.versionPath local-store version)]
+            ;; A finished download that failed to load is thrown away;
+            ;; an unfinished one is kept for the next update to resume.
+            (if (has-version? local-store version)
+              (do (log/error (format "Failing version %s" version-path))
+                  (.failVersion local-store version-path))
+              (log/info (format "Keeping partial download %s to resume" version-path))))
           (when (status/loading? domain)
             (log/info "Resetting domain status to :ready")
             (status/to-ready domain)))
@@ -110,8 +110,10 @@
         metrics (db/metrics-get database domain-name)]
     (when (loaded? domain)
       (time! (:direct-get-response-time metrics)
-             (into {} (map (fn [key]
-                             {(ByteBuffer/wrap key) (thrift/mk-value (dom/kv-get domain key))}) key-seq))))))
+             (into {} (map (fn [key value]
+                             [(ByteBuffer/wrap key) (thrift/mk-value value)])
+                           key-seq
+                           (dom/kv-multi-get domain key-seq)))))))
 
 ;; ## MultiGet
 
@@ -249,9 +251,13 @@
         database (db/build-database conf-map)]
     (when (:ui-port conf-map)
       (db/launch-ui! conf-map))
+    (when-let [peer-port (:peer-port conf-map)]
+      (db/launch-peer-server! database peer-port))
     (doto database
       (db/prepare)
-      (db/launch-updater! (:update-interval-s conf-map)))
+      (db/launch-updater! (:update-interval-s conf-map))
+      (db/launch-throttle-tuner! direct-get-response-time
+                                 (or (:throttle-interval-ms conf-map) 1000)))
     (when-let [graphite-conf (:graphite-reporter conf-map)]
       (log/info "Metrics graphite reporter started.")
       (report-to-graphite (:host graphite-conf) (:port graphite-conf)))
@@ -1,17 +1,58 @@
 (ns elephantdb.keyval.domain
   (:require [jackknife.core :as u]
             [jackknife.logging :as log]
+            [jackknife.seq :as seq]
             [elephantdb.common.domain :as dom]
             [elephantdb.common.status :as s])
-  (:import [elephantdb.persistence KeyValPersistence]
+  (:import [elephantdb Utils]
+           [elephantdb.cache KeySample ValueCache]
+           [elephantdb.persistence KeyValCursor KeyValPersistence ShardBloomFilter]
            [elephantdb.document KeyValDocument]
+           [elephantdb.store ShardManifest]
            [elephantdb.common.status IStateful]
            [elephantdb.persistence Shutdownable]))
 
+(defn- reduce-shard
+  "Folds f over the records of a shard, read through a cursor so the
+  scan allocates no document per record. The document f sees is only
+  valid for that call. Records an inherited shard only holds because
+  of an incremental reshard are skipped."
+  [f init domain shard-idx shard inherited?]
+  (with-open [^KeyValCursor cursor (Utils/openCursor shard)]
+    (loop [acc init]
+      (if-let [^KeyValDocument doc (.next cursor)]
+        (recur (if (or (not inherited?)
+                       (= shard-idx (dom/key->shard domain (.key doc))))
+                 (f acc doc)
+                 acc))
+        acc))))
+
+(defn- reduce-domain
+  "Folds f over every kv pair in the supplied domain. The scan holds
+  the domain's read lock, so no update closes a shard under it."
+  [f init domain]
+  (u/with-read-lock (.rwLock domain)
+    (let [{:keys [shards inherited]} (dom/domain-data domain)]
+      (reduce (fn [acc [idx shard]]
+                (reduce-shard f acc domain idx shard (contains? inherited idx)))
+              init
+              shards))))
+
 (defn kv-count
-  "Returns the count of kv pairs in the supplied domain."
+  "Returns the count of kv pairs in the supplied domain. Shards with a
+  manifest answer from it; inherited shards and shards written without
+  one are counted with a scan, under the domain's read lock."
   [domain]
-  (count (seq domain)))
+  (u/with-read-lock (.rwLock domain)
+    (let [{:keys [shards inherited manifests]} (dom/domain-data domain)]
+      (reduce (fn [n [idx shard]]
+                (let [^ShardManifest manifest (get manifests idx)]
+                  (if (and manifest (not (contains? inherited idx)))
+                    (+ n (.getRecordCount manifest))
+                    (reduce-shard (fn [m _] (inc m)) n
+                                  domain idx shard (contains? inherited idx)))))
+              0
+              shards))))
 
 (defn trim-hosts
     "Used within a multi-get's loop. Accepts a sequence of hosts + a
@@ -21,24 +62,112 @@
     (remove (set bad-hosts)
             (rest host-seq)))
 
+(defn- definite-miss?
+  "True if the shard's Bloom filter rules the key out."
+  [filters shard-idx ^bytes key]
+  (when-let [^ShardBloomFilter filter (get filters shard-idx)]
+    (not (.mightContain filter key))))
+
+(defn- cached-get
+  "Reads the key from the shard, going through the domain's value
+  cache when it has one."
+  [^ValueCache cache version ^KeyValPersistence shard ^bytes key]
+  (if cache
+    (or (.get cache (long version) key)
+        (when-let [value (.get shard key)]
+          (u/with-ret value
+            (.put cache (long version) key value))))
+    (.get shard key)))
+
+(defn- sample-keys!
+  "Records the requested keys in the domain's key sample, if it keeps
+  one, for warming up its next version."
+  [domain key-seq]
+  (when-let [^KeySample sample (.keySample domain)]
+    (doseq [key key-seq]
+      (.record sample key))))
+
 (defn kv-get
   "key-value server specific get function."
   [domain ^bytes key]
-  (when-let [^KeyValPersistence shard (dom/retrieve-shard domain key)]
-    (log/debug (format "Direct get: key %s at shard %s" key shard))
-    (u/with-read-lock (.rwLock domain)
-      (try
-        (.get shard key)
-        (catch Exception e
-          (log/error "kv-get failed: " e)
-          (throw e))))))
+  (sample-keys! domain [key])
+  ;; The shards are looked up under the lock, so that a shard an
+  ;; update swaps out and closes is never read from.
+  (u/with-read-lock (.rwLock domain)
+    (let [{shard-map :shards filters :filters :as data} (dom/domain-data domain)
+          idx (dom/key->shard domain key)]
+      (when-let [^KeyValPersistence shard
+                 (when-not (definite-miss? filters idx key)
+                   (get shard-map idx))]
+        (log/debug (format "Direct get: key %s at shard %s" key shard))
+        (try
+          (cached-get (.valueCache domain) (dom/shard-version data idx) shard key)
+          (catch Exception e
+            (log/error "kv-get failed: " e)
+            (throw e)))))))
+
+(defn- pending-lookups
+  "Returns a map of shard index -> positions of the keys that have to
+  go to that shard's persistence, storing anything the value cache
+  can serve into `results`. Keys for shards the domain doesn't hold,
+  or ruled out by a Bloom filter, are left nil."
+  [{shard-map :shards filters :filters :as data}
+   ^ValueCache cache key-vec ^ints shard-idxs ^objects results]
+  (reduce (fn [acc i]
+            (let [^bytes key (key-vec i)
+                  shard-idx  (aget shard-idxs i)]
+              (if (or (not (contains? shard-map shard-idx))
+                      (definite-miss? filters shard-idx key))
+                acc
+                (if-let [value (and cache (.get cache
+                                                (long (dom/shard-version data shard-idx))
+                                                key))]
+                  (do (aset results i value) acc)
+                  (update-in acc [shard-idx] (fnil conj []) i)))))
+          {}
+          (range (count key-vec))))
+
+(defn kv-multi-get
+  "Returns a sequence of the values for each of the supplied keys (nil
+  for missing keys), routing all of them to their shards in one
+  batch. Keys a shard's Bloom filter rules out never reach the
+  persistence, hot keys are served from the domain's value cache, and
+  the rest go to each shard as a single sorted multiGet."
+  [domain key-seq]
+  (let [^ValueCache cache (.valueCache domain)
+        key-vec (vec key-seq)
+        results (object-array (count key-vec))]
+    (sample-keys! domain key-vec)
+    (when-let [shard-idxs (dom/keys->shards domain key-vec)]
+      (u/with-read-lock (.rwLock domain)
+        (try
+          (let [{shard-map :shards :as data} (dom/domain-data domain)]
+            (doseq [[shard-idx positions]
+                    (pending-lookups data cache key-vec shard-idxs results)]
+              (let [batch   (into-array (Class/forName "[B") (map key-vec positions))
+                    values  (Utils/multiGet (shard-map shard-idx) batch)
+                    version (dom/shard-version data shard-idx)]
+                (dorun
+                 (map (fn [i ^bytes value]
+                        (aset results i value)
+                        (when (and cache value)
+                          (.put cache (long version) (key-vec i) value)))
+                      positions
+                      values)))))
+          (catch Exception e
+            (log/error "kv-multi-get failed: " e)
+            (throw e)))))
+    (vec results)))
 
 (defn to-map
   "Returns a persistent map containing all kv pairs in the supplied
   domain."
   [domain]
-  (into {} (for [^KeyValDocument doc (seq domain)]
-             [(.key doc) (.value doc)])))
+  (persistent!
+   (reduce-domain (fn [m ^KeyValDocument doc]
+                    (assoc! m (.key doc) (.value doc)))
+                  (transient {})
+                  domain)))
 
 (defn index-keys
   "For the supplied domain and sequence of keys, returns a sequence of
@@ -48,8 +177,21 @@
   :hosts - A sequence of hosts at which the key can be found.
   :all-hosts - the same list as hosts, at first. As gets are attempted
   on each key, the recursion will drop names from `hosts` and keep
-  them around in `:all-hosts` for error reporting."
+  them around in `:all-hosts` for error reporting.
+
+  Keys are routed as a single batch, and keys in the same shard share
+  one prioritized host sequence, so multi-get sends them together in a
+  single request. With a PrefixScheme that keeps all of an entity's
+  keys on one shard."
   [domain key-seq]
-  (for [key key-seq
-        :let [hosts (dom/prioritize-hosts domain key)]]
-    {:key key, :hosts hosts, :all-hosts hosts}))
+  (let [localhost  #{(.hostname domain)}
+        prioritize (memoize
+                    (fn [shard-idx]
+                      (when-let [host-set (dom/host-set domain shard-idx)]
+                        (seq/prioritize localhost (shuffle host-set)))))]
+    (map (fn [key shard-idx]
+           (let [hosts (prioritize shard-idx)]
+             {:key key, :hosts hosts, :all-hosts hosts}))
+         key-seq
+         (or (dom/keys->shards domain key-seq)
+             (repeat nil)))))
@@ -34,6 +34,7 @@
        [:dt "Latest Local Version"] [:dd (.get_local_version metadata)]
        [:dt "Shard Set"] [:dd (.get_shard_set metadata)]
        [:dt "Shard Count"] [:dd (-> (.get_domain_spec metadata) (.get_num_shards))]
+       [:dt "Record Count"] [:dd (c/get-count c domain)]
        [:dt "Coordinator"] [:dd  [:code (-> (.get_domain_spec metadata) (.get_coordinator))]]
        [:dt "Shard Scheme"] [:dd [:code (-> (.get_domain_spec metadata) (.get_shard_scheme))]]])))
 
@@ -0,0 +1,26 @@
+(ns elephantdb.cache.value-cache-test
+  (:use midje.sweet
+        [elephantdb.test.common :only (str->barr)])
+  (:import [elephantdb.cache ValueCache]))
+
+(defn read-through!
+  "Reads the key through the cache the way the server does, putting
+  a value on a miss."
+  [^ValueCache cache k]
+  (let [key (str->barr k)]
+    (or (.get cache 1 key)
+        (.put cache 1 key (str->barr (str k "-value"))))))
+
+(fact
+  "A one-off scan larger than the cache doesn't push out the keys
+  that are read over and over."
+  (let [cache (ValueCache. (* 1024 128) 128)
+        hot   (for [i (range 900)] (str "hot" i))]
+    (dotimes [_ 8]
+      (doseq [k hot] (read-through! cache k)))
+    (doseq [i (range 3000)]
+      (read-through! cache (str "scan" i)))
+    (let [resident (filter #(.get cache 1 (str->barr %)) hot)]
+      (count resident) => #(>= % 850)
+      (every? #(= (str % "-value") (String. (.get cache 1 (str->barr %))))
+              resident) => true)))
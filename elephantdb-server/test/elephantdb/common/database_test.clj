@@ -3,7 +3,9 @@
         midje.sweet)
   (:require [elephantdb.test.common :as t]
             [elephantdb.common.domain :as domain])
-  (:import [elephantdb.document KeyValDocument]))
+  (:import [elephantdb.document KeyValDocument]
+           [elephantdb.hadoop AdaptiveThrottle RateThrottle]
+           [java.util.concurrent Callable Future]))
 
 (defn count-equals [n]
   (chatty-checker [coll] (= n (count (seq coll)))))
@@ -32,3 +34,41 @@
     pass in data, not just check that the hardcoded data made it in
     all right."
     (domain-get db "domain-a") => (count-equals 3)))
+
+(fact
+  "With a latency SLO the download throttle adapts: it halves while
+  reads are over the SLO or the disks are saturated, climbs while
+  they're clear and jumps when the node is idle, staying between its
+  floor and the rate limit."
+  (build-throttle {}) => nil
+  (class (build-throttle {:download-rate-limit 1024})) => RateThrottle
+  (let [^AdaptiveThrottle throttle (build-throttle {:download-rate-limit 1024
+                                                    :download-rate-floor 64
+                                                    :download-latency-slo-ms 10})]
+    (.getBytesPerSecond throttle) => (* 1024 1024)
+    (.observe throttle 100 50.0 0.0) => (* 512 1024)
+    (.observe throttle 100 5.0 20.0) => (* 256 1024)
+    (dotimes [_ 10] (.observe throttle 100 50.0 0.0))
+    (.getBytesPerSecond throttle) => (* 64 1024)
+    (.observe throttle 100 9.0 0.0) => (* 64 1024)
+    (.observe throttle 100 5.0 0.0) => (+ (* 64 1024) (quot (* 1024 1024) 10))
+    (.observe throttle 0 0.0 0.0) => (* 2 (+ (* 64 1024) (quot (* 1024 1024) 10)))))
+
+(fact
+  "The update scheduler runs a higher-priority domain's work first, and
+  domains of equal priority take turns."
+  (let [scheduler (build-scheduler {:max-concurrent-transfers 1})
+        order     (atom [])
+        gate      (promise)
+        lane      (fn [name priority] (.transfers scheduler name (int priority)))
+        enqueue   (fn [lane tag]
+                    (.submit lane ^Callable (fn [] (swap! order conj tag))))]
+    (.submit (lane "bulk" 0) ^Callable (fn [] @gate))
+    (Thread/sleep 50)
+    (let [futures (doall (concat (map #(enqueue (lane "bulk" 0) %) [:b1 :b2 :b3])
+                                 (map #(enqueue (lane "other" 0) %) [:o1 :o2])
+                                 [(enqueue (lane "critical" 10) :c1)]))]
+      (deliver gate true)
+      (doseq [^Future f futures] (.get f))
+      (.shutdown scheduler)
+      @order => [:c1 :o1 :b1 :o2 :b2 :b3])))
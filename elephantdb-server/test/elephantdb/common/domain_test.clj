@@ -2,9 +2,11 @@
   (:use elephantdb.common.domain
         elephantdb.test.common
         midje.sweet)
-  (:require [hadoop-util.test :as t]
+  (:require [hadoop-util.core :as h]
+            [hadoop-util.test :as t]
             [elephantdb.common.status :as status])
-  (:import [elephantdb.store DomainStore]
+  (:import [elephantdb DomainSpec]
+           [elephantdb.store DomainStore]
            [elephantdb.document KeyValDocument]))
 
 (def test-spec
@@ -77,3 +79,22 @@
         (status/ready? domain) => true
         (current-version domain) => 1
         (transfer-possible? domain 10) => false?))))
+
+(fact "Keys left behind in an inherited shard are skipped when iterating."
+  (let [spec    (DomainSpec. "elephantdb.persistence.JavaBerkDB"
+                             "elephantdb.partition.JumpHashScheme"
+                             2)
+        scheme  (.getShardScheme spec)
+        [k0 k1] (for [idx [0 1]]
+                  (first (filter #(= idx (.shardIndex scheme % 2))
+                                 (map barr (range 100)))))
+        doc0    (KeyValDocument. k0 (barr 1))
+        doc1    (KeyValDocument. k1 (barr 2))]
+    (t/with-fs-tmp [fs tmp]
+      "Shard 0 still holds a stale copy of the key that moved to shard 1."
+      (create-domain! spec tmp {0 [doc0 doc1] 1 [doc1]} :version 1)
+      (.createNewFile fs (h/path (str (.shardPath (DomainStore. tmp) 0 1) "/"
+                                      DomainStore/INHERITED_SHARD_MARKER)))
+      (let [domain (build-domain tmp)]
+        (:inherited (domain-data domain)) => #{0}
+        (count (seq domain)) => 2))))
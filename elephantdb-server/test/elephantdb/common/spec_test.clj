@@ -2,6 +2,8 @@
   (:use midje.sweet
         [elephantdb.test.common :only (berkeley-spec)])
   (:import [elephantdb DomainSpec Utils]
+           [elephantdb.partition PrefixScheme RangeScheme]
+           [java.io ByteArrayInputStream ByteArrayOutputStream]
            [elephantdb.document KeyValDocument]))
 
 ;; ## DomainSpec Testing
@@ -22,3 +24,52 @@
   (berkeley-spec 10)  => truthy
   (berkeley-spec 0)   => (throws AssertionError)
   (berkeley-spec -10) => (throws AssertionError))
+
+(defn round-trip
+  "Writes the spec out as YAML and reads it back in."
+  [^DomainSpec spec]
+  (let [os (ByteArrayOutputStream.)]
+    (.writeToStream spec os)
+    (DomainSpec/parseFromStream (ByteArrayInputStream. (.toByteArray os)))))
+
+(fact
+  "A RangeScheme's split points travel with the spec, byte for byte."
+  (let [splits (into-array [(byte-array 0)
+                            (byte-array (map byte [-1 0 10]))
+                            (byte-array (map byte [-1 1]))])
+        spec   (DomainSpec. (elephantdb.persistence.JavaBerkDB.)
+                            (RangeScheme. splits)
+                            4)
+        parsed (round-trip spec)]
+    parsed => spec
+    (map seq (.getSplitPoints (.getShardScheme parsed))) => (map seq splits)))
+
+(fact
+  "Split points whose hex reads like a number in YAML (3132, 01e5) still
+  come back as bytes."
+  (let [splits (into-array [(byte-array (map byte [1 -27]))
+                            (.getBytes "12")])
+        spec   (DomainSpec. (elephantdb.persistence.JavaBerkDB.)
+                            (RangeScheme. splits)
+                            3)
+        parsed (round-trip spec)]
+    parsed => spec
+    (map seq (.getSplitPoints (.getShardScheme parsed))) => (map seq splits)))
+
+(fact
+  "A RangeScheme needs exactly one split point fewer than there are
+  shards."
+  (DomainSpec. (elephantdb.persistence.JavaBerkDB.)
+               (RangeScheme. (into-array [(byte-array 1)]))
+               3) => (throws IllegalArgumentException))
+
+(fact
+  "A PrefixScheme's options travel with the spec."
+  (let [spec (DomainSpec. (elephantdb.persistence.JavaBerkDB.)
+                          (PrefixScheme. 12)
+                          4)]
+    (round-trip spec) => spec
+    (.getOptions (.getShardScheme (round-trip spec))) => {"prefix_length" 12}
+    (round-trip spec) =not=> (DomainSpec. (elephantdb.persistence.JavaBerkDB.)
+                                          (PrefixScheme.)
+                                          4)))
@@ -1 +1,409 @@
-(ns elephantdb.keyval.domain-test)
+(ns elephantdb.keyval.domain-test
+  (:use elephantdb.keyval.domain
+        midje.sweet
+        [elephantdb.common.domain :only (build-domain domain-data load-version!
+                                         transfer-version! transfer-shard! index!
+                                         update-domain! current-version
+                                         mixed-version? completed-shard-dir
+                                         warm-shards!)]
+        [elephantdb.test.common :only (str->barr elephant-writer)]
+        [elephantdb.test.keyval :only (mk-kv-domain)]
+        [jackknife.logging :only (with-log-level)])
+  (:require [hadoop-util.test :as t]
+            [clojure.java.io :as io])
+  (:import [elephantdb DomainSpec DomainSpec$Args]
+           [elephantdb.document KeyValDocument]
+           [elephantdb.hadoop ElephantRecordWritable]
+           [elephantdb.partition HashModScheme PrefixScheme]
+           [elephantdb.persistence JavaBerkDB KeyValPersistence LevelDB]
+           [elephantdb.hadoop PeerServer PeerServer$ShardLocator TransferEngine]
+           [elephantdb.store DomainStore ShardManifest]
+           [java.io RandomAccessFile]
+           [java.net InetSocketAddress]
+           [org.apache.hadoop.fs HardLink]
+           [org.apache.hadoop.io IntWritable]))
+
+(defn entity-keys
+  "Returns `n` attribute keys for the supplied entity id."
+  [entity n]
+  (for [i (range n)]
+    (str->barr (str entity ":attr" i))))
+
+(fact
+  "Under a PrefixScheme, all of an entity's keys index to the same
+  prioritized hosts, so multi-get makes one hop for them."
+  (with-log-level :off
+    (t/with-fs-tmp [fs path]
+      (let [spec (DomainSpec. (JavaBerkDB.) (PrefixScheme.) 16)]
+        (mk-kv-domain spec path (for [k (entity-keys "user-1" 3)] [k k]))
+        (let [domain  (build-domain path
+                                    :hosts ["a" "b" "c" "d"]
+                                    :replication 2)
+              indexed (index-keys domain (entity-keys "user-42" 40))]
+          (count (group-by :hosts indexed)) => 1
+          (count (:hosts (first indexed))) => 2
+
+          "Keys for many entities group by replica set, not by key."
+          (count (group-by :hosts (index-keys domain
+                                              (mapcat #(entity-keys % 5)
+                                                      (range 100)))))
+          => #(<= % 6))))))
+
+(fact
+  "kv-multi-get returns the value for every key, and nil for the
+  missing ones, in order."
+  (with-log-level :off
+    (t/with-fs-tmp [fs path]
+      (let [spec  (DomainSpec. (JavaBerkDB.) (PrefixScheme.) 4)
+            pairs (for [k (mapcat #(entity-keys % 3) (range 10))] [k k])]
+        (mk-kv-domain spec path pairs)
+        (let [domain  (build-domain path)
+              missing (str->barr "nobody:attr0")
+              key-seq (concat (map first pairs) [missing])]
+          (map #(when % (String. ^bytes %)) (kv-multi-get domain key-seq))
+          => (concat (map #(String. ^bytes (second %)) pairs) [nil]))))))
+
+(defn write-version!
+  "Writes the supplied pairs into a new version of the domain at
+  `path` through ElephantOutputFormat, the way a build job would.
+  Supply `:version` to pick the version number."
+  [spec path tmp kv-seq & {:keys [version]}]
+  (let [store        (DomainStore. path spec)
+        version-path (if version
+                       (.createVersion store (long version))
+                       (.createVersion store))]
+    (let [writer (elephant-writer spec version-path tmp)]
+      (doseq [[k v] kv-seq]
+        (.write writer
+                (IntWritable. (.shardIndex (.getShardScheme spec) k (.getNumShards spec)))
+                (ElephantRecordWritable. k v)))
+      (.close writer nil))
+    (.succeedVersion store version-path)))
+
+(defn count-gets!
+  "Wraps every shard of the domain so that gets are counted in the
+  returned atom."
+  [domain]
+  (let [gets (atom 0)]
+    (swap! (.domainData domain) update-in [:shards]
+           (fn [shards]
+             (into {} (for [[idx ^KeyValPersistence shard] shards]
+                        [idx (reify KeyValPersistence
+                               (get [_ k] (swap! gets inc) (.get shard k))
+                               (close [_] (.close shard)))]))))
+    gets))
+
+(fact
+  "Shards built with a Bloom filter answer definite misses without a
+  persistence lookup."
+  (with-log-level :off
+    (t/with-fs-tmp [fs path]
+      (t/with-local-tmp [_ tmp]
+        (let [args    (doto (DomainSpec$Args.)
+                        (-> .persistenceOptions (.put "bloom_fpr" 0.01)))
+              spec    (DomainSpec. (JavaBerkDB.) (HashModScheme.) 4 args)
+              present (for [i (range 1000)] (str->barr (str "key" i)))
+              absent  (for [i (range 1000)] (str->barr (str "missing" i)))]
+          (write-version! spec path tmp (for [k present] [k k]))
+          (let [domain (build-domain path)
+                gets   (count-gets! domain)]
+            (count (:filters (domain-data domain))) => 4
+            (every? identity (kv-multi-get domain present)) => true
+            @gets => 1000
+            (reset! gets 0)
+            (kv-multi-get domain absent) => (repeat 1000 nil)
+            @gets => #(< % 50)
+            (kv-get domain (first absent)) => nil))))))
+
+(fact
+  "A writable domain ignores its shards' Bloom filters, so keys indexed
+  after the load can be read back."
+  (with-log-level :off
+    (t/with-fs-tmp [fs path]
+      (t/with-local-tmp [_ tmp]
+        (let [args  (doto (DomainSpec$Args.)
+                      (-> .persistenceOptions (.put "bloom_fpr" 0.01)))
+              spec  (DomainSpec. (JavaBerkDB.) (HashModScheme.) 4 args)
+              ks    (for [i (range 100)] (str->barr (str "key" i)))
+              added (for [i (range 100)] (str->barr (str "new" i)))]
+          (write-version! spec path tmp (for [k ks] [k k]))
+          (let [domain (build-domain path :allow-writes true)]
+            (:filters (domain-data domain)) => empty?
+            (apply index! domain (for [k added] [k (KeyValDocument. k k)]))
+            (every? identity (kv-multi-get domain added)) => true
+            (String. ^bytes (kv-get domain (first added))) => "new0"))))))
+
+(fact
+  "Hot keys are served from the value cache until a new version is
+  swapped in."
+  (with-log-level :off
+    (t/with-fs-tmp [fs path]
+      (t/with-local-tmp [_ tmp]
+        (let [spec     (DomainSpec. (JavaBerkDB.) (HashModScheme.) 4)
+              ks       (for [i (range 100)] (str->barr (str "key" i)))
+              pairs    (fn [suffix]
+                         (for [k ks] [k (str->barr (str (String. k) suffix))]))
+              strs     (fn [results] (map #(some-> % String.) results))
+              expected (fn [suffix] (map #(str % suffix) (strs ks)))]
+          (write-version! spec path tmp (pairs "-v1") :version 1)
+          (let [domain (build-domain path :value-cache-bytes (* 1024 1024))
+                gets   (count-gets! domain)
+                cache  (.valueCache domain)]
+            (strs (kv-multi-get domain ks)) => (expected "-v1")
+            @gets => 100
+
+            "The second read never reaches the shards,"
+            (strs (kv-multi-get domain ks)) => (expected "-v1")
+            @gets => 100
+            (.getHitCount cache) => 100
+            (.getBytesInUse cache) => pos?
+
+            "and loading a new version invalidates every entry."
+            (write-version! spec path tmp (pairs "-v2") :version 2)
+            (load-version! domain 2)
+            (.getBytesInUse cache) => 0
+            (strs (kv-multi-get domain ks)) => (expected "-v2")
+            (String. (kv-get domain (first ks))) => "key0-v2"
+            (.getHitCount cache) => 101))))))
+
+(fact
+  "Every shard written through ElephantOutputFormat carries a
+  manifest, and kv-count answers from the manifests without scanning
+  the shards."
+  (with-log-level :off
+    (t/with-fs-tmp [fs path]
+      (t/with-local-tmp [_ tmp]
+        (let [spec  (DomainSpec. (JavaBerkDB.) (HashModScheme.) 4)
+              ks    (for [i (range 500)] (str->barr (str "key" i)))
+              store (DomainStore. path spec)]
+          ;; the second write of the first 100 keys overwrites them.
+          (write-version! spec path tmp (concat (for [k ks] [k k])
+                                                (for [k (take 100 ks)] [k k]))
+                          :version 1)
+          (let [manifests (vals (.getManifests store 1))]
+            (count manifests) => 4
+            (reduce + (map #(.getRecordCount %) manifests)) => 500
+            (reduce + (map #(.getKeyBytes %) manifests))
+            => (reduce + (map alength ks))
+            (.getRecordCount store 1) => 500)
+          (let [domain (build-domain path)]
+            (count (:manifests (domain-data domain))) => 4
+            (count-gets! domain)
+            (kv-count domain) => 500))))))
+
+(fact
+  "Manifest values whose hex reads like a number in YAML (digit-only
+  keys, a block checksum of 1e5) survive the round trip."
+  (with-log-level :off
+    (t/with-fs-tmp [fs path]
+      (t/with-local-tmp [_ tmp]
+        (let [spec  (DomainSpec. (JavaBerkDB.) (HashModScheme.) 1)
+              store (DomainStore. path spec)]
+          (write-version! spec path tmp (for [k ["12" "34"]]
+                                          [(str->barr k) (str->barr k)])
+                          :version 1)
+          (let [^ShardManifest manifest (.getManifest store 0 1)]
+            (String. (.getMinKey manifest)) => "12"
+            (String. (.getMaxKey manifest)) => "34"))
+        (let [dir (str path "/manual")]
+          (.mkdirs (io/file dir))
+          (spit (io/file dir ShardManifest/FILENAME)
+                (str "record_count: 1\nkey_bytes: 2\nvalue_bytes: 2\nchecksum: 7\n"
+                     "min_key: x3132\nmax_key: x3132\n"
+                     "files: {000005.sst: x12345678901234567890123456789012}\n"
+                     "block_bytes: 67108864\nblocks: {000005.sst: x1e5}\n"))
+          (.writeToFileSystem (ShardManifest/readFromFileSystem fs dir) fs dir)
+          (let [manifest (ShardManifest/readFromFileSystem fs dir)]
+            (String. (.getMinKey manifest)) => "12"
+            (.getFileDigests manifest)
+            => {"000005.sst" "12345678901234567890123456789012"}
+            (seq (.getBlockChecksums manifest "000005.sst")) => [0x1e5]))
+        "Unprefixed hex is rejected rather than misread."
+        (let [dir (str path "/unprefixed")]
+          (.mkdirs (io/file dir))
+          (spit (io/file dir ShardManifest/FILENAME)
+                (str "record_count: 1\nkey_bytes: 2\nvalue_bytes: 2\nchecksum: 7\n"
+                     "min_key: 3132\nmax_key: 3132\n"))
+          (ShardManifest/readFromFileSystem fs dir)
+          => (throws IllegalArgumentException))))))
+
+(fact
+  "Updating to a version whose shards are unchanged links the files
+  the served version already has instead of downloading them."
+  (with-log-level :off
+    (t/with-fs-tmp [fs remote local]
+      (t/with-local-tmp [_ tmp]
+        (let [spec  (DomainSpec. (LevelDB.) (HashModScheme.) 2)
+              pairs (for [i (range 1000)]
+                      (let [k (str->barr (str "key" i))] [k k]))]
+          (write-version! spec remote tmp pairs :version 1)
+          (let [domain (build-domain local :remote-path remote)
+                store  (.localStore domain)]
+            (update-domain! domain)
+            (current-version domain) => 1
+
+            (write-version! spec remote tmp pairs :version 2)
+            (transfer-version! domain 2)
+            (let [^ShardManifest manifest (.getManifest store 0 2)]
+              (.getFileDigests manifest) => not-empty
+              (for [[file-name _] (.getFileDigests manifest)]
+                (HardLink/getLinkCount (io/file (.shardPath store 0 2) file-name)))
+              => (contains [2]))
+            (load-version! domain 2)
+            (kv-count domain) => 1000
+            (String. ^bytes (kv-get domain (str->barr "key7"))) => "key7"))))))
+
+(fact
+  "An update that stopped partway is resumed: cleanup keeps the
+  unfinished version, finished files stay, and a partial file only
+  has its damaged ranges fetched again."
+  (with-log-level :off
+    (t/with-fs-tmp [fs remote local]
+      (t/with-local-tmp [_ tmp]
+        (let [spec  (DomainSpec. (LevelDB.) (HashModScheme.) 2)
+              pairs (for [i (range 1000)]
+                      (let [k (str->barr (str "key" i))] [k k]))]
+          (write-version! spec remote tmp pairs :version 1)
+          (let [domain (build-domain local :remote-path remote)
+                store  (.localStore domain)
+                [file-name _] (first (.getFileDigests
+                                      (.getManifest (.remoteStore domain) 0 1)))
+                target  (io/file (.shardPath store 0 1) file-name)
+                partial (io/file (str target TransferEngine/PARTIAL_SUFFIX))]
+            (.resumeVersion store 1)
+            (transfer-shard! domain 1 0)
+            (.renameTo target partial)
+            (with-open [raf (RandomAccessFile. partial "rw")]
+              (let [b (.read raf)]
+                (.seek raf 0)
+                (.write raf (inc b))))
+            (.cleanup store 1)
+            (.exists partial) => true
+
+            (update-domain! domain)
+            (current-version domain) => 1
+            (.exists partial) => false
+            (.exists target) => true
+            (kv-count domain) => 1000
+            (String. ^bytes (kv-get domain (str->barr "key7"))) => "key7"))))))
+
+(fact
+  "A rolling update swaps shards in a batch at a time and deletes the
+  replaced shards as it goes. A roll that fails partway leaves the
+  domain marked mixed, serving each shard from its own version."
+  (with-log-level :off
+    (t/with-fs-tmp [fs remote local]
+      (t/with-local-tmp [_ tmp]
+        (let [spec   (DomainSpec. (LevelDB.) (HashModScheme.) 4)
+              pairs  (fn [suffix]
+                       (for [i (range 400)]
+                         [(str->barr (str "key" i)) (str->barr (str "key" i suffix))]))
+              lookup (fn [domain k]
+                       (String. ^bytes (kv-get domain (str->barr k))))
+              shard  (fn [k] (.shardIndex (.getShardScheme spec) (str->barr k) 4))
+              last-key (first (filter #(= 3 (shard %)) (map #(str "key" %) (range))))
+              first-key (first (filter #(= 0 (shard %)) (map #(str "key" %) (range))))]
+          (write-version! spec remote tmp (pairs "-v1") :version 1)
+          (let [domain (build-domain local :remote-path remote :rolling-update-shards 1)
+                store  (.localStore domain)]
+            (update-domain! domain)
+            (current-version domain) => 1
+
+            (write-version! spec remote tmp (pairs "-v2") :version 2)
+            (update-domain! domain)
+            (current-version domain) => 2
+            (mixed-version? domain) => false
+            (lookup domain first-key) => (str first-key "-v2")
+            (.exists (io/file (.shardPath store 0 1))) => false
+            (kv-count domain) => 400
+
+            ;; break the last shard of version 3
+            (write-version! spec remote tmp (pairs "-v3") :version 3)
+            (let [remote-store (.remoteStore domain)
+                  [file-name _] (first (.getFileDigests (.getManifest remote-store 3 3)))]
+              (with-open [raf (RandomAccessFile. (io/file (.shardPath remote-store 3 3) file-name) "rw")]
+                (let [b (.read raf)]
+                  (.seek raf 0)
+                  (.write raf (inc b)))))
+            (update-domain! domain)
+            (mixed-version? domain) => true
+            (:target-version (domain-data domain)) => 3
+            (lookup domain first-key) => (str first-key "-v3")
+            (lookup domain last-key) => (str last-key "-v2")
+            (.exists (io/file (.shardPath store 0 2))) => false
+            (.exists (io/file (.shardPath store 3 2))) => true))))))
+
+(fact
+  "With peers, a replica reads the shards another server of the ring
+  has finished from that server, checked against the remote manifest,
+  rather than from the remote store."
+  (with-log-level :off
+    (t/with-fs-tmp [fs remote local]
+      (t/with-local-tmp [_ tmp]
+        (let [spec  (DomainSpec. (LevelDB.) (HashModScheme.) 2)
+              pairs (for [i (range 1000)]
+                      (let [k (str->barr (str "key" i))] [k k]))]
+          (write-version! spec remote tmp pairs :version 1)
+          (let [a      (build-domain (str local "/a/graph") :remote-path remote
+                                     :hosts ["a" "b"] :replication 2 :hostname "a")
+                server (doto (PeerServer. (InetSocketAddress. "localhost" 0)
+                                          (reify PeerServer$ShardLocator
+                                            (completedShard [_ _ version shard]
+                                              (completed-shard-dir a version shard))))
+                         (.start))
+                b      (build-domain (str local "/b/graph") :remote-path remote
+                                     :hosts ["a" "b"] :replication 2 :hostname "b"
+                                     :peer-address {"a" (str "localhost:" (.getPort server))})]
+            (try
+              (update-domain! a)
+              (current-version a) => 1
+
+              ;; break the largest remote file of each shard, so only a's
+              ;; copies will do
+              (let [remote-store (.remoteStore b)]
+                (doseq [idx [0 1]
+                        :let [dir (.shardPath remote-store idx 1)
+                              file-name (apply max-key #(.length (io/file dir %))
+                                               (keys (.getFileDigests
+                                                      (.getManifest remote-store idx 1))))]]
+                  (with-open [raf (RandomAccessFile. (io/file dir file-name) "rw")]
+                    (let [x (.read raf)]
+                      (.seek raf 0)
+                      (.write raf (inc x))))))
+              (update-domain! b)
+              (current-version b) => 1
+              (kv-count b) => 1000
+              (String. ^bytes (kv-get b (str->barr "key7"))) => "key7"
+              (finally
+                (.stop server)))))))))
+
+(fact
+  "A domain with warmup samples the keys it's asked for and reads them
+  from a new version's shards before swapping those in, stopping at
+  its byte budget."
+  (with-log-level :off
+    (t/with-fs-tmp [fs remote local]
+      (t/with-local-tmp [_ tmp]
+        (let [spec  (DomainSpec. (LevelDB.) (HashModScheme.) 2)
+              pairs (for [i (range 1000)]
+                      (let [k (str->barr (str "key" i))] [k k]))
+              ask!  (fn [domain]
+                      (doseq [i (range 10 60)]
+                        (kv-get domain (str->barr (str "key" i)))))]
+          (write-version! spec remote tmp pairs :version 1)
+          (let [domain (build-domain (str local "/full") :remote-path remote
+                                     :warmup-ms 10000 :warmup-sample-rate 1)
+                capped (build-domain (str local "/capped") :remote-path remote
+                                     :warmup-ms 10000 :warmup-sample-rate 1
+                                     :warmup-bytes 20)]
+            (update-domain! domain)
+            (update-domain! capped)
+            (ask! domain)
+            (ask! capped)
+            (warm-shards! domain (:shards (domain-data domain))) => 50
+            (warm-shards! capped (:shards (domain-data capped))) => 4
+
+            (write-version! spec remote tmp pairs :version 2)
+            (update-domain! domain)
+            (current-version domain) => 2
+            (String. ^bytes (kv-get domain (str->barr "key7"))) => "key7"))))))
@@ -0,0 +1,55 @@
+(ns elephantdb.partition.batch-test
+  (:use midje.sweet
+        [elephantdb.partition.fasthash-test :only (random-keys)])
+  (:import [elephantdb DomainSpec Utils]
+           [elephantdb.partition BatchShardingScheme ShardingScheme
+            HashModScheme JumpHashScheme Murmur3Scheme PrefixScheme
+            RangeScheme XXHashScheme]
+           [elephantdb.persistence JavaBerkDB ShardSetImpl]))
+
+(def key-arr
+  (into-array (Class/forName "[B") (random-keys 23 5000)))
+
+(defn one-at-a-time [^ShardingScheme scheme shard-count]
+  (map #(.shardIndex scheme % shard-count) key-arr))
+
+(def legacy-scheme
+  "A scheme that only knows shardIndex, like any written before the
+  batch API."
+  (reify ShardingScheme
+    (shardIndex [_ k shard-count]
+      (mod (alength ^bytes k) shard-count))))
+
+(tabular
+ (fact
+   "Routing a batch agrees with routing each key on its own, whether
+   or not the scheme implements BatchShardingScheme."
+   (seq (Utils/shardIndices ?scheme key-arr ?shard-count))
+   => (one-at-a-time ?scheme ?shard-count))
+ ?scheme                                    ?shard-count
+ (HashModScheme.)                           7
+ (Murmur3Scheme.)                           64
+ (XXHashScheme.)                            1021
+ (PrefixScheme. 2)                          16
+ (JumpHashScheme.)                          33
+ (RangeScheme/fromSample (take 100 key-arr) 10)  10
+ legacy-scheme                              5)
+
+(fact
+  "The bundled schemes all route batches natively."
+  (every? #(instance? BatchShardingScheme %)
+          [(HashModScheme.) (Murmur3Scheme.) (XXHashScheme.)
+           (PrefixScheme.) (RangeScheme.)]) => true)
+
+(fact
+  "ShardSet routes batches with its spec's scheme and shard count."
+  (let [shard-set (ShardSetImpl. "/tmp" (DomainSpec. (JavaBerkDB.) (HashModScheme.) 9))
+        out       (int-array (alength key-arr))]
+    (.shardIndices shard-set key-arr out)
+    (seq out) => (one-at-a-time (HashModScheme.) 9)))
+
+(fact
+  "Batch routing fails the same way single-key routing does."
+  (Utils/shardIndices (HashModScheme.) key-arr 0) => (throws ArithmeticException)
+  (Utils/shardIndices (RangeScheme. (into-array [(byte-array 1)])) key-arr 3)
+  => (throws IllegalArgumentException))
@@ -0,0 +1,77 @@
+(ns elephantdb.partition.fasthash-test
+  (:use midje.sweet)
+  (:import [elephantdb.partition Hashing Murmur3Scheme XXHashScheme]
+           [java.util Random]))
+
+(defn str->barr [s]
+  (.getBytes s "UTF-8"))
+
+(defn random-keys
+  "Returns a sequence of `n` random 16-byte keys generated from the
+  supplied seed."
+  [seed n]
+  (let [rand (Random. seed)]
+    (repeatedly n #(let [k (byte-array 16)]
+                     (.nextBytes rand k)
+                     k))))
+
+(fact
+  "Reference values, so that the hashes never drift out from under
+  existing domains."
+  (Hashing/xxHash64 (byte-array 0)) => (unchecked-long 0xef46db3751d8e999)
+  (Hashing/xxHash64 (str->barr "hello")) => (unchecked-long 0x26c7827d889f6da3)
+  (Hashing/murmur3 (byte-array 0)) => 0
+  (Hashing/murmur3 (str->barr "hello")) => (unchecked-long 0xcbd8a7b341bd9b02))
+
+;; ## Distribution
+;;
+;; The schemes are checked with a chi-squared statistic over the
+;; bucket counts. With `n` shards the statistic has `n - 1` degrees of
+;; freedom; anything under `n + 4 * sqrt(2n)` is comfortably uniform.
+
+(defn chi-squared
+  "Returns the chi-squared statistic of the shard counts produced by
+  routing `key-seq` through `scheme` into `shard-count` shards."
+  [scheme shard-count key-seq]
+  (let [counts   (frequencies (map #(.shardIndex scheme % shard-count) key-seq))
+        expected (/ (count key-seq) (double shard-count))]
+    (reduce + (for [idx (range shard-count)
+                    :let [diff (- (get counts idx 0) expected)]]
+                (/ (* diff diff) expected)))))
+
+(defn uniform?
+  [scheme shard-count key-seq]
+  (< (chi-squared scheme shard-count key-seq)
+     (+ shard-count (* 4 (Math/sqrt (* 2 shard-count))))))
+
+(defn sequential-keys
+  "Keys like \"user-0\", \"user-1\"... which differ in only a few
+  bytes."
+  [n]
+  (map #(str->barr (str "user-" %)) (range n)))
+
+(tabular
+ (fact
+   "Fast schemes spread both random and sequential keys evenly."
+   (uniform? ?scheme ?shard-count (random-keys 7 50000)) => true
+   (uniform? ?scheme ?shard-count (sequential-keys 50000)) => true)
+ ?scheme             ?shard-count
+ (Murmur3Scheme.)    16
+ (Murmur3Scheme.)    100
+ (Murmur3Scheme.)    1021
+ (XXHashScheme.)     16
+ (XXHashScheme.)     100
+ (XXHashScheme.)     1021)
+
+(tabular
+ (fact
+   "Every shard index is in bounds."
+   (every? #(< -1 (.shardIndex ?scheme % ?shard-count) ?shard-count)
+           (random-keys 11 10000)) => true)
+ ?scheme          ?shard-count
+ (Murmur3Scheme.) 1
+ (Murmur3Scheme.) 7
+ (Murmur3Scheme.) Integer/MAX_VALUE
+ (XXHashScheme.)  1
+ (XXHashScheme.)  7
+ (XXHashScheme.)  Integer/MAX_VALUE)
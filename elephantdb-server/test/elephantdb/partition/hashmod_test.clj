@@ -1,2 +1,49 @@
 (ns elephantdb.partition.hashmod-test
-  (:use midje.sweet))
+  (:use midje.sweet)
+  (:import [elephantdb Utils]
+           [elephantdb.partition HashModScheme]
+           [java.util Random]))
+
+(defn random-keys
+  "Returns a sequence of `n` random byte arrays of varying length,
+  generated from the supplied seed."
+  [seed n]
+  (let [rand (Random. seed)]
+    (repeatedly n #(let [k (byte-array (.nextInt rand 64))]
+                     (.nextBytes rand k)
+                     k))))
+
+(defn matches-legacy?
+  "Returns true if the fast and legacy shard routing agree on every
+  one of the supplied keys for the supplied shard count."
+  [key-seq shard-count]
+  (every? (fn [k]
+            (= (Utils/keyShard k shard-count)
+               (Utils/keyShardLegacy k shard-count)))
+          key-seq))
+
+(tabular
+ (fact
+   "Fast shard routing must land every key on the same shard as the
+   original MD5/BigInteger implementation, or existing domains break."
+   (matches-legacy? (random-keys ?shard-count 5000) ?shard-count) => true)
+ ?shard-count
+ 1
+ 2
+ 3
+ 7
+ 64
+ 1000
+ 65536
+ Integer/MAX_VALUE)
+
+(fact
+  "HashModScheme routes with keyShard and stays within bounds."
+  (let [scheme (HashModScheme.)]
+    (every? #(< -1 (.shardIndex scheme % 32) 32)
+            (random-keys 42 1000)) => true
+    (.shardIndex scheme (byte-array 0) 32) => (Utils/keyShardLegacy (byte-array 0) 32)))
+
+(fact
+  "Non-positive shard counts are rejected, just as before."
+  (Utils/keyShard (byte-array 1) 0) => (throws ArithmeticException))
@@ -0,0 +1,50 @@
+(ns elephantdb.partition.jumphash-test
+  (:use midje.sweet
+        [elephantdb.partition.fasthash-test :only (random-keys uniform?)])
+  (:import [elephantdb.partition JumpHashScheme]))
+
+(def scheme (JumpHashScheme.))
+
+(defn moves
+  "Returns a sequence of [old-shard new-shard] pairs for every key that
+  changes shards when going from `old-count` to `new-count` shards."
+  [key-seq old-count new-count]
+  (for [k key-seq
+        :let [old (.shardIndex scheme k old-count)
+              new (.shardIndex scheme k new-count)]
+        :when (not= old new)]
+    [old new]))
+
+(tabular
+ (fact
+   "Growing the shard count only moves keys into the new shards, and
+   only about (M - N) / M of them."
+   (let [key-seq  (random-keys 17 20000)
+         moved    (moves key-seq ?old ?new)
+         expected (* (count key-seq) (/ (- ?new ?old) (double ?new)))]
+     (every? (fn [[_ new]] (>= new ?old)) moved) => true
+     (Math/abs (- (count moved) expected)) => #(< % (* 0.1 expected))))
+ ?old ?new
+ 1    2
+ 4    5
+ 10   16
+ 64   100)
+
+(fact
+  "Shrinking moves keys out of the removed shards only."
+  (every? (fn [[old _]] (>= old 7))
+          (moves (random-keys 19 20000) 10 7)) => true)
+
+(tabular
+ (fact
+   "Jump hashing spreads keys evenly."
+   (uniform? scheme ?shard-count (random-keys 23 50000)) => true)
+ ?shard-count
+ 16
+ 100
+ 1021)
+
+(fact
+  "A single shard takes everything; non-positive counts are rejected."
+  (.shardIndex scheme (byte-array 3) 1) => 0
+  (JumpHashScheme/jump 12345 0) => (throws IllegalArgumentException))
@@ -0,0 +1,39 @@
+(ns elephantdb.partition.prefix-test
+  (:use midje.sweet
+        [elephantdb.partition.fasthash-test :only (str->barr uniform?)])
+  (:import [elephantdb.partition Hashing PrefixScheme]))
+
+(defn shards
+  "Returns the shard index of each of the supplied string keys."
+  [scheme shard-count & ks]
+  (map #(.shardIndex scheme (str->barr %) shard-count) ks))
+
+(fact
+  "Keys that share a prefix share a shard."
+  (apply = (shards (PrefixScheme.) 1024 "user-1:name" "user-1:email" "user-1:" "user-1")) => true
+  (apply = (shards (PrefixScheme. "::") 1024 "a::x" "a::y:z" "a")) => true
+  (apply = (shards (PrefixScheme. 6) 1024 "user-1:name" "user-1" "user-12345")) => true)
+
+(fact
+  "Only the prefix is hashed, so the scheme agrees with XXHashScheme on it."
+  (.shardIndex (PrefixScheme.) (str->barr "user-1:name") 100)
+  => (Hashing/reduce (Hashing/xxHash64 (str->barr "user-1")) 100)
+  (.prefixLength (PrefixScheme.) (str->barr "ab::c")) => 2
+  (.prefixLength (PrefixScheme. "::") (str->barr "ab:c::d")) => 4
+  (.prefixLength (PrefixScheme. 8) (str->barr "abc")) => 3)
+
+(fact
+  "Distinct entities still spread evenly."
+  (uniform? (PrefixScheme.) 64
+            (for [i (range 50000)] (str->barr (str "user-" i ":name")))) => true)
+
+(fact
+  "Options round-trip and are validated."
+  (let [scheme (PrefixScheme.)]
+    (.setOptions scheme {"prefix_length" 4})
+    (.getOptions scheme) => {"prefix_length" 4}
+    (.setOptions scheme {"delimiter" "|"})
+    (.getOptions scheme) => {"delimiter" "|"}
+    (.setOptions scheme {"delimiter" "|" "prefix_length" 4}) => (throws IllegalArgumentException)
+    (PrefixScheme. 0) => (throws IllegalArgumentException)
+    (PrefixScheme. "") => (throws IllegalArgumentException)))
@@ -0,0 +1,62 @@
+(ns elephantdb.partition.range-test
+  (:use midje.sweet
+        [elephantdb.partition.fasthash-test :only (str->barr random-keys)])
+  (:import [elephantdb.partition RangeScheme]))
+
+(defn scheme [& splits]
+  (RangeScheme. (into-array (map str->barr splits))))
+
+(fact
+  "Shard i holds the keys from split point i - 1 up to, but not
+  including, split point i."
+  (let [s (scheme "b" "bb" "c")]
+    (map #(.shardIndex s (str->barr %) 4) ["" "a" "b" "ba" "bb" "bz" "c" "z"])
+    => [0 0 1 1 2 2 3 3]))
+
+(fact
+  "Keys compare as unsigned bytes, so high bytes sort last."
+  (let [s (RangeScheme. (into-array [(byte-array (map byte [127]))]))]
+    (.shardIndex s (byte-array (map byte [-128])) 2) => 1
+    (.shardIndex s (byte-array (map byte [0])) 2) => 0))
+
+(fact
+  "Range and prefix queries touch only the shards that can hold
+  matching keys."
+  (let [s (scheme "b" "bb" "c")]
+    (seq (.shardRange s (str->barr "a") (str->barr "az") 4)) => [0 0]
+    (seq (.shardRange s (str->barr "ba") (str->barr "bc") 4)) => [1 2]
+    (seq (.prefixShardRange s (str->barr "a") 4)) => [0 0]
+    (seq (.prefixShardRange s (str->barr "b") 4)) => [1 2]
+    (seq (.prefixShardRange s (str->barr "bb") 4)) => [2 2]))
+
+(defn balanced?
+  "True if every shard holds within 25% of its even share of
+  `key-seq`. Quantiles of a sample are noisier than a hash, so this is
+  looser than the chi-squared check used for the hashing schemes."
+  [scheme shard-count key-seq]
+  (let [counts   (frequencies (map #(.shardIndex scheme % shard-count) key-seq))
+        expected (/ (count key-seq) (double shard-count))]
+    (every? #(< 0.75 (/ (get counts % 0) expected) 1.25)
+            (range shard-count))))
+
+(fact
+  "Split points picked from a sample cut the keys evenly."
+  (let [key-seq (random-keys 17 50000)
+        sample  (filter #(RangeScheme/isSampled % 0.1) key-seq)
+        scheme  (RangeScheme/fromSample sample 16)]
+    (count (.getSplitPoints scheme)) => 15
+    (balanced? scheme 16 key-seq) => true))
+
+(fact
+  "Sampling is by key, so it's repeatable and close to the rate."
+  (let [key-seq (random-keys 19 20000)
+        n       (count (filter #(RangeScheme/isSampled % 0.05) key-seq))]
+    (< 800 n 1200) => true
+    (filter #(RangeScheme/isSampled % 0.05) key-seq)
+    => (filter #(RangeScheme/isSampled % 0.05) key-seq)))
+
+(fact
+  "Mismatched shard counts and unsorted split points are rejected."
+  (.shardIndex (scheme "b") (str->barr "a") 3) => (throws IllegalArgumentException)
+  (.shardIndex (RangeScheme.) (str->barr "a") 1) => (throws IllegalStateException)
+  (scheme "c" "b") => (throws IllegalArgumentException))
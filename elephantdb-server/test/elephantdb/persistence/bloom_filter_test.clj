@@ -0,0 +1,55 @@
+(ns elephantdb.persistence.bloom-filter-test
+  (:use midje.sweet
+        [elephantdb.test.common :only (str->barr)])
+  (:require [hadoop-util.test :as t])
+  (:import [elephantdb.persistence ShardBloomFilter ShardBloomFilter$Builder]))
+
+(defn build-filter
+  "Returns a filter over the supplied keys sized for the supplied
+  false-positive rate."
+  [key-seq fpr]
+  (let [builder (ShardBloomFilter$Builder.)]
+    (doseq [k key-seq]
+      (.add builder k))
+    (.build builder (ShardBloomFilter/bitsPerKey {"bloom_fpr" fpr}))))
+
+(defn false-positive-rate
+  [^ShardBloomFilter bloom absent-seq]
+  (/ (count (filter #(.mightContain bloom %) absent-seq))
+     (double (count absent-seq))))
+
+(def present (for [i (range 20000)] (str->barr (str "key" i))))
+(def absent  (for [i (range 20000)] (str->barr (str "absent" i))))
+
+(tabular
+ (fact
+   "Filters never reject a key they hold and stay close to the target
+   false-positive rate."
+   (let [f (build-filter present ?fpr)]
+     (every? #(.mightContain f %) present) => true
+     (false-positive-rate f absent) => #(< % (* 1.5 ?fpr))))
+ ?fpr
+ 0.1
+ 0.01
+ 0.001)
+
+(fact
+  "Filters are opt-in through the persistence options."
+  (ShardBloomFilter/bitsPerKey nil) => 0.0
+  (ShardBloomFilter/bitsPerKey {"dummy" "value"}) => 0.0
+  (ShardBloomFilter/bitsPerKey {"bloom_bits_per_key" 12}) => 12.0
+  (ShardBloomFilter/bitsPerKey {"bloom_fpr" 0.01}) => (roughly 9.585 0.01))
+
+(fact
+  "Filters round-trip through the shard directory."
+  (t/with-local-tmp [_ dir]
+    (.mkdirs (java.io.File. dir))
+    (ShardBloomFilter/readFromShard dir) => nil
+    (let [f (build-filter present 0.01)]
+      (.writeToShard f dir)
+      (let [read (ShardBloomFilter/readFromShard dir)]
+        (.getNumBits read) => (.getNumBits f)
+        (.getNumHashes read) => (.getNumHashes f)
+        (every? #(.mightContain read %) present) => true
+        (map #(.mightContain read %) absent)
+        => (map #(.mightContain f %) absent)))))
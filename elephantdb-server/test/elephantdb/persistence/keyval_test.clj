@@ -3,8 +3,10 @@
         elephantdb.test.common
         elephantdb.test.keyval)
   (:require [hadoop-util.test :as t])
-  (:import [elephantdb.document KeyValDocument]
-           [elephantdb.persistence JavaBerkDB LevelDB]))
+  (:import [elephantdb Utils]
+           [elephantdb.document KeyValDocument]
+           [elephantdb.persistence CursorPersistence JavaBerkDB LevelDB
+            MultiGetPersistence]))
 
 (defn test-get-put [coordinator]
   (t/with-local-tmp [_ tmp-path]
@@ -63,3 +65,126 @@
   TODO: move to persistence module."
   (test-get-put (LevelDB.))
   (test-iterate (LevelDB.)))
+
+(defn multi-get-strs
+  "Looks up the supplied string keys in one batch, returning the
+  values as strings."
+  [db key-seq]
+  (map #(some-> % String.)
+       (Utils/multiGet db (into-array (Class/forName "[B")
+                                      (map str->barr key-seq)))))
+
+(tabular
+ (fact
+   "A native multiGet returns values in request order, with nil for
+   missing keys, whether or not the batch is sorted or has repeats."
+   (t/with-local-tmp [_ tmp-path]
+     (let [coord ?coordinator
+           ks    (for [i (range 500)] (str "key" i))
+           batch (concat (reverse ks) ["missing" "key7" "key7" ""])]
+       (.createPersistence coord tmp-path {})
+       (with-open [db (.openPersistenceForAppend coord tmp-path {})]
+         (doseq [k ks]
+           (.put db (str->barr k) (str->barr (str k "-val"))))
+         (instance? MultiGetPersistence db) => true
+         (multi-get-strs db ["key1" "nope" "key0"]) => ["key1-val" nil "key0-val"])
+       (with-open [db (.openPersistenceForRead coord tmp-path {})]
+         (multi-get-strs db batch)
+         => (concat (map #(str % "-val") (reverse ks))
+                    [nil "key7-val" "key7-val" nil])
+         (multi-get-strs db []) => []))))
+ ?coordinator
+ (JavaBerkDB.)
+ (LevelDB.))
+
+(defn drain-cursor
+  "Reads the persistence through Utils/openCursor, returning the
+  string pairs and the set of document instances the cursor handed
+  out."
+  [db]
+  (with-open [cursor (Utils/openCursor db)]
+    (loop [pairs [], docs #{}]
+      (if-let [^KeyValDocument doc (.next cursor)]
+        (recur (conj pairs [(String. (.key doc)) (String. (.value doc))])
+               (conj docs (System/identityHashCode doc)))
+        [pairs docs]))))
+
+(tabular
+ (fact
+   "A cursor scans every record in key order through a single reused
+   document, and the Utils fallback wraps a plain iterator."
+   (t/with-local-tmp [_ tmp-path]
+     (let [coord ?coordinator
+           ks    (sort (for [i (range 300)] (str "key" i)))]
+       (.createPersistence coord tmp-path {})
+       (with-open [db (.openPersistenceForAppend coord tmp-path {})]
+         (doseq [k ks]
+           (.put db (str->barr k) (str->barr (str k "-val")))))
+       (with-open [db (.openPersistenceForRead coord tmp-path {})]
+         (instance? CursorPersistence db) => true
+         (let [[pairs docs] (drain-cursor db)]
+           pairs => (map (fn [k] [k (str k "-val")]) ks)
+           (count docs) => 1)
+         (let [plain (reify elephantdb.persistence.Persistence
+                       (iterator [_] (.iterator db))
+                       (close [_]))
+               [pairs docs] (drain-cursor plain)]
+           pairs => (map (fn [k] [k (str k "-val")]) ks)
+           (count docs) => (count ks))))))
+ ?coordinator
+ (JavaBerkDB.)
+ (LevelDB.))
+
+(fact
+  "A bulk-loading LevelDB shard batches its writes but still reads
+  them back before and after it's closed."
+  (t/with-local-tmp [_ tmp-path]
+    (let [coord (LevelDB.)
+          opts  {"bulk_load" true "write_batch_bytes" 1024}
+          ks    (for [i (range 5000)] (format "key%05d" i))]
+      (.createPersistence coord tmp-path opts)
+      (with-open [db (.openPersistenceForAppend coord tmp-path opts)]
+        (doseq [k ks]
+          (.put db (str->barr k) (str->barr (str k "-val"))))
+        (String. (.get db (str->barr "key04999"))) => "key04999-val")
+      (with-open [db (.openPersistenceForRead coord tmp-path {})]
+        (multi-get-strs db ks) => (map #(str % "-val") ks)
+        (count (iterator-seq (.iterator db))) => 5000))))
+
+(fact
+  "LevelDB shards take their tuning from the persistence options and
+  can share one node-wide block cache."
+  (t/with-local-tmp [_ path-a path-b]
+    (let [coord (LevelDB.)
+          opts  {"compression" "none" "block_size" 16384 "max_open_files" 64
+                 "cache_size" (* 1024 1024) "verify_checksums" true}
+          ks    (for [i (range 1000)] (str "key" i))]
+      (doseq [path [path-a path-b]]
+        (.createPersistence coord path opts)
+        (with-open [db (.openPersistenceForAppend coord path opts)]
+          (doseq [k ks]
+            (.put db (str->barr k) (str->barr (str k "-val"))))))
+      (try
+        (LevelDB/setSharedCacheSize (* 8 1024 1024))
+        (dotimes [_ 2]
+          (with-open [a (.openPersistenceForRead coord path-a opts)
+                      b (.openPersistenceForRead coord path-b opts)]
+            (multi-get-strs a ["key1" "key999"]) => ["key1-val" "key999-val"]
+            (String. (.get b (str->barr "key500"))) => "key500-val"))
+        (finally
+          (LevelDB/setSharedCacheSize 0)))
+      (.openPersistenceForRead coord path-a {"compression" "lz4"})
+      => (throws IllegalArgumentException))))
+
+(fact
+  "BerkeleyDB shards pass je.* persistence options through to their
+  environment."
+  (t/with-local-tmp [_ tmp-path]
+    (let [coord (JavaBerkDB.)]
+      (.createPersistence coord tmp-path {})
+      (with-open [db (.openPersistenceForAppend coord tmp-path {"je.log.fileMax" "10000000"})]
+        (.put db (str->barr "a") (str->barr "1")))
+      (with-open [db (.openPersistenceForRead coord tmp-path {"je.log.fileCacheSize" 8})]
+        (multi-get-strs db ["a" "b"]) => ["1" nil])
+      (.openPersistenceForRead coord tmp-path {"je.not.a.param" "1"})
+      => (throws IllegalArgumentException))))
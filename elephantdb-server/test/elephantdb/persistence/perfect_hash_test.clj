@@ -0,0 +1,87 @@
+(ns elephantdb.persistence.perfect-hash-test
+  (:use midje.sweet
+        [elephantdb.test.common :only (str->barr elephant-writer)])
+  (:require [hadoop-util.core :as h]
+            [hadoop-util.test :as t])
+  (:import [elephantdb DomainSpec]
+           [elephantdb.document KeyValDocument]
+           [elephantdb.hadoop ElephantRecordWritable]
+           [elephantdb.partition HashModScheme]
+           [elephantdb.persistence PerfectHashTable]
+           [org.apache.hadoop.io IntWritable]
+           [java.util Arrays Random]))
+
+(defn random-keys
+  "Returns `n` distinct random keys of 4 to 24 bytes, unsorted."
+  [seed n]
+  (let [rand (Random. seed)]
+    (->> (repeatedly #(let [k (byte-array (+ 4 (.nextInt rand 20)))]
+                        (.nextBytes rand k)
+                        (vec k)))
+         (distinct)
+         (take n)
+         (map byte-array))))
+
+(defn value-for [^bytes k]
+  (Arrays/copyOf k 40))
+
+(defn get-str [db k]
+  (when-let [v (.get db (str->barr k))]
+    (String. ^bytes v "UTF-8")))
+
+(fact
+  "Every key built into the table comes back, and keys that weren't
+  are rejected by the key check."
+  (t/with-local-tmp [_ path]
+    (let [[key-seq absent] (split-at 50000 (random-keys 1 51000))]
+      (.createPersistence (PerfectHashTable.) path {})
+      (with-open [db (.openPersistenceForAppend (PerfectHashTable.) path {})]
+        (doseq [k key-seq]
+          (.put db k (value-for k))))
+      (with-open [db (.openPersistenceForRead (PerfectHashTable.) path {})]
+        (every? #(Arrays/equals (value-for %) (.get db %)) key-seq) => true
+        (some #(.get db %) absent) => nil
+        (count (seq db)) => 50000))))
+
+(tabular
+ (fact
+   "Repeated keys keep their last value, whatever the gamma, and
+   appending rebuilds the table with the old and new entries."
+   (t/with-local-tmp [_ path]
+     (let [opts {"gamma" ?gamma}]
+       (.createPersistence (PerfectHashTable.) path opts)
+       (with-open [db (.openPersistenceForAppend (PerfectHashTable.) path opts)]
+         (doseq [[k v] [["a" "1"] ["b" "2"] ["a" "3"]]]
+           (.put db (str->barr k) (str->barr v))))
+       (with-open [db (.openPersistenceForAppend (PerfectHashTable.) path opts)]
+         (.put db (str->barr "c") (str->barr "4")))
+       (with-open [db (.openPersistenceForRead (PerfectHashTable.) path opts)]
+         (map (partial get-str db) ["a" "b" "c" "d"]) => ["3" "2" "4" nil]
+         (count (seq db)) => 3))))
+ ?gamma
+ 1.0
+ 2.0
+ 5.0)
+
+(fact
+  "An empty table reads as empty."
+  (t/with-local-tmp [_ path]
+    (.createPersistence (PerfectHashTable.) path {})
+    (with-open [db (.openPersistenceForRead (PerfectHashTable.) path {})]
+      (get-str db "a") => nil
+      (seq db) => nil)))
+
+(fact
+  "ElephantOutputFormat builds the perfect hash on the local shard
+  before uploading it."
+  (t/with-fs-tmp [fs output-dir]
+    (t/with-local-tmp [lfs etmp local-shard]
+      (let [spec (DomainSpec. (PerfectHashTable.) (HashModScheme.) 1)
+            kvs  (for [i (range 1000)] [(str->barr (str "k" i)) (str->barr (str "v" i))])]
+        (with-open [writer (elephant-writer spec output-dir etmp)]
+          (doseq [[k v] kvs]
+            (.write writer (IntWritable. 0) (ElephantRecordWritable. k v))))
+        (.mkdirs lfs (h/path local-shard))
+        (.copyToLocalFile fs (h/path (str output-dir "/0")) (h/path (str local-shard "/0")))
+        (with-open [db (.openPersistenceForRead (PerfectHashTable.) (str local-shard "/0") {})]
+          (map (partial get-str db) ["k0" "k999" "k1000"]) => ["v0" "v999" nil])))))
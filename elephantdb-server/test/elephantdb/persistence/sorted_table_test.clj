@@ -0,0 +1,85 @@
+(ns elephantdb.persistence.sorted-table-test
+  (:use midje.sweet
+        [elephantdb.test.common :only (str->barr)])
+  (:require [hadoop-util.test :as t])
+  (:import [elephantdb.document KeyValDocument]
+           [elephantdb.partition RangeScheme]
+           [elephantdb.persistence SortedTable]
+           [java.util Arrays Random]))
+
+(defn sorted-keys
+  "Returns `n` distinct random keys of 8 to 24 bytes, in the unsigned
+  byte order the build sorts each shard in."
+  [seed n]
+  (let [rand (Random. seed)]
+    (->> (repeatedly #(let [k (byte-array (+ 8 (.nextInt rand 16)))]
+                        (.nextBytes rand k)
+                        k))
+         (map vec)
+         (distinct)
+         (take n)
+         (map byte-array)
+         (sort RangeScheme/KEY_ORDER))))
+
+(defn value-for [^bytes k]
+  (Arrays/copyOf k 100))
+
+(defn load-shard!
+  "Builds a shard at `path` holding every key, mapped to value-for."
+  [coordinator path key-seq & [opts]]
+  (.createPersistence coordinator path (or opts {}))
+  (with-open [db (.openPersistenceForAppend coordinator path (or opts {}))]
+    (doseq [k key-seq]
+      (.index db (KeyValDocument. k (value-for k))))))
+
+(fact
+  "A sorted table returns every key it was built with, nothing else,
+  and iterates in key order."
+  (t/with-local-tmp [_ path]
+    (let [key-seq (sorted-keys 1 20000)
+          absent  (remove (set (map vec key-seq))
+                          (map vec (sorted-keys 2 1000)))]
+      (load-shard! (SortedTable.) path key-seq {"block_size" 512})
+      (with-open [db (.openPersistenceForRead (SortedTable.) path {})]
+        (every? #(Arrays/equals (value-for %) (.get db %)) key-seq) => true
+        (some #(.get db (byte-array %)) absent) => nil
+        (map #(vec (.key ^KeyValDocument %)) (seq db)) => (map vec key-seq)))))
+
+(defn put-strs!
+  [db & kvs]
+  (doseq [[k v] (partition 2 kvs)]
+    (.put db (str->barr k) (str->barr v))))
+
+(defn get-str [db k]
+  (when-let [v (.get db (str->barr k))]
+    (String. ^bytes v "UTF-8")))
+
+(defn all-strs [db]
+  (for [^KeyValDocument doc (seq db)]
+    [(String. (.key doc) "UTF-8") (String. (.value doc) "UTF-8")]))
+
+(fact
+  "Appending merges sorted keys into the existing table; later values
+  win."
+  (t/with-local-tmp [_ path]
+    (.createPersistence (SortedTable.) path {})
+    (with-open [db (.openPersistenceForAppend (SortedTable.) path {})]
+      (put-strs! db "a" "1" "c" "3"))
+    (with-open [db (.openPersistenceForAppend (SortedTable.) path {})]
+      (put-strs! db "a" "11" "b" "2" "d" "4" "d" "44"))
+    (with-open [db (.openPersistenceForRead (SortedTable.) path {})]
+      (get-str db "c") => "3"
+      (get-str db "e") => nil
+      (all-strs db) => [["a" "11"] ["b" "2"] ["c" "3"] ["d" "44"]])))
+
+(fact
+  "Out-of-order keys are rejected, and an empty table reads as empty."
+  (t/with-local-tmp [_ path empty-path]
+    (.createPersistence (SortedTable.) path {})
+    (let [db (.openPersistenceForAppend (SortedTable.) path {})]
+      (put-strs! db "b" "1")
+      (put-strs! db "a" "1") => (throws java.io.IOException))
+    (.createPersistence (SortedTable.) empty-path {})
+    (with-open [db (.openPersistenceForRead (SortedTable.) empty-path {})]
+      (get-str db "a") => nil
+      (seq db) => nil)))
@@ -2,7 +2,11 @@
   (:use elephantdb.test.common
         midje.sweet
         [hadoop-util.test :only (with-fs-tmp)])
-  (:import [elephantdb.store VersionedStore]))
+  (:require [hadoop-util.core :as h])
+  (:import [elephantdb DomainSpec]
+           [elephantdb.partition HashModScheme]
+           [elephantdb.persistence JavaBerkDB]
+           [elephantdb.store DomainStore VersionedStore]))
 
 (defmacro with-versioned-store [[sym] & body]
   `(with-fs-tmp [fs# dir#]
@@ -31,6 +35,95 @@
       (fact
         (.mostRecentVersionPath vs) => v))))
 
+(fact
+  "Succeeding or deleting a version republishes the latest pointer,
+  and other store instances see the change."
+  (with-fs-tmp [fs dir]
+    (let [writer (VersionedStore. fs dir)
+          reader (VersionedStore. fs dir)]
+      (.getLatestPointer writer) => nil
+      (.succeedVersion writer (.createVersion writer 1))
+      (.getLatestPointer writer) => 1
+      (.mostRecentVersion reader) => 1
+      (Thread/sleep 10)
+      (.succeedVersion writer (.createVersion writer 2))
+      (.getLatestPointer writer) => 2
+      (.mostRecentVersion reader) => 2
+      (Thread/sleep 10)
+      (.deleteVersion writer 2)
+      (.getLatestPointer writer) => 1
+      (.getAllVersions reader) => [1]
+      (Thread/sleep 10)
+      (.deleteVersion writer 1)
+      (.getLatestPointer writer) => nil
+      (.mostRecentVersion reader) => nil)))
+
+(fact
+  "Readers notice versions published within the same second, which a
+  pointer's modification time can't tell apart."
+  (with-fs-tmp [fs dir]
+    (let [writer (VersionedStore. fs dir)
+          reader (VersionedStore. fs dir)]
+      (.succeedVersion writer (.createVersion writer 1))
+      (.getAllVersions reader) => [1]
+      (.succeedVersion writer (.createVersion writer 2))
+      (.getAllVersions reader) => [2 1]
+      (.succeedVersion writer (.createVersion writer 3))
+      (.deleteVersion writer 3)
+      (.getAllVersions reader) => [2 1]
+      (.deleteVersion writer 1)
+      (.getAllVersions reader) => [2])))
+
+(defn write-shards!
+  "Creates a new version in the store holding only the supplied
+  shards, references the rest from the newest version and succeeds
+  it."
+  [^DomainStore store version shards]
+  (let [fs   (.getFileSystem store)
+        path (.createVersion store (long version))]
+    (doseq [idx shards]
+      (.createNewFile fs (h/path (str path "/" idx "/data"))))
+    (.synchronizeInProgressVersion store path)
+    (.succeedVersion store path)))
+
+(fact
+  "A version references the shards it didn't rewrite, and cleanup
+  keeps referenced shards of deleted versions."
+  (with-fs-tmp [fs dir]
+    (let [store (DomainStore. fs dir (DomainSpec. (JavaBerkDB.) (HashModScheme.) 4))
+          owner (fn [version idx]
+                  (-> (h/path (.shardPath store idx version)) .getParent .getName))]
+      (write-shards! store 1 [0 1 2 3])
+      (write-shards! store 2 [1])
+      (write-shards! store 3 [2])
+      (map (partial owner 3) (range 4)) => ["1" "2" "3" "1"]
+      (.cleanup store 1)
+      (.getAllVersions store) => [3]
+      (map (partial owner 3) (range 4)) => ["1" "2" "3" "1"]
+      (every? #(.exists fs (h/path (.shardPath store % 3))) (range 4)) => true
+      (.exists fs (h/path (str dir "/1/1"))) => false
+      (.exists fs (h/path (str dir "/1/2"))) => false
+
+      "Deleting the last version that references them frees the shards."
+      (write-shards! store 4 [0 1 2 3])
+      (.deleteVersion store 3)
+      (.cleanup store 1)
+      (.exists fs (h/path (str dir "/1"))) => false
+      (.exists fs (h/path (str dir "/2"))) => false)))
+
+(fact
+  "A finished version's references are read once per store and kept,
+  so resolving its shards doesn't go back to the filesystem."
+  (with-fs-tmp [fs dir]
+    (let [store (DomainStore. fs dir (DomainSpec. (JavaBerkDB.) (HashModScheme.) 4))
+          owner (fn [version idx]
+                  (-> (h/path (.shardPath store idx version)) .getParent .getName))]
+      (write-shards! store 1 [0 1 2 3])
+      (write-shards! store 2 [1])
+      (map (partial owner 2) (range 4)) => ["1" "2" "1" "1"]
+      (.delete fs (h/path (str dir "/2/" VersionedStore/REFERENCES_FILENAME)) false)
+      (map (partial owner 2) (range 4)) => ["1" "2" "1" "1"])))
+
 (future-fact
  "Versioned store error testing.")
 